@@ -0,0 +1,73 @@
+#!/usr/bin/env bash
+# Crawls a site served by MockHttpServer on several local hosts, once with a
+# single process and once with a cluster of NODES processes (--cluster/--node),
+# and checks that the two reports agree. Ties on the smallest, largest, oldest
+# and newest pages may go to different URLs, so only their values are compared.
+#
+# Usage: bench/cluster-test.sh [nodes] [hosts] [pages per host]
+# Run from the project root once the crawler is built in bin and the
+# benchmarks in bin/bench, which is what `make cluster-test` does.
+# BASE_PORT (default 47310) is the port of node 0, the others follow it.
+
+set -euo pipefail
+
+NODES=${1:-3}
+HOSTS=${2:-6}
+PAGES=${3:-100}
+BASE_PORT=${BASE_PORT:-47310}
+CP=bin:bin/bench
+WORK=$(mktemp -d)
+
+cleanup() {
+    exec 3>&- 2>/dev/null || true
+    kill $(jobs -p) 2>/dev/null || true
+    rm -rf "$WORK"
+}
+trap cleanup EXIT
+
+# The servers run until their input is closed
+mkfifo "$WORK/servers.in"
+java -cp "$CP" co.mcsky.bench.MockHttpServer "$HOSTS" "$PAGES" < "$WORK/servers.in" > "$WORK/servers" &
+exec 3> "$WORK/servers.in"
+while [ "$(wc -l < "$WORK/servers")" -lt "$HOSTS" ]; do
+    sleep 0.1
+done
+mapfile -t SERVERS < "$WORK/servers"
+SITE=${SERVERS[0]}
+OTHERS=$(IFS=,; echo "${SERVERS[*]:1}")
+echo "* $HOSTS hosts of $PAGES pages: ${SERVERS[*]}"
+
+# The report is what follows "* Generating report...", with the URLs of the extremes left out
+report() {
+    sed -n '/^\* Generating report/,$p' "$1" | tail -n +2 |
+        sed -E 's#^(Smallest html page|Largest html page|Oldest modified page|Most-recently modified page): [^ ]+ #\1: #' |
+        sort
+}
+
+echo "* Single process"
+java -cp bin co.mcsky.Crawler "${SITE%:*}" "${SITE##*:}" 0 --log=warn --hosts="$OTHERS" > "$WORK/single.out"
+report "$WORK/single.out" > "$WORK/single.report"
+
+echo "* Cluster of $NODES nodes"
+CLUSTER=$(for ((i = 0; i < NODES; i++)); do printf '127.0.0.1:%d,' $((BASE_PORT + i)); done)
+CLUSTER=${CLUSTER%,}
+PIDS=()
+for ((i = 0; i < NODES; i++)); do
+    java -cp bin co.mcsky.Crawler "${SITE%:*}" "${SITE##*:}" 0 --log=warn --hosts="$OTHERS" \
+        --cluster="$CLUSTER" --node=$i > "$WORK/node$i.out" &
+    PIDS+=($!)
+done
+for pid in "${PIDS[@]}"; do
+    wait "$pid"
+done
+report "$WORK/node0.out" > "$WORK/cluster.report"
+
+if [ ! -s "$WORK/single.report" ]; then
+    echo "* FAILED: the single process printed no report" >&2
+    exit 1
+fi
+if ! diff "$WORK/single.report" "$WORK/cluster.report"; then
+    echo "* FAILED: the merged report of the cluster differs from the single process one (< single, > cluster)" >&2
+    exit 1
+fi
+echo "* OK: $(grep '^Total' "$WORK/single.report")"
@@ -0,0 +1,188 @@
+package co.mcsky.bench;
+
+import co.mcsky.util.ContentDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Checks {@link ContentDecoder} on bodies fed in every way a network can cut
+ * them: a {@code gzip} header with all its optional fields split at every
+ * byte, a {@code deflate} body whose wrapper has to be told from its first
+ * byte alone, trailers which do not match the data, and bodies which end
+ * early.
+ *
+ * <p>Run with {@code make check}, or on its own without arguments. Exits
+ * with {@code 1} on the first failure.
+ */
+public class ContentDecoderCheck {
+
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    public static void main(String[] args) {
+        var text = page(20_000);
+
+        var full = gzip(text, FHCRC | FEXTRA | FNAME | FCOMMENT);
+        splits("gzip with every header field", "gzip", full, text);
+        bytes("gzip with every header field, byte by byte", "gzip", full, text);
+        splits("gzip without optional fields", "gzip", gzip(text, 0), text);
+
+        var zlib = deflate(text, false);
+        var raw = deflate(text, true);
+        splits("zlib-wrapped deflate", "deflate", zlib, text);
+        splits("raw deflate", "deflate", raw, text);
+        bytes("zlib-wrapped deflate, byte by byte", "deflate", zlib, text);
+        bytes("raw deflate, byte by byte", "deflate", raw, text);
+
+        var badCrc = full.clone();
+        badCrc[badCrc.length - 8] ^= 1;
+        fails("gzip with a wrong CRC", "gzip", badCrc, "CRC mismatch");
+        var badLength = full.clone();
+        badLength[badLength.length - 4] ^= 1;
+        fails("gzip with a wrong length", "gzip", badLength, "length mismatch");
+        var notGzip = full.clone();
+        notGzip[1] = 0;
+        fails("gzip with a wrong magic number", "gzip", notGzip, "not a gzip stream");
+
+        early("gzip ending early", "gzip", full, text);
+        early("zlib-wrapped deflate ending early", "deflate", zlib, text);
+        early("raw deflate ending early", "deflate", raw, text);
+        System.out.println("* All content decoder checks passed");
+    }
+
+    /**
+     * Feeds {@code encoded} in two calls, split at every offset.
+     */
+    private static void splits(String label, String encoding, byte[] encoded, byte[] text) {
+        for (int i = 0; i <= encoded.length; i++) {
+            var decoded = new ByteArrayOutputStream();
+            var decoder = ContentDecoder.of(encoding, decoded::write);
+            decoder.accept(encoded, 0, i);
+            decoder.accept(encoded, i, encoded.length - i);
+            check(decoder.getError() == null, label, "split at " + i + ": " + decoder.getError());
+            check(decoder.isFinished(), label, "split at " + i + ": not finished");
+            check(Arrays.equals(decoded.toByteArray(), text), label, "split at " + i + ": wrong body");
+        }
+        System.out.println("* " + label + ", split at each of " + (encoded.length + 1) + " offsets: OK");
+    }
+
+    private static void bytes(String label, String encoding, byte[] encoded, byte[] text) {
+        var decoded = new ByteArrayOutputStream();
+        var decoder = ContentDecoder.of(encoding, decoded::write);
+        for (int i = 0; i < encoded.length; i++) {
+            decoder.accept(encoded, i, 1);
+        }
+        check(decoder.getError() == null, label, String.valueOf(decoder.getError()));
+        check(decoder.isFinished(), label, "not finished");
+        check(Arrays.equals(decoded.toByteArray(), text), label, "wrong body");
+        System.out.println("* " + label + ": OK");
+    }
+
+    private static void fails(String label, String encoding, byte[] encoded, String error) {
+        var decoder = ContentDecoder.of(encoding, (b, off, len) -> {
+        });
+        decoder.accept(encoded, 0, encoded.length);
+        check(error.equals(decoder.getError()), label, "error " + decoder.getError() + " instead of " + error);
+        check(!decoder.isFinished(), label, "a malformed body counts as finished");
+        System.out.println("* " + label + ": OK");
+    }
+
+    /**
+     * Feeds every proper prefix of {@code encoded}, which must neither finish
+     * nor decode anything but a prefix of {@code text}.
+     */
+    private static void early(String label, String encoding, byte[] encoded, byte[] text) {
+        for (int i = 0; i < encoded.length; i++) {
+            var decoded = new ByteArrayOutputStream();
+            var decoder = ContentDecoder.of(encoding, decoded::write);
+            decoder.accept(encoded, 0, i);
+            decoder.close();
+            var body = decoded.toByteArray();
+            check(!decoder.isFinished(), label, "finished after " + i + " bytes");
+            check(Arrays.equals(body, 0, body.length, text, 0, Math.min(body.length, text.length)), label,
+                  "after " + i + " bytes: not a prefix of the body");
+        }
+        System.out.println("* " + label + ", cut at each of " + encoded.length + " offsets: OK");
+    }
+
+    private static void check(boolean ok, String label, String failure) {
+        if (!ok) {
+            System.out.println("* " + label + ": FAILED, " + failure);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return some html, repetitive enough to compress well but not only
+     * made of back references
+     */
+    private static byte[] page(int size) {
+        var random = new Random(42);
+        var html = new StringBuilder("<html><body>\n");
+        while (html.length() < size) {
+            html.append("<p><a href=\"/page-").append(random.nextInt(1000)).append(".html\">link ")
+                .append(Long.toHexString(random.nextLong())).append("</a></p>\n");
+        }
+        return html.append("</body></html>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] data, boolean raw) {
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        deflater.setInput(data);
+        deflater.finish();
+        var out = new ByteArrayOutputStream();
+        var buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return {@code data} as a gzip member with the given optional header
+     * fields
+     */
+    private static byte[] gzip(byte[] data, int flags) {
+        var out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{0x1f, (byte) 0x8b, 8, (byte) flags, 1, 2, 3, 4, 0, (byte) 255});
+        if ((flags & FEXTRA) != 0) {
+            var extra = "AB\u0003\u0000xyz".getBytes(StandardCharsets.ISO_8859_1);
+            out.write(extra.length);
+            out.write(0);
+            out.writeBytes(extra);
+        }
+        if ((flags & FNAME) != 0) {
+            out.writeBytes("page.html\0".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if ((flags & FCOMMENT) != 0) {
+            out.writeBytes("a comment\0".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if ((flags & FHCRC) != 0) {
+            var crc = new CRC32();
+            crc.update(out.toByteArray());
+            out.write((int) crc.getValue());
+            out.write((int) crc.getValue() >>> 8);
+        }
+        out.writeBytes(deflate(data, true));
+        var crc = new CRC32();
+        crc.update(data);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i));
+        }
+    }
+
+}
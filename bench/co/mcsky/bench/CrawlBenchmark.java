@@ -0,0 +1,179 @@
+package co.mcsky.bench;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.util.ConnectionPool;
+import co.mcsky.util.CrawlEngine;
+import co.mcsky.util.FetchStrategy;
+import co.mcsky.util.Log;
+import co.mcsky.util.NioCrawler;
+import co.mcsky.util.RateLimiter;
+import co.mcsky.util.SimpleCrawler;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Crawls a synthetic site served by a {@link MockHttpServer} from end to end,
+ * with each way the crawler can fetch pages, and measures the whole crawl:
+ * pages and bytes per second, the p50 and p99 latency of a fetch, and the
+ * peak heap.
+ *
+ * <p>Run with {@code make bench}, or on its own with {@code [pages]
+ * [latency in ms]} as arguments. Every mode crawls the site once to warm up,
+ * then once more for the numbers. The peak heap is the sum of the peaks of
+ * the heap pools during the measured crawl, so it may overstate the real
+ * peak a little.
+ */
+public class CrawlBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        var site = new MockHttpServer.Site()
+                .pages(args.length > 0 ? Integer.parseInt(args[0]) : 2000)
+                .latencyMillis(args.length > 1 ? Long.parseLong(args[1]) : 1);
+        // The crawler is chatty, keep its log out of the way
+        Log.configure(Log.Level.WARN, false);
+        try (var server = new MockHttpServer(site)) {
+            System.out.println("* " + site + ", " + site.expectedUrls() + " URLs expected");
+            run("HTTP/1.0, 8 threads", server, site, latencies -> blocking(server, latencies, 8, false, false));
+            run("HTTP/1.1 keep-alive, 8 threads", server, site, latencies -> blocking(server, latencies, 8, true, false));
+            run("keep-alive + HEAD, 8 threads", server, site, latencies -> blocking(server, latencies, 8, true, true));
+            run("non-blocking, 64 in flight", server, site, latencies -> nonBlocking(server, latencies, 64));
+        }
+    }
+
+    private static void run(String label, MockHttpServer server, MockHttpServer.Site site, Mode mode) throws IOException {
+        crawl(server, mode, new Latencies()); // warm-up
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        var latencies = new Latencies();
+        var bytesBefore = server.getBytesSent();
+        var start = System.nanoTime();
+        var urls = crawl(server, mode, latencies);
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var bytes = server.getBytesSent() - bytesBefore;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("  %-32s %6d URLs%s %9.1f pages/s %7.1f MB/s   p50 %6.2f ms   p99 %6.2f ms   peak heap %5d MB%n",
+                          label, urls, urls == site.expectedUrls() ? "  " : " !",
+                          latencies.size() / seconds, bytes / seconds / (1 << 20),
+                          latencies.percentile(0.50) / 1e6, latencies.percentile(0.99) / 1e6, peakHeap >> 20);
+    }
+
+    /**
+     * @return the number of distinct URLs crawled
+     */
+    private static long crawl(MockHttpServer server, Mode mode, Latencies latencies) throws IOException {
+        try (var engine = mode.engine(latencies)) {
+            engine.engine.setRetainResponses(false);
+            engine.engine.crawl(new SimpleURL("http://" + server.getHost() + ":" + server.getPort()));
+            return engine.engine.getReport().getTotal();
+        }
+    }
+
+    private static Engine blocking(MockHttpServer server, Latencies latencies, int threads, boolean keepAlive, boolean probe) {
+        var crawler = new SimpleCrawler(0L, Set.of(server.getHost() + ":" + server.getPort())) {
+            @Override
+            public SimpleHttpResponse request(SimpleURL url, Consumer<String> onLink) {
+                var start = System.nanoTime();
+                try {
+                    return super.request(url, onLink);
+                } finally {
+                    latencies.add(System.nanoTime() - start);
+                }
+            }
+        };
+        var pool = keepAlive ? new ConnectionPool(threads, 30_000L) : null;
+        crawler.setConnectionPool(pool);
+        if (probe) {
+            crawler.setFetchStrategy(new FetchStrategy(-1, true));
+        }
+        return new Engine(new CrawlEngine(crawler, threads), pool == null ? () -> {
+        } : pool::close);
+    }
+
+    private static Engine nonBlocking(MockHttpServer server, Latencies latencies, int inFlight) throws IOException {
+        var crawler = new NioCrawler(new RateLimiter(0L), Set.of(server.getHost() + ":" + server.getPort()), 2) {
+            @Override
+            public CompletableFuture<SimpleHttpResponse> request(SimpleURL url) {
+                var start = System.nanoTime();
+                var future = super.request(url);
+                future.whenComplete((response, e) -> latencies.add(System.nanoTime() - start));
+                return future;
+            }
+        };
+        return new Engine(new CrawlEngine(crawler, inFlight), crawler::close);
+    }
+
+    @FunctionalInterface
+    private interface Mode {
+
+        Engine engine(Latencies latencies) throws IOException;
+
+    }
+
+    /**
+     * An engine and what to close after its crawl.
+     */
+    private static class Engine implements AutoCloseable {
+
+        final CrawlEngine engine;
+        final Runnable close;
+
+        Engine(CrawlEngine engine, Runnable close) {
+            this.engine = engine;
+            this.close = close;
+        }
+
+        @Override
+        public void close() {
+            close.run();
+        }
+
+    }
+
+    /**
+     * The latencies of the fetches, in nanoseconds.
+     */
+    private static class Latencies {
+
+        private long[] nanos = new long[1024];
+        private int size;
+
+        synchronized void add(long latency) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = latency;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long percentile(double p) {
+            if (size == 0) {
+                return 0;
+            }
+            var sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(size - 1, Math.ceil(p * size) - 1)];
+        }
+
+    }
+
+}
@@ -0,0 +1,168 @@
+package co.mcsky.bench;
+
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.util.HttpResponseParser;
+import co.mcsky.util.HttpResponseReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Checks {@link HttpResponseParser} on responses fed in two pieces, split at
+ * every byte offset, as a network may cut them: bodies framed by {@code
+ * Content-Length}, chunked bodies with extensions and trailers, bodies read
+ * until the connection closes, and responses pipelined on one connection,
+ * where the bytes of the next response go back through a pushback stream.
+ *
+ * <p>Run with {@code make check}, or on its own without arguments. Exits
+ * with {@code 1} on the first failure.
+ */
+public class HttpResponseParserCheck {
+
+    private static final SimpleURL URL = new SimpleURL("http://localhost/");
+
+    public static void main(String[] args) throws IOException {
+        var body = "<html><body><a href=\"/a.html\">a</a> and <a href=\"/b.html\">b</a></body></html>\n";
+
+        var fixed = ascii("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+        whole("Content-Length", fixed, 200, body, body.length());
+
+        var chunked = ascii("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                            "1a\r\n" + body.substring(0, 26) + "\r\n" +
+                            "0000A;name=value;flag\r\n" + body.substring(26, 36) + "\r\n" +
+                            Integer.toHexString(body.length() - 36).toUpperCase() + " \r\n" + body.substring(36) + "\r\n" +
+                            "0;last\r\nExpires: never\r\nX-Trailer: yes\r\n\r\n");
+        whole("chunked, with extensions and trailers", chunked, 200, body, -1);
+
+        var lone = ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                         Integer.toHexString(body.length()) + "\r\n" + body + "\r\n0\r\n\r\n");
+        whole("chunked, without trailers", lone, 200, body, -1);
+
+        var empty = ascii("HTTP/1.1 304 Not Modified\r\nContent-Length: 1234\r\nETag: \"x\"\r\n\r\n");
+        whole("304 without a body whatever its Content-Length", empty, 304, "", 1234);
+
+        var untilClose = ascii("HTTP/1.0 200 OK\r\nContent-Type: text/html\r\n\r\n" + body);
+        untilClose("read until close", untilClose, body);
+
+        var stream = new ByteArrayOutputStream();
+        stream.writeBytes(chunked);
+        stream.writeBytes(empty);
+        stream.writeBytes(fixed);
+        pipelined("pipelined chunked, 304 and Content-Length", stream.toByteArray(),
+                  new String[]{body, "", body}, new int[]{200, 304, 200});
+        System.out.println("* All http response parser checks passed");
+    }
+
+    /**
+     * Feeds a response which ends by itself, followed by the start of another
+     * one, in two pieces split at every offset.
+     */
+    private static void whole(String label, byte[] response, int status, String body, long contentLength)
+            throws IOException {
+        var next = ascii("HTTP/1.1 200 OK\r\n");
+        var bytes = Arrays.copyOf(response, response.length + next.length);
+        System.arraycopy(next, 0, bytes, response.length, next.length);
+        for (int i = 0; i <= bytes.length; i++) {
+            var received = new ByteArrayOutputStream();
+            var parser = new HttpResponseParser(received::write);
+            var used = parser.feed(bytes, 0, i);
+            if (used == i) {
+                used += parser.feed(bytes, i, bytes.length - i);
+            }
+            var at = "split at " + i + ": ";
+            check(parser.isComplete(), label, at + "not complete");
+            check(used == response.length, label, at + used + " bytes consumed instead of " + response.length);
+            check(parser.getStatusCode() == status, label, at + "status " + parser.getStatusCode());
+            check(parser.getContentLength() == contentLength, label, at + "Content-Length " + parser.getContentLength());
+            check(received.toString(StandardCharsets.ISO_8859_1).equals(body), label, at + "wrong body");
+            check(parser.getBodyLength() == body.length(), label, at + "body length " + parser.getBodyLength());
+        }
+        System.out.println("* " + label + ", split at each of " + (bytes.length + 1) + " offsets: OK");
+    }
+
+    private static void untilClose(String label, byte[] response, String body) throws IOException {
+        for (int i = 0; i <= response.length; i++) {
+            var received = new ByteArrayOutputStream();
+            var parser = new HttpResponseParser(received::write);
+            var used = parser.feed(response, 0, i) + parser.feed(response, i, response.length - i);
+            var at = "split at " + i + ": ";
+            check(used == response.length, label, at + used + " bytes consumed instead of " + response.length);
+            check(!parser.isComplete(), label, at + "complete before the connection is closed");
+            check(!parser.isKeepAlive(), label, at + "keep-alive");
+            parser.endOfInput();
+            check(parser.isComplete(), label, at + "not complete once the connection is closed");
+            check(received.toString(StandardCharsets.ISO_8859_1).equals(body), label, at + "wrong body");
+        }
+        System.out.println("* " + label + ", split at each of " + (response.length + 1) + " offsets: OK");
+    }
+
+    /**
+     * Reads several responses off one stream handing out the bytes in two
+     * reads, split at every offset, the bytes read beyond a response being
+     * pushed back for the next one.
+     */
+    private static void pipelined(String label, byte[] stream, String[] bodies, int[] statuses) throws IOException {
+        for (int i = 0; i <= stream.length; i++) {
+            var in = HttpResponseReader.pushback(new Split(stream, i));
+            var at = "split at " + i + ": ";
+            for (int r = 0; r < bodies.length; r++) {
+                var message = HttpResponseReader.read(in, false);
+                var response = message.toResponse(URL, StandardCharsets.ISO_8859_1);
+                check(message.isComplete(), label, at + "response " + r + " not complete");
+                check(message.getParser().getStatusCode() == statuses[r], label,
+                      at + "response " + r + " has status " + message.getParser().getStatusCode());
+                check(response.getBody().equals(bodies[r]), label, at + "response " + r + " has a wrong body");
+            }
+            check(in.read() == -1, label, at + "bytes left after the last response");
+        }
+        System.out.println("* " + label + ", split at each of " + (stream.length + 1) + " offsets: OK");
+    }
+
+    private static void check(boolean ok, String label, String failure) {
+        if (!ok) {
+            System.out.println("* " + label + ": FAILED, " + failure);
+            System.exit(1);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * A stream which hands out the bytes before {@code split} and the bytes
+     * after it in separate reads, whatever the size of the buffer.
+     */
+    private static final class Split extends InputStream {
+
+        private final byte[] bytes;
+        private final int split;
+        private int pos;
+
+        Split(byte[] bytes, int split) {
+            this.bytes = bytes;
+            this.split = split;
+        }
+
+        @Override
+        public int read() {
+            return pos < bytes.length ? bytes[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos == bytes.length) {
+                return -1;
+            }
+            var n = Math.min(len, (pos < split ? split : bytes.length) - pos);
+            System.arraycopy(bytes, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+    }
+
+}
@@ -0,0 +1,494 @@
+package co.mcsky.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local http server serving a synthetic site, so that the crawler can be
+ * run end to end without a live site.
+ *
+ * <p>The site is a tree of html pages: the root is page 0, and page {@code n}
+ * links to pages {@code n * fanOut + 1} to {@code n * fanOut + fanOut}, down
+ * to the given depth and up to the given number of pages. Every page also
+ * links back to the root. Which kind of URL links to a page is drawn from its
+ * number, so it is the same on every run:
+ * <ul>
+ *     <li>{@code /p/<n>.html}, the page itself, padded to the page size;</li>
+ *     <li>the same, plus {@code /r/<n>}, a {@code 302} redirecting to it;</li>
+ *     <li>{@code /gone/<n>.html}, a {@code 404};</li>
+ *     <li>{@code /img/<n>.png}, an image of the page size.</li>
+ * </ul>
+ * The pages below a broken link or an image cannot be reached, as on a real
+ * site. {@link Site#expectedUrls()} tells how many URLs a crawl should find.
+ *
+ * <p>Requests are answered with the version they were sent with: {@code
+ * HTTP/1.0} closes the connection after the response, {@code HTTP/1.1} keeps
+ * it open (and so allows pipelining) unless asked to close it. Pages are
+ * compressed with {@code gzip} when the request accepts it. Every response
+ * can be delayed by an artificial latency.
+ *
+ * <p>Several servers can serve the same site as several hosts, whose roots
+ * link to each other (see {@link Site#peers(List)}). Run on its own with
+ * {@code [hosts] [pages]} as arguments, it serves the site on that many hosts,
+ * prints their {@code host:port} one per line and serves until its input is
+ * closed, which is how {@code make cluster-test} gets its hosts.
+ */
+public class MockHttpServer implements Closeable {
+
+    private static final String LAST_MODIFIED = "Fri, 02 Oct 2026 10:00:00 GMT";
+
+    private final Site site;
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Starts serving a site on a free port of the loopback address.
+     *
+     * @param site the shape of the site
+     *
+     * @throws IOException if the server cannot listen
+     */
+    public MockHttpServer(Site site) throws IOException {
+        this.site = site;
+        this.server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.connections = Executors.newCachedThreadPool(r -> {
+            var t = new Thread(r, "mock-http-connection");
+            t.setDaemon(true);
+            return t;
+        });
+        var acceptor = new Thread(this::accept, "mock-http-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        var hosts = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        var site = new Site().pages(args.length > 1 ? Integer.parseInt(args[1]) : 200);
+        var servers = new ArrayList<MockHttpServer>();
+        var hostPorts = new ArrayList<String>();
+        try {
+            for (int i = 0; i < hosts; i++) {
+                var server = new MockHttpServer(site);
+                servers.add(server);
+                hostPorts.add(server.getHost() + ":" + server.getPort());
+            }
+            site.peers(hostPorts);
+            hostPorts.forEach(System.out::println);
+            System.out.flush();
+            while (System.in.read() != -1) {
+                // Serving until the input is closed
+            }
+        } finally {
+            for (MockHttpServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * @return the host the server listens on
+     */
+    public String getHost() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the number of requests answered so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of bytes sent so far, heads included
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                var socket = server.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            var in = new BufferedInputStream(socket.getInputStream());
+            var out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            while (true) {
+                var request = readHead(in);
+                if (request == null) {
+                    return;
+                }
+                var keepAlive = respond(request, out);
+                // Pipelined requests already waiting are answered before flushing
+                if (in.available() == 0 || !keepAlive) {
+                    out.flush();
+                }
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The crawler has gone away
+        }
+    }
+
+    /**
+     * @return the head of the next request, or {@code null} at the end of the
+     * stream
+     */
+    private static String readHead(InputStream in) throws IOException {
+        var head = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            head.append((char) c);
+            var n = head.length();
+            if (n >= 4 && head.charAt(n - 1) == '\n' && head.charAt(n - 2) == '\r' &&
+                head.charAt(n - 3) == '\n' && head.charAt(n - 4) == '\r') {
+                return head.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the connection stays open
+     */
+    private boolean respond(String request, OutputStream out) throws IOException {
+        var lines = request.split("\r\n");
+        var parts = lines[0].split(" ");
+        var path = parts.length > 1 ? parts[1] : "/";
+        var headOnly = parts[0].equals("HEAD");
+        var http11 = parts.length > 2 && parts[2].equals("HTTP/1.1");
+        var keepAlive = http11 && !request.toLowerCase().contains("\r\nconnection: close");
+        var gzip = request.toLowerCase().matches("(?s).*\r\naccept-encoding:[^\r]*gzip.*");
+
+        if (site.latencyMillis > 0) {
+            try {
+                Thread.sleep(site.latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Server closed");
+            }
+        }
+
+        var version = http11 ? "HTTP/1.1" : "HTTP/1.0";
+        var connection = keepAlive ? "keep-alive" : "close";
+        byte[] head;
+        byte[] body;
+        var number = number(path);
+        if (path.equals("/") || (path.startsWith("/p/") && number >= 0 && number < site.size())) {
+            body = site.page(path.equals("/") ? 0 : number, getHost() + ":" + getPort());
+            if (gzip) {
+                body = gzip(body);
+            }
+            head = head(version, "200 OK", "text/html", body.length, connection, null, gzip);
+        } else if (path.startsWith("/img/") && number >= 0 && number < site.size()) {
+            body = new byte[site.pageSize];
+            head = head(version, "200 OK", "image/png", body.length, connection, null, false);
+        } else if (path.startsWith("/r/") && number >= 0 && number < site.size()) {
+            body = new byte[0];
+            head = head(version, "302 Found", "text/html", 0, connection,
+                        "http://" + getHost() + ":" + getPort() + "/p/" + number + ".html", false);
+        } else {
+            body = "<html><body>Not Found</body></html>".getBytes(StandardCharsets.ISO_8859_1);
+            head = head(version, "404 Not Found", "text/html", body.length, connection, null, false);
+        }
+        if (headOnly) {
+            body = new byte[0];
+        }
+        out.write(head);
+        out.write(body);
+        requests.incrementAndGet();
+        bytesSent.addAndGet(head.length + body.length);
+        return keepAlive;
+    }
+
+    private static byte[] head(String version, String status, String type, int length, String connection, String location,
+                               boolean gzip) {
+        return (version + " " + status + "\r\n" +
+                "Server: MockHttpServer\r\n" +
+                "Content-Type: " + type + "\r\n" +
+                (gzip ? "Content-Encoding: gzip\r\n" : "") +
+                "Content-Length: " + length + "\r\n" +
+                "Last-Modified: " + LAST_MODIFIED + "\r\n" +
+                (location == null ? "" : "Location: " + location + "\r\n") +
+                "Connection: " + connection + "\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        var out = new ByteArrayOutputStream(body.length / 2);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the page number in a path like {@code /p/12.html}, or {@code -1}
+     */
+    private static int number(String path) {
+        var from = path.indexOf('/', 1) + 1;
+        var to = from;
+        while (to < path.length() && Character.isDigit(path.charAt(to))) {
+            to++;
+        }
+        if (from == 0 || to == from || to - from > 9) {
+            return -1;
+        }
+        return Integer.parseInt(path.substring(from, to));
+    }
+
+    /**
+     * The shape of a synthetic site. Ratios are fractions of the links, the
+     * rest of the links go to plain pages.
+     */
+    public static class Site {
+
+        int pages = 1000;
+        int fanOut = 10;
+        int depth = 4;
+        int pageSize = 8 * 1024;
+        double redirectRatio = 0.05;
+        double notFoundRatio = 0.05;
+        double imageRatio = 0.1;
+        long latencyMillis;
+        volatile List<String> peers = List.of();
+
+        /**
+         * @param pages the max number of pages
+         *
+         * @return this site
+         */
+        public Site pages(int pages) {
+            this.pages = pages;
+            return this;
+        }
+
+        /**
+         * @param fanOut the number of links from a page to the next level
+         *
+         * @return this site
+         */
+        public Site fanOut(int fanOut) {
+            this.fanOut = fanOut;
+            return this;
+        }
+
+        /**
+         * @param depth the number of levels below the root
+         *
+         * @return this site
+         */
+        public Site depth(int depth) {
+            this.depth = depth;
+            return this;
+        }
+
+        /**
+         * @param pageSize the size of every page and image, in bytes
+         *
+         * @return this site
+         */
+        public Site pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * @param redirectRatio the fraction of links which are redirects
+         *
+         * @return this site
+         */
+        public Site redirectRatio(double redirectRatio) {
+            this.redirectRatio = redirectRatio;
+            return this;
+        }
+
+        /**
+         * @param notFoundRatio the fraction of links which are broken
+         *
+         * @return this site
+         */
+        public Site notFoundRatio(double notFoundRatio) {
+            this.notFoundRatio = notFoundRatio;
+            return this;
+        }
+
+        /**
+         * @param imageRatio the fraction of links which are images
+         *
+         * @return this site
+         */
+        public Site imageRatio(double imageRatio) {
+            this.imageRatio = imageRatio;
+            return this;
+        }
+
+        /**
+         * @param latencyMillis how long every response is held back
+         *
+         * @return this site
+         */
+        public Site latencyMillis(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        /**
+         * @param peers the {@code host:port} of every server of the site,
+         *              whose roots link to the roots of all the others. This
+         *              must be set before the site is crawled
+         *
+         * @return this site
+         */
+        public Site peers(List<String> peers) {
+            this.peers = List.copyOf(peers);
+            return this;
+        }
+
+        /**
+         * @return the number of pages, that is the number of nodes of the
+         * tree within the depth, at most {@link #pages(int)}
+         */
+        public int size() {
+            long size = 0;
+            long level = 1;
+            for (int d = 0; d <= depth && size < pages; d++) {
+                size += level;
+                level *= fanOut;
+            }
+            return (int) Math.min(size, pages);
+        }
+
+        /**
+         * @return the number of distinct URLs a crawl of the site on a single
+         * host finds, walking the tree from the root
+         */
+        public int expectedUrls() {
+            var urls = 1;
+            var pending = new ArrayDeque<Integer>();
+            pending.push(0);
+            while (!pending.isEmpty()) {
+                var n = pending.pop();
+                for (long child = (long) n * fanOut + 1; child <= (long) n * fanOut + fanOut && child < size(); child++) {
+                    var kind = kind((int) child);
+                    urls += kind == 'r' ? 2 : 1;
+                    if (kind == 'p' || kind == 'r') {
+                        pending.push((int) child);
+                    }
+                }
+            }
+            return urls;
+        }
+
+        /**
+         * @return how page {@code n} is linked: {@code 'r'}edirect, {@code
+         * 'g'}one, {@code 'i'}mage or {@code 'p'}age
+         */
+        char kind(int n) {
+            if (n == 0) {
+                return 'p';
+            }
+            // A fixed hash of n in [0, 1), so the site is the same on every run
+            var h = (n * 0x9E3779B97F4A7C15L) >>> 11;
+            var x = h / (double) (1L << 53);
+            if (x < redirectRatio) {
+                return 'r';
+            }
+            if (x < redirectRatio + notFoundRatio) {
+                return 'g';
+            }
+            if (x < redirectRatio + notFoundRatio + imageRatio) {
+                return 'i';
+            }
+            return 'p';
+        }
+
+        byte[] page(int n, String hostPort) {
+            var html = new StringBuilder(pageSize + 256);
+            html.append("<html><head><title>Page ").append(n).append("</title></head><body>\n");
+            html.append("<a href=\"/\">home</a>\n");
+            if (n == 0) {
+                for (String peer : peers) {
+                    if (!peer.equals(hostPort)) {
+                        html.append("<a href=\"http://").append(peer).append("/\">").append(peer).append("</a>\n");
+                    }
+                }
+            }
+            for (long child = (long) n * fanOut + 1; child <= (long) n * fanOut + fanOut && child < size(); child++) {
+                var c = (int) child;
+                switch (kind(c)) {
+                    case 'r':
+                        html.append("<a href=\"/r/").append(c).append("\">moved</a>\n");
+                        html.append("<a href=\"/p/").append(c).append(".html\">page ").append(c).append("</a>\n");
+                        break;
+                    case 'g':
+                        html.append("<a href=\"http://").append(hostPort).append("/gone/").append(c).append(".html\">gone</a>\n");
+                        break;
+                    case 'i':
+                        html.append("<img src=\"/img/").append(c).append(".png\" alt=\"\">\n");
+                        break;
+                    default:
+                        html.append("<a href=\"/p/").append(c).append(".html\">page ").append(c).append("</a>\n");
+                        break;
+                }
+            }
+            while (html.length() < pageSize - 20) {
+                html.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n");
+            }
+            html.append("</body></html>\n");
+            return html.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d pages, fan-out %d, depth %d, %d B/page, %.0f%% redirects, %.0f%% 404s, %.0f%% images, %d ms latency",
+                                 size(), fanOut, depth, pageSize, redirectRatio * 100, notFoundRatio * 100, imageRatio * 100, latencyMillis);
+        }
+
+    }
+
+}
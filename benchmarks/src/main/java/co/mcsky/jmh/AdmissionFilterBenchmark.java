@@ -0,0 +1,81 @@
+package co.mcsky.jmh;
+
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.util.AdmissionFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deciding whether the URLs a crawl finds may be queued, with a handful of
+ * rules of every kind.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdmissionFilterBenchmark {
+
+    private static final int URLS = 1024;
+
+    private SimpleURL[] urls;
+    private AdmissionFilter filter;
+
+    @Setup
+    public void setUp() {
+        urls = new SimpleURL[URLS];
+        for (int i = 0; i < URLS; i++) {
+            var host = (i % 3 == 0 ? "ads.site" : "www.site") + (i % 20) + ".example.com";
+            switch (i % 4) {
+                case 0:
+                    urls[i] = new SimpleURL("http://" + host + "/articles/" + i + "/index.html");
+                    break;
+                case 1:
+                    urls[i] = new SimpleURL("http://" + host + "/img/" + i + ".png");
+                    break;
+                case 2:
+                    urls[i] = new SimpleURL("http://" + host + "/cgi-bin/search?q=" + i);
+                    break;
+                default:
+                    urls[i] = new SimpleURL("http://" + host + "/a/b/c/d/e/f/" + i + ".html");
+                    break;
+            }
+        }
+        filter = new AdmissionFilter.Builder()
+                .allowHost("example.com")
+                .denyHost("ads.site3.example.com")
+                .denyHost("ads.site7.example.com")
+                .denyPath("/cgi-bin/")
+                .denyPath("/private/")
+                .denyExtension("png")
+                .denyExtension("jpg")
+                .denyExtension("zip")
+                .maxDepth(5)
+                .build();
+    }
+
+    /**
+     * Decides a batch of URLs.
+     */
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void admits(Blackhole bh) {
+        for (SimpleURL url : urls) {
+            bh.consume(filter.admits(url));
+        }
+    }
+
+}
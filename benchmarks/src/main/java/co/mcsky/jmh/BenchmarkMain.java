@@ -0,0 +1,41 @@
+package co.mcsky.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH launcher does, taking the same options,
+ * but always with the GC profiler on, so that every benchmark reports its
+ * allocation rate ({@code gc.alloc.rate.norm}, in bytes per operation) next to
+ * its throughput.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions cmd;
+        try {
+            cmd = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        var runner = new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+        if (cmd.shouldHelp()) {
+            try {
+                cmd.showHelp();
+            } catch (java.io.IOException e) {
+                System.err.println("Cannot show help: " + e.getMessage());
+            }
+        } else if (cmd.shouldList()) {
+            runner.list();
+        } else {
+            runner.run();
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package co.mcsky.jmh;
+
+/**
+ * Synthetic http responses for the benchmarks, shaped like the pages of a
+ * crawl: a head, then html with a link every few hundred bytes.
+ */
+final class Documents {
+
+    private Documents() {
+    }
+
+    /**
+     * @param size the rough size of the body, in characters
+     *
+     * @return a {@code 200} html response whose body is about {@code size}
+     * characters long
+     */
+    static String htmlResponse(int size) {
+        var body = new StringBuilder(size + 256);
+        body.append("<html><head><title>page</title></head><body>\n");
+        for (int i = 0; body.length() < size; i++) {
+            body.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor ")
+                .append("incididunt ut labore et dolore magna aliqua.</p>\n");
+            switch (i % 3) {
+                case 0:
+                    body.append("<a href=\"/articles/").append(i).append("/index.html\">article</a>\n");
+                    break;
+                case 1:
+                    body.append("<img src=\"/img/").append(i).append(".png\" alt=\"\">\n");
+                    break;
+                default:
+                    body.append("<a href=\"http://www.site").append(i % 7).append(".example.com/page?id=")
+                        .append(i).append("\">elsewhere</a>\n");
+                    break;
+            }
+        }
+        body.append("</body></html>\n");
+        return head(body.length()) + body;
+    }
+
+    private static String head(int contentLength) {
+        return "HTTP/1.1 200 OK\r\n" +
+               "Date: Fri, 16 Oct 2026 20:50:32 GMT\r\n" +
+               "Server: Apache/2.4.41 (Ubuntu)\r\n" +
+               "Last-Modified: Wed, 14 Oct 2026 09:12:45 GMT\r\n" +
+               "ETag: \"2aa6-5b1e0e0c3f4c0\"\r\n" +
+               "Content-Length: " + contentLength + "\r\n" +
+               "Content-Type: text/html; charset=UTF-8\r\n" +
+               "Connection: keep-alive\r\n" +
+               "\r\n";
+    }
+
+}
@@ -0,0 +1,118 @@
+package co.mcsky.jmh;
+
+import co.mcsky.util.LinkExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * {@link LinkExtractor} against the regex {@code StringUtil.extractUrls} used
+ * to run, on a large ordinary page and on pages which make the regex
+ * backtrack. The regex is quadratic or worse on the latter (the last one far
+ * worse), so they are kept small.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LinkExtractorBenchmark {
+
+    private static final Pattern REGEX = Pattern.compile("<.*?(?:href|src)=\"(.*?)\">?.*?(?:</a>|>)");
+
+    private static final int CHUNK = 8192;
+
+    /**
+     * {@code large}: 2 MB, 20k links. {@code unterminatedHref}: 8 KB on one
+     * line. {@code tagsWithoutLinks}: 8 KB on one line. {@code
+     * quotesInText}: 360 bytes on one line.
+     */
+    @Param({"large", "unterminatedHref", "tagsWithoutLinks", "quotesInText"})
+    public String page;
+
+    private String text;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        switch (page) {
+            case "large":
+                text = largePage(20_000);
+                break;
+            case "unterminatedHref":
+                text = "<a href=\"x" + "y".repeat(8_000);
+                break;
+            case "tagsWithoutLinks":
+                text = "<b>".repeat(2_700) + "text";
+                break;
+            case "quotesInText":
+                text = "<p href=\"".repeat(40) + "\"";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown page: " + page);
+        }
+        bytes = text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The baseline, the regex over the whole page.
+     */
+    @Benchmark
+    public List<String> regex() {
+        var links = new ArrayList<String>();
+        var matcher = REGEX.matcher(text);
+        while (matcher.find()) {
+            links.add(matcher.group(1));
+        }
+        return links;
+    }
+
+    /**
+     * The extractor over the whole page as a string.
+     */
+    @Benchmark
+    public List<String> extractorChars() {
+        return LinkExtractor.extract(text);
+    }
+
+    /**
+     * The extractor fed the page in network-sized byte chunks, as a crawl
+     * does.
+     */
+    @Benchmark
+    public List<String> extractorChunks() {
+        var links = new ArrayList<String>();
+        var extractor = new LinkExtractor(links::add);
+        for (int off = 0; off < bytes.length; off += CHUNK) {
+            extractor.feed(bytes, off, Math.min(CHUNK, bytes.length - off));
+        }
+        extractor.end();
+        return links;
+    }
+
+    private static String largePage(int links) {
+        var sb = new StringBuilder("<!DOCTYPE html>\n<html><head><title>Large</title></head><body>\n");
+        for (int i = 0; i < links; i++) {
+            sb.append("<div class=\"item\"><p>Some paragraph text number ").append(i)
+              .append(" with a bit of <b>markup</b> in it.</p>\n<a href=\"/page").append(i)
+              .append(".html\">link ").append(i).append("</a><img src=\"/img").append(i).append(".png\"></div>\n");
+        }
+        return sb.append("</body></html>\n").toString();
+    }
+
+}
@@ -0,0 +1,92 @@
+package co.mcsky.jmh;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.util.ReportAss2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReportAss2} over a large synthetic crawl, aggregating the responses
+ * and printing the report. The output goes nowhere, so the printing costs
+ * what formatting costs. One operation is one whole report.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+
+    @Param({"10000", "100000"})
+    public int responses;
+
+    private SimpleURL site;
+    private Set<SimpleHttpResponse> crawled;
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() {
+        site = new SimpleURL("http://www.site0.example.com:80");
+        crawled = new HashSet<>();
+        var modified = ZonedDateTime.of(2026, 1, 1, 9, 12, 45, 0, ZoneOffset.UTC);
+        for (int i = 0; i < responses; i++) {
+            String head;
+            String host = "www.site0.example.com";
+            switch (i % 20) {
+                case 0:
+                    head = "HTTP/1.0 404 Not Found\r\nContent-Type: text/html\r\nContent-Length: 120\r\n\r\n";
+                    break;
+                case 1:
+                    head = "HTTP/1.0 301 Moved Permanently\r\nLocation: http://" + host + "/moved/" + i + ".html\r\n\r\n";
+                    break;
+                case 2:
+                    head = "HTTP/1.0 200 OK\r\nContent-Type: image/png\r\nContent-Length: " + (1000 + i) + "\r\n\r\n";
+                    break;
+                case 3:
+                    host = "www.elsewhere" + (i % 50) + ".example.com";
+                    head = "";
+                    break;
+                default:
+                    head = "HTTP/1.0 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + (500 + i % 9973) + "\r\n" +
+                           "Last-Modified: " + DateTimeFormatter.RFC_1123_DATE_TIME.format(modified.plusHours(i % 1000)) + "\r\n\r\n";
+                    break;
+            }
+            var url = new SimpleURL("http://" + host + "/pages/" + i + ".html");
+            crawled.add(new SimpleHttpResponse(url, head.isEmpty() ? null : head, !head.isEmpty() || i % 2 == 0));
+        }
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public ReportAss2 report() {
+        return new ReportAss2(site, crawled);
+    }
+
+}
@@ -0,0 +1,69 @@
+package co.mcsky.jmh;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link SimpleHttpResponse} from a response received as a whole:
+ * parsing the head, extracting the links and resolving them against the
+ * page. The documents are small (2 KB), medium (64 KB) and huge (4 MB).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimpleHttpResponseBenchmark {
+
+    @Param({"small", "medium", "huge"})
+    public String document;
+
+    private SimpleURL url;
+    private String response;
+
+    @Setup
+    public void setUp() {
+        url = new SimpleURL("http://www.site0.example.com/docs/current/index.html");
+        switch (document) {
+            case "small":
+                response = Documents.htmlResponse(2 * 1024);
+                break;
+            case "medium":
+                response = Documents.htmlResponse(64 * 1024);
+                break;
+            case "huge":
+                response = Documents.htmlResponse(4 * 1024 * 1024);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown document: " + document);
+        }
+    }
+
+    @Benchmark
+    public SimpleHttpResponse construct() {
+        return new SimpleHttpResponse(url, response, true);
+    }
+
+    /**
+     * Construction followed by the metadata-only copy a large crawl keeps.
+     */
+    @Benchmark
+    public SimpleHttpResponse constructWithoutBody() {
+        return new SimpleHttpResponse(url, response, true).withoutBody();
+    }
+
+}
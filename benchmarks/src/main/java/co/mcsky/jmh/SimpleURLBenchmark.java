@@ -0,0 +1,154 @@
+package co.mcsky.jmh;
+
+import co.mcsky.struct.SimpleURL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static java.lang.Integer.parseInt;
+import static java.util.Optional.ofNullable;
+
+/**
+ * Parsing a {@link SimpleURL} from the kind of specs a crawl creates, against
+ * the regex parsing it replaced, and resolving the links of a page against
+ * it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimpleURLBenchmark {
+
+    private static final int SPECS = 1024;
+
+    private String[] specs;
+    private String[] links;
+    private SimpleURL base;
+
+    @Setup
+    public void setUp() {
+        specs = new String[SPECS];
+        links = new String[SPECS];
+        for (int i = 0; i < SPECS; i++) {
+            var host = "www.site" + (i % 20) + ".example.com";
+            switch (i % 4) {
+                case 0:
+                    specs[i] = "http://" + host + ":80/articles/" + i + "/index.html";
+                    links[i] = "../articles/" + i + "/index.html";
+                    break;
+                case 1:
+                    specs[i] = "http://" + host + "/img/" + i + ".png";
+                    links[i] = "/img/" + i + ".png";
+                    break;
+                case 2:
+                    specs[i] = "http://" + host + ":8080/search?q=" + i + "&page=2";
+                    links[i] = "search?q=" + i;
+                    break;
+                default:
+                    specs[i] = "http://" + host + ":80/docs/guide.html#section-" + i;
+                    links[i] = "http://" + host + "/docs/guide.html#section-" + i;
+                    break;
+            }
+        }
+        base = new SimpleURL("http://www.site0.example.com/docs/current/index.html");
+    }
+
+    /**
+     * Parses a batch of specs into URLs in the standard format.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SPECS)
+    public void parse(Blackhole bh) {
+        for (String spec : specs) {
+            bh.consume(new SimpleURL(spec).toString());
+        }
+    }
+
+    /**
+     * Parses a batch of specs, and asks each URL for its host and port, which
+     * is what the crawler keys most of its state by.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SPECS)
+    public void parseHostPort(Blackhole bh) {
+        for (String spec : specs) {
+            bh.consume(new SimpleURL(spec).getHostPort());
+        }
+    }
+
+    /**
+     * The baseline, parses a batch of specs the way {@link SimpleURL} used
+     * to.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SPECS)
+    public void parseRegex(Blackhole bh) {
+        for (String spec : specs) {
+            bh.consume(new RegexURL(spec).toString());
+        }
+    }
+
+    /**
+     * Resolves a batch of links, as written in a page, against the page.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SPECS)
+    public void resolve(Blackhole bh) {
+        for (String link : links) {
+            bh.consume(base.resolve(link));
+        }
+    }
+
+    /**
+     * The regex parsing {@link SimpleURL} used to do, kept here as the
+     * baseline.
+     */
+    private static class RegexURL {
+
+        private final String url;
+        private final String directory;
+        private final String file;
+
+        RegexURL(String spec) {
+            var regex = "^(?:(http):)(?://([^/?:#]+)(?::(\\d+))?)([^?#]+)?(?:\\?([^#]*))?(?:#(.+))?";
+            var pattern = Pattern.compile(regex);
+            var matcher = pattern.matcher(spec);
+            if (!matcher.find()) {
+                throw new IllegalArgumentException("Cannot recognize http URL: " + spec);
+            }
+            var protocol = ofNullable(matcher.group(1)).orElseThrow();
+            var host = ofNullable(matcher.group(2)).orElseThrow();
+            var port = parseInt(ofNullable(matcher.group(3)).orElse("80"));
+            var path = ofNullable(matcher.group(4)).orElse("/");
+            var query = ofNullable(matcher.group(5)).orElse("");
+            var fragment = ofNullable(matcher.group(6)).orElse("");
+            matcher = Pattern.compile("(.*/)(.+)?").matcher(path);
+            this.directory = matcher.find() ? matcher.group(1) : "/";
+            this.file = ofNullable(matcher.group(2)).orElse("");
+            this.url = protocol + "://" + host + ":" + port + path +
+                       (query.equals("") ? "" : "?=" + query) +
+                       (fragment.equals("") ? "" : "#" + fragment);
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+
+    }
+
+}
@@ -0,0 +1,40 @@
+package co.mcsky.jmh;
+
+import co.mcsky.struct.StatusCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StatusCode#matchCode(int)} over the mix of codes a crawl sees, mostly
+ * {@code 200} with some redirects and errors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatusCodeBenchmark {
+
+    private static final int[] CODES = {200, 200, 200, 200, 200, 200, 301, 302, 304, 404, 200, 200, 403, 500, 200, 200};
+
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public void matchCode(Blackhole bh) {
+        for (int code : CODES) {
+            bh.consume(StatusCode.matchCode(code));
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package co.mcsky.jmh;
+
+import co.mcsky.util.StringUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each {@code StringUtil.extract*} method on a whole response. The header
+ * extractors scan from the start of the response, so only the link
+ * extraction really depends on the size of the page.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringUtilBenchmark {
+
+    @Param({"2048", "65536"})
+    public int size;
+
+    private String response;
+
+    @Setup
+    public void setUp() {
+        response = Documents.htmlResponse(size);
+    }
+
+    @Benchmark
+    public List<String> extractUrls() {
+        return StringUtil.extractUrls(response);
+    }
+
+    @Benchmark
+    public Optional<String> extractModifiedTime() {
+        return StringUtil.extractModifiedTime(response);
+    }
+
+    @Benchmark
+    public Optional<String> extractStatusCode() {
+        return StringUtil.extractStatusCode(response);
+    }
+
+    @Benchmark
+    public Optional<String> extractLocation() {
+        return StringUtil.extractLocation(response); // absent, so the whole response is scanned
+    }
+
+    @Benchmark
+    public Optional<String> extractContentLength() {
+        return StringUtil.extractContentLength(response);
+    }
+
+    @Benchmark
+    public Optional<String> extractContentType() {
+        return StringUtil.extractContentType(response);
+    }
+
+}
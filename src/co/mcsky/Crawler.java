@@ -1,12 +1,35 @@
 package co.mcsky;
 
-import co.mcsky.struct.SimpleHttpResponse;
 import co.mcsky.struct.SimpleURL;
+import co.mcsky.util.AdmissionFilter;
+import co.mcsky.util.Checkpoint;
+import co.mcsky.util.ClusterNode;
+import co.mcsky.util.ConnectionPool;
+import co.mcsky.util.CrawlEngine;
+import co.mcsky.util.DnsCache;
+import co.mcsky.util.FetchMetrics;
+import co.mcsky.util.FetchStrategy;
+import co.mcsky.util.Log;
+import co.mcsky.util.NearDuplicateIndex;
+import co.mcsky.util.NioCrawler;
+import co.mcsky.util.PoliteFrontier;
 import co.mcsky.util.ReportAss2;
+import co.mcsky.util.ResponseArchive;
+import co.mcsky.util.RobotsCache;
 import co.mcsky.util.SimpleCrawler;
+import co.mcsky.util.ValidatorCache;
+import co.mcsky.util.VisitedUrlSet;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import javax.management.JMException;
 
 /**
  * A very primitive HTTP crawler.
@@ -17,24 +40,105 @@ public class Crawler {
         /*
          * Just some CLI stuff to get input host and port from users...
          * */
-        if (args.length != 3) {
-            System.err.println("Usage: java Crawler <host name> <port number> <interval>");
+        var positional = new ArrayList<String>();
+        var options = new HashSet<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                options.add(arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() != 3 && positional.size() != 4) {
+            System.err.println("Usage: java Crawler <host name> <port number> <interval> [threads] [--keep-alive | --nio] " +
+                               "[--visited=exact|fingerprint|bloom] [--validators=<file>] [--archive=<dir>] " +
+                               "[--hosts=<host:port>,...] [--cluster=<host:port>,... --node=<index>] " +
+                               "[--checkpoint=<file> [--checkpoint-interval=<seconds>] [--resume]] " +
+                               "[--metrics[=<file>] [--metrics-interval=<seconds>]] " +
+                               "[--log=debug|info|warn|error|off] [--log-drop] [--dns-ttl=<seconds>] " +
+                               "[--frontier=polite|fifo] [--dedupe[=<bits>]] [--max-body=<bytes>] [--no-probe] [--allow-hosts=<domain>,...] [--deny-hosts=<domain>,...] [--allow-paths=<prefix>,...] " +
+                               "[--deny-paths=<prefix>,...] [--deny-extensions=<ext>,...] [--max-depth=<n>] [--robots[=<agent>]]");
             System.exit(1);
         }
-        var host = args[0];
-        var port = args[1];
-        var interval = Integer.parseInt(args[2]); // 1 request per X seconds
+        var host = positional.get(0);
+        var port = positional.get(1);
+        var interval = Integer.parseInt(positional.get(2)); // 1 request per X seconds per host
+        var threads = positional.size() == 4 ? Integer.parseInt(positional.get(3)) : 8; // how many URLs are fetched at the same time
         var site = new SimpleURL("http://" + host + ":" + port);
+        // The log is written by a thread of its own, with --log-drop it loses messages rather than slow the crawl down
+        Log.configure(Log.Level.valueOf(option(options, "--log=", "info").toUpperCase(Locale.ROOT)), options.contains("--log-drop"));
 
         /*
-         * Now we initialize our crawler with a given rate limit (1 request per 2 seconds)
-         * and a whitelist which contains a list of sites which the crawler should crawl on.
+         * Now we initialize our crawler with a given rate limit (1 request per 2 seconds,
+         * counted separately for each host) and a whitelist which contains a list of sites which the crawler should crawl on.
          * The crawler should be able to skip any sites that's not in the whitelist.
          * */
         var whitelist = new HashSet<String>() {{
             add(site.getHostPort()); // Only the hosts in the whitelist will be crawled, otherwise skipping and reporting
         }};
+        // More hosts to crawl as if they were part of the site
+        for (String hostPort : option(options, "--hosts=", "").split(",")) {
+            if (!hostPort.isBlank()) {
+                whitelist.add(hostPort.strip());
+            }
+        }
         var crawler = new SimpleCrawler(interval * 1000L, whitelist);
+        // HTTP/1.1 with persistent connections saves a TCP handshake per request
+        var pool = options.contains("--keep-alive") ? new ConnectionPool(threads, 30_000L) : null;
+        crawler.setConnectionPool(pool);
+        // Every host is looked up once in a while rather than for every request, unknown hosts included
+        var dnsTtl = Integer.parseInt(option(options, "--dns-ttl=", "300")) * 1000L;
+        var dns = new DnsCache(DnsCache.Resolver.SYSTEM, dnsTtl, Math.min(dnsTtl, 60_000L));
+        crawler.setDnsCache(dns);
+        if (pool != null) {
+            pool.setDnsCache(dns);
+        }
+        // Images and other binary files cost their head alone, and no body goes over --max-body
+        var strategy = new FetchStrategy(Long.parseLong(option(options, "--max-body=", "-1")), !options.contains("--no-probe"));
+        crawler.setFetchStrategy(strategy);
+        // Only the links and the size of a page are needed, the page itself is dropped as it arrives
+        crawler.setRetainBodies(false);
+        // Re-crawls only download the pages which have changed since the last crawl
+        ValidatorCache validators = null;
+        var validatorsFile = option(options, "--validators=", null);
+        if (validatorsFile != null) {
+            try {
+                validators = new ValidatorCache(Path.of(validatorsFile));
+            } catch (IOException e) {
+                System.err.println("Cannot read validator cache: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            crawler.setValidatorCache(validators);
+        }
+        // Keeps the raw responses, to analyse the crawl again offline
+        ResponseArchive archive = null;
+        var archiveDir = option(options, "--archive=", null);
+        if (archiveDir != null) {
+            try {
+                archive = new ResponseArchive(Path.of(archiveDir));
+            } catch (IOException e) {
+                System.err.println("Cannot open response archive: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            crawler.setResponseArchive(archive);
+        }
+        // Where the time of each request goes, through JMX and in a file dumped every now and then
+        FetchMetrics metrics = null;
+        var metricsFile = option(options, "--metrics=", null);
+        if (metricsFile != null || options.contains("--metrics")) {
+            metrics = new FetchMetrics();
+            try {
+                metrics.register();
+            } catch (JMException e) {
+                System.err.println("Cannot register metrics with JMX: " + e.getMessage());
+            }
+            if (metricsFile != null) {
+                metrics.dumpPeriodically(Path.of(metricsFile), Integer.parseInt(option(options, "--metrics-interval=", "10")) * 1000L);
+            }
+            crawler.setFetchMetrics(metrics);
+        }
 
         /*
          * Since a site usually contains lots of URLs that locate in arbitrary depth,
@@ -47,26 +151,151 @@ public class Crawler {
          * perfectly. I believe that other search algorithms could work as well.
          *
          * Theoretically, it can crawl URLs of arbitrary depth on a site.
+         *
+         * Most of the time of a crawl is spent waiting on the network, so the
+         * BFS runs on several worker threads that share the queue and the set
+         * of crawled URLs (see CrawlEngine for the details).
          * */
-        // This set is used to mark what we have crawled (URL should be enough to tell distinct responses)
-        var crawledUrls = new HashSet<SimpleURL>();
-        // This set is where we store all responses we have crawled for later analysis (the report)
-        var crawledResponse = new HashSet<SimpleHttpResponse>();
-        // The queue is necessary for BFS to work
-        var que = new LinkedList<SimpleHttpResponse>();
-
-        var initialResponse = crawler.request(site);
-        crawledUrls.add(initialResponse.getHead().getURL()); // mark the initial response as crawled
-        que.add(initialResponse);
-        while (!que.isEmpty()) {
-            var currentResponse = que.remove();
-            crawledResponse.add(currentResponse);
-            var innerUrls = currentResponse.getInnerUrls(); // get all the inner URLs of this http response
-            for (SimpleURL url : innerUrls) { // and try to crawl all the inner URLs
-                if (!crawledUrls.contains(url)) {
-                    crawledUrls.add(url); // mark it as crawled
-                    que.add(crawler.request(url));
+        // Exact by default, the other modes save memory on very large crawls at the cost of skipping a few URLs
+        var visited = new VisitedUrlSet(VisitedUrlSet.Mode.of(option(options, "--visited=", "exact")), 1_000_000, 0.001);
+        NioCrawler nioCrawler = null;
+        CrawlEngine engine;
+        if (options.contains("--nio")) {
+            // Non-blocking sockets, here "threads" is just the number of requests in flight
+            try {
+                nioCrawler = new NioCrawler(crawler.getRateLimiter(), whitelist, 2);
+                nioCrawler.setValidatorCache(validators);
+                nioCrawler.setResponseArchive(archive);
+                nioCrawler.setFetchMetrics(metrics);
+                nioCrawler.setDnsCache(dns);
+                nioCrawler.setFetchStrategy(strategy);
+                nioCrawler.setRetainBodies(false);
+            } catch (IOException e) {
+                System.err.println("Cannot open selectors: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            engine = new CrawlEngine(nioCrawler, threads);
+        } else {
+            engine = new CrawlEngine(crawler, threads);
+        }
+        engine.setVisitedUrls(visited);
+        // Host by host, whichever may be fetched the soonest, so no worker waits on one host while others are ready
+        if (option(options, "--frontier=", "polite").equals("polite")) {
+            engine.setFrontier(new PoliteFrontier(crawler.getRateLimiter(), whitelist, 4, PoliteFrontier.byDepth(4), 3 * threads, 1_000));
+        }
+        engine.setDnsCache(dns);
+        // Generated or mirrored pages are counted, but their links are not followed
+        NearDuplicateIndex duplicates = null;
+        var dedupe = option(options, "--dedupe=", options.contains("--dedupe") ? "3" : null);
+        if (dedupe != null) {
+            duplicates = new NearDuplicateIndex(Integer.parseInt(dedupe));
+            engine.setNearDuplicateIndex(duplicates);
+        }
+        // URLs are filtered before they are queued, a rejected URL never touches the network
+        var rules = new AdmissionFilter.Builder();
+        for (String domain : list(options, "--allow-hosts=")) {
+            rules.allowHost(domain);
+        }
+        for (String domain : list(options, "--deny-hosts=")) {
+            rules.denyHost(domain);
+        }
+        for (String prefix : list(options, "--allow-paths=")) {
+            rules.allowPath(prefix);
+        }
+        for (String prefix : list(options, "--deny-paths=")) {
+            rules.denyPath(prefix);
+        }
+        for (String extension : list(options, "--deny-extensions=")) {
+            rules.denyExtension(extension);
+        }
+        var maxDepth = option(options, "--max-depth=", null);
+        if (maxDepth != null) {
+            rules.maxDepth(Integer.parseInt(maxDepth));
+        }
+        var filter = rules.build();
+        engine.setAdmissionFilter(filter);
+        // The robots.txt of a host is fetched like any other page of it, rate limit included, but never
+        // conditionally: a 304 would stand in for it without its body
+        RobotsCache robots = null;
+        var agent = option(options, "--robots=", options.contains("--robots") ? "homemade_crawler" : null);
+        if (agent != null) {
+            if (nioCrawler != null) {
+                robots = new RobotsCache(nioCrawler::requestUnconditionally, agent, whitelist);
+            } else {
+                robots = new RobotsCache(url -> CompletableFuture.completedFuture(crawler.requestUnconditionally(url)), agent, whitelist);
+            }
+            engine.setRobotsCache(robots);
+        }
+        // Several processes crawling together, each one taking its share of the hosts
+        ClusterNode cluster = null;
+        var clusterNodes = option(options, "--cluster=", null);
+        if (clusterNodes != null) {
+            var nodes = new ArrayList<InetSocketAddress>();
+            for (String node : clusterNodes.split(",")) {
+                var colon = node.lastIndexOf(':');
+                nodes.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+            }
+            try {
+                cluster = new ClusterNode(nodes, Integer.parseInt(option(options, "--node=", "0")));
+            } catch (IOException e) {
+                System.err.println("Cannot join the cluster: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            engine.setCluster(cluster);
+        }
+        // Saves the crawl every now and then, so that it can be resumed if it dies
+        Checkpoint checkpoint = null;
+        var checkpointFile = option(options, "--checkpoint=", null);
+        if (checkpointFile != null) {
+            try {
+                checkpoint = new Checkpoint(Path.of(checkpointFile));
+                if (options.contains("--resume")) {
+                    if (engine.resume(checkpoint)) {
+                        System.out.println("* Resuming from " + checkpointFile + ", " + engine.getVisitedUrls());
+                    } else {
+                        System.out.println("* Nothing to resume in " + checkpointFile + ", starting over");
+                    }
                 }
+            } catch (IOException e) {
+                System.err.println("Cannot use checkpoint file: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            engine.setCheckpoint(checkpoint, Integer.parseInt(option(options, "--checkpoint-interval=", "60")) * 1000L);
+        }
+        // The report is aggregated while crawling, so there is no need to keep the responses around
+        engine.setRetainResponses(false);
+        engine.crawl(site);
+        if (nioCrawler != null) {
+            nioCrawler.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                System.err.println("Cannot close response archive: " + e.getMessage());
+            }
+        }
+        if (validators != null) {
+            try {
+                validators.save();
+            } catch (IOException e) {
+                System.err.println("Cannot save validator cache: " + e.getMessage());
+            }
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException e) {
+                System.err.println("Cannot close checkpoint file: " + e.getMessage());
             }
         }
 
@@ -74,9 +303,70 @@ public class Crawler {
             Generating report
         */
 
+        Log.flush();
         System.out.println("* Crawling has completed...");
+        System.out.println("* Visited URLs: " + engine.getVisitedUrls());
+        if (archive != null) {
+            System.out.println("* Response archive: " + archive);
+        }
+        if (validators != null) {
+            System.out.println("* Validator cache: " + validators);
+        }
+        if (metrics != null) {
+            System.out.println("* Fetch metrics: " + metrics);
+        }
+        System.out.println("* DNS cache: " + dns);
+        System.out.println("* Fetch strategy: " + strategy);
+        if (duplicates != null) {
+            System.out.println("* Near-duplicates: " + duplicates);
+        }
+        System.out.println("* Admission filter: " + filter);
+        if (robots != null) {
+            System.out.println("* Robots: " + robots);
+        }
+        var report = engine.getReport();
+        if (cluster != null) {
+            System.out.println("* Cluster: " + cluster);
+            report = cluster.collect(report);
+            try {
+                cluster.close();
+            } catch (IOException e) {
+                System.err.println("Cannot leave the cluster: " + e.getMessage());
+            }
+            if (report == null) {
+                System.out.println("* Report sent to node 0");
+                return;
+            }
+        }
         System.out.println("* Generating report...");
-        new ReportAss2(site, crawledResponse);
+        new ReportAss2(report);
+    }
+
+    /**
+     * @return the value of an option like {@code --name=value}, or {@code def}
+     * if it is not given
+     */
+    private static String option(Set<String> options, String prefix, String def) {
+        for (String o : options) {
+            if (o.startsWith(prefix)) {
+                return o.substring(prefix.length());
+            }
+        }
+        return def;
+    }
+
+    /**
+     * @return the comma-separated values of an option like {@code
+     * --name=a,b,c}, none if it is not given
+     */
+    private static List<String> list(Set<String> options, String prefix) {
+        var values = new ArrayList<String>();
+        for (String value : option(options, prefix, "").split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.strip());
+            }
+        }
+        return values;
     }
 
 }
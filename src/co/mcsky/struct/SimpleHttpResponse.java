@@ -1,15 +1,18 @@
 package co.mcsky.struct;
 
+import co.mcsky.util.HttpResponseParser;
 import co.mcsky.util.StringUtil;
+import co.mcsky.util.VisitedUrlSet;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.stream.Collectors;
 
-import static java.lang.Integer.parseInt;
 import static java.util.Optional.of;
 import static java.util.Optional.ofNullable;
 
@@ -26,14 +29,22 @@ import static java.util.Optional.ofNullable;
  * <p>This class provides convenient methods for getting relevant information
  * about its internal responses. Typically, these getter methods are ad-hoc for
  * generating a good report for the assignment.
+ *
+ * <p>Once the links of a response have been queued, {@link #withoutBody()}
+ * gives a copy holding just the head, the fingerprints of the links and the
+ * liveness, which is all the report needs, so that a large crawl does not keep
+ * every page it has seen on the heap.
  */
 public class SimpleHttpResponse {
 
     private static final String NULL_RESPONSE = "";
     private final SimpleURL url;
-    private final String response;
+    private final String headText;
+    private final String body;
     private final SimpleHttpHead head;
     private final List<SimpleURL> innerUrls;
+    private final long[] linkFingerprints;
+    private final Long contentFingerprint;
     private final boolean alive;
 
     /**
@@ -50,35 +61,112 @@ public class SimpleHttpResponse {
      *                 not
      */
     public SimpleHttpResponse(SimpleURL url, String response, boolean alive) {
+        // Only the head is parsed, the rest of the response is the body
+        this(url, HttpResponseParser.ofHead(Objects.requireNonNullElse(response, NULL_RESPONSE)), response, true, null, null, -1, alive);
+    }
+
+    /**
+     * Creates a http response object whose links, content fingerprint and
+     * body length have already been worked out while the response was being
+     * received.
+     *
+     * @param url                standard URL
+     * @param head               the parser which has parsed the head of the
+     *                           response
+     * @param body               the body of the response (de-chunked and
+     *                           decoded), or an empty string if it has not
+     *                           been kept
+     * @param links              the URLs in the body, as written in the page
+     * @param contentFingerprint the {@link co.mcsky.util.SimHash} of the
+     *                           body, or {@code null}
+     * @param bodyLength         the number of bytes of the body once
+     *                           de-chunked and decoded, or {@code -1} if it
+     *                           has not been received whole
+     * @param alive              whether the web server where the URL resides
+     *                           is alive or not
+     */
+    public SimpleHttpResponse(SimpleURL url, HttpResponseParser head, String body, List<String> links, Long contentFingerprint,
+                              long bodyLength, boolean alive) {
+        this(url, head, body, false, links, contentFingerprint, bodyLength, alive);
+    }
+
+    private SimpleHttpResponse(SimpleURL url, HttpResponseParser head, String text, boolean withHead, List<String> links,
+                               Long contentFingerprint, long bodyLength, boolean alive) {
+        text = Objects.requireNonNullElse(text, NULL_RESPONSE);
         this.url = Objects.requireNonNull(url, "URL cannot be null");
-        this.response = Objects.requireNonNullElse(response, NULL_RESPONSE);
-        this.head = new SimpleHttpHead(this.response);
-        this.innerUrls = StringUtil
-                .extractUrls(this.response)
-                .stream()
-                .map(spec -> {
-                    // Encodes URLs into full format as much as possible for the purpose of comparing!
-                    if (spec.startsWith("http://") || spec.startsWith("https://")) {
-                        return new SimpleURL(spec);
-                    } else {
-                        var base = this.url.getProtocol() + "://" + this.url.getHost() + ":" + this.url.getPort();
-                        if (spec.startsWith("/")) {
-                            return new SimpleURL(base + spec);
-                        } else {
-                            return new SimpleURL(base + this.url.getDirectory() + spec);
-                        }
-                    }
-                })
-                .collect(Collectors.toList());
+        this.headText = head.getHeadText();
+        this.body = withHead ? text.substring(Math.min(head.getHeadLength(), text.length())) : text;
+        this.head = new SimpleHttpHead(head, bodyLength);
+        this.innerUrls = Objects.requireNonNullElseGet(links, () -> StringUtil.extractUrls(this.body))
+                                .stream()
+                                .map(spec -> {
+                                    // Encodes URLs into full format as much as possible for the purpose of comparing!
+                                    try {
+                                        return this.url.resolve(spec);
+                                    } catch (IllegalArgumentException | NoSuchElementException e) {
+                                        return null; // mailto:, javascript: and the like are not for us
+                                    }
+                                })
+                                .filter(Objects::nonNull)
+                                .collect(Collectors.toList());
+        this.linkFingerprints = null;
+        this.contentFingerprint = contentFingerprint;
         this.alive = alive;
     }
 
+    /**
+     * The metadata-only copy of {@code full}.
+     */
+    private SimpleHttpResponse(SimpleHttpResponse full) {
+        this.url = full.url;
+        this.headText = NULL_RESPONSE;
+        this.body = NULL_RESPONSE;
+        this.head = new SimpleHttpHead(full.head);
+        this.innerUrls = List.of();
+        this.linkFingerprints = full.getLinkFingerprints();
+        this.contentFingerprint = full.contentFingerprint;
+        this.alive = full.alive;
+    }
+
+    /**
+     * @return a copy of this response without the head text, the body and the
+     * inner URLs, keeping only the parsed head, the fingerprints of the inner
+     * URLs and the liveness
+     */
+    public SimpleHttpResponse withoutBody() {
+        return isBodyRetained() ? new SimpleHttpResponse(this) : this;
+    }
+
+    /**
+     * @return whether this response still holds its text, that is it has not
+     * been made by {@link #withoutBody()}
+     */
+    public boolean isBodyRetained() {
+        return linkFingerprints == null;
+    }
+
     /**
      * @return the string representation of this full http response, including
-     * head and body
+     * head and body, or an empty string if the body has not been retained
      */
     public String getFullResponse() {
-        return this.response;
+        return this.headText + this.body;
+    }
+
+    /**
+     * @return the string representation of the head of this http response as
+     * received, or an empty string if the body has not been retained
+     */
+    public String getHeadText() {
+        return this.headText;
+    }
+
+    /**
+     * @return the string representation of the body of this http response, or
+     * an empty string if the body has not been retained
+     */
+    public String getBody() {
+        return this.body;
     }
 
     /**
@@ -90,12 +178,32 @@ public class SimpleHttpResponse {
 
     /**
      * @return a {@link List} of http URLs inside this html page if present,
-     * otherwise returns empty {@link List}
+     * otherwise returns empty {@link List} (which is always the case when the
+     * body has not been retained)
      */
     public List<SimpleURL> getInnerUrls() {
         return this.innerUrls;
     }
 
+    /**
+     * @return the 64-bit fingerprints (see {@link VisitedUrlSet#fingerprint(CharSequence)})
+     * of the inner URLs, in the same order
+     */
+    public long[] getLinkFingerprints() {
+        if (linkFingerprints != null) {
+            return linkFingerprints.clone();
+        }
+        return innerUrls.stream().mapToLong(u -> VisitedUrlSet.fingerprint(u.toString())).toArray();
+    }
+
+    /**
+     * @return the {@link co.mcsky.util.SimHash} of the body, if it has been
+     * worked out
+     */
+    public OptionalLong getContentFingerprint() {
+        return contentFingerprint == null ? OptionalLong.empty() : OptionalLong.of(contentFingerprint);
+    }
+
     /**
      * @return true if this URL points to a valid web server, false else wise
      */
@@ -132,31 +240,36 @@ public class SimpleHttpResponse {
     public class SimpleHttpHead {
 
         final int contentLength;
+        final int bodyLength;
         final ContentType contentType;
+        final String mediaType;
         final StatusCode statusCode;
         final LocalDateTime modifiedTime;
         final SimpleURL location;
 
-        SimpleHttpHead(String response) {
-            this.contentLength = StringUtil
-                    .extractContentLength(response)
-                    .flatMap(s -> of(parseInt(s)))
-                    .orElse(-1);
-            this.contentType = StringUtil
-                    .extractContentType(response)
-                    .flatMap(s -> ofNullable(ContentType.matchType(s)))
-                    .orElse(null);
-            this.statusCode = StringUtil
-                    .extractStatusCode(response)
-                    .flatMap(s -> of(parseInt(s)))
-                    .flatMap(s -> of(StatusCode.matchCode(s)))
-                    .orElse(null);
-            this.modifiedTime = StringUtil
-                    .extractModifiedTime(response)
+        /**
+         * Copies the head of another response into this one.
+         */
+        SimpleHttpHead(SimpleHttpHead other) {
+            this.contentLength = other.contentLength;
+            this.bodyLength = other.bodyLength;
+            this.contentType = other.contentType;
+            this.mediaType = other.mediaType;
+            this.statusCode = other.statusCode;
+            this.modifiedTime = other.modifiedTime;
+            this.location = other.location;
+        }
+
+        SimpleHttpHead(HttpResponseParser head, long bodyLength) {
+            this.contentLength = (int) Math.min(head.getContentLength(), Integer.MAX_VALUE);
+            this.bodyLength = bodyLength < 0 ? contentLength : (int) Math.min(bodyLength, Integer.MAX_VALUE);
+            this.contentType = ContentType.matchType(head.getContentType());
+            this.mediaType = head.getContentType();
+            this.statusCode = head.getStatusCode() < 0 ? null : StatusCode.matchCode(head.getStatusCode());
+            this.modifiedTime = ofNullable(head.getLastModified())
                     .flatMap(timeString -> of(LocalDateTime.parse(timeString, DateTimeFormatter.RFC_1123_DATE_TIME)))
                     .orElse(null);
-            this.location = StringUtil
-                    .extractLocation(response)
+            this.location = ofNullable(head.getLocation())
                     .flatMap(u -> {
                         /*
                             The literal URL in the field of Location may not have the same port
@@ -217,6 +330,16 @@ public class SimpleHttpResponse {
             return of(this.contentLength);
         }
 
+        /**
+         * @return the length of the body of this http response once
+         * de-chunked and decoded, as it has been received, or its {@code
+         * Content-Length} if it has not been received whole. Unlike the
+         * latter, this is the size of the page even if it came compressed
+         */
+        public Optional<Integer> getBodyLength() {
+            return of(this.bodyLength);
+        }
+
         /**
          * @return the {@code Content-Type} of this http response
          */
@@ -224,6 +347,15 @@ public class SimpleHttpResponse {
             return ofNullable(this.contentType);
         }
 
+        /**
+         * @return the {@code Content-Type} of this http response as it is
+         * written, which tells the types {@link #getContentType()} does not
+         * know about
+         */
+        public Optional<String> getMediaType() {
+            return ofNullable(this.mediaType);
+        }
+
         /**
          * @return the {@code Location} (the URL it redirect to) of this
          * response
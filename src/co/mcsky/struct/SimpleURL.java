@@ -1,62 +1,149 @@
 package co.mcsky.struct;
 
-import java.util.NoSuchElementException;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.Integer.parseInt;
-import static java.util.Optional.ofNullable;
 
 /**
  * Represents a {@code URL} of http scheme.
+ *
+ * <p>URLs are parsed by hand in a single pass, since one is created for every
+ * link of every page crawled. Host names and "host:port" strings repeat
+ * endlessly over a crawl, so they are interned, and the parts most URLs never
+ * get asked for (the directory, the file, the standard form) are only worked
+ * out when they are first needed.
  */
 public class SimpleURL {
 
-    private final String url;
+    private static final String PROTOCOL = "http";
+    // Bounded so that a crawl over millions of hosts does not keep them all forever
+    private static final int MAX_INTERNED = 1 << 16;
+    private static final Map<String, String> INTERNED = new ConcurrentHashMap<>();
+
     private final String host;
     private final int port;
-    private final String protocol;
     private final String path;
-    private final String directory;
-    private final String file;
     private final String query;
     private final String fragment;
+    private String hostPort;
+    private String directory;
+    private String file;
+    private String url;
 
     /**
      * Creates http URL from string representation.
      */
     public SimpleURL(String spec) {
-        // Debugger for this regex: https://regex101.com/r/Zx74z0/16
-        var regex = "^(?:(http):)(?://([^/?:#]+)(?::(\\d+))?)([^?#]+)?(?:\\?([^#]*))?(?:#(.+))?";
-        var pattern = Pattern.compile(regex);
-        var matcher = pattern.matcher(spec);
-        if (!matcher.find()) {
+        /*
+         * Accepts the same URLs as the regex which used to parse them:
+         * ^(?:(http):)(?://([^/?:#]+)(?::(\d+))?)([^?#]+)?(?:\?([^#]*))?(?:#(.+))?
+         * (see https://regex101.com/r/Zx74z0/16), and anything past what it
+         * matches is ignored just like before.
+         * */
+        var n = spec.length();
+        if (!spec.startsWith("http://")) {
+            throw new IllegalArgumentException("Cannot recognize http URL: " + spec);
+        }
+        var i = 7;
+        var hostStart = i;
+        while (i < n && "/?:#".indexOf(spec.charAt(i)) < 0) {
+            i++;
+        }
+        if (i == hostStart) {
             throw new IllegalArgumentException("Cannot recognize http URL: " + spec);
         }
-        this.protocol = ofNullable(matcher.group(1)).orElseThrow(() -> new NoSuchElementException("Only accepts http scheme"));
-        this.host = ofNullable(matcher.group(2)).orElseThrow(() -> new NoSuchElementException("Host cannot be empty."));
-        this.port = parseInt(ofNullable(matcher.group(3)).orElse("80"));
-        this.path = ofNullable(matcher.group(4)).orElse("/");
-        this.query = ofNullable(matcher.group(5)).orElse("");
-        this.fragment = ofNullable(matcher.group(6)).orElse("");
-        matcher = Pattern.compile("(.*/)(.+)?").matcher(this.path);
-        this.directory = matcher.find() ? matcher.group(1) : "/";
-        this.file = ofNullable(matcher.group(2)).orElse("");
+        this.host = intern(spec.substring(hostStart, i));
+
+        var port = 80;
+        var canonical = false; // whether spec is already in standard form, as far as the port goes
+        if (i + 1 < n && spec.charAt(i) == ':' && isDigit(spec.charAt(i + 1))) {
+            var portStart = ++i;
+            while (i < n && isDigit(spec.charAt(i))) {
+                i++;
+            }
+            port = parseInt(spec, portStart, i, 10);
+            canonical = spec.charAt(portStart) != '0' || i - portStart == 1;
+        }
+        this.port = port;
+
+        var pathStart = i;
+        while (i < n && spec.charAt(i) != '?' && spec.charAt(i) != '#') {
+            i++;
+        }
+        canonical &= i > pathStart;
+        this.path = i > pathStart ? spec.substring(pathStart, i) : "/";
+
+        var query = "";
+        if (i < n && spec.charAt(i) == '?') {
+            canonical = false; // the standard form writes the query as "?=" plus the query
+            var queryStart = ++i;
+            while (i < n && spec.charAt(i) != '#') {
+                i++;
+            }
+            query = spec.substring(queryStart, i);
+        }
+        this.query = query;
+
+        var fragment = "";
+        if (i < n) { // at a '#'
+            var fragmentStart = ++i;
+            while (i < n && !isLineTerminator(spec.charAt(i))) {
+                i++;
+            }
+            fragment = spec.substring(fragmentStart, i);
+            canonical &= !fragment.isEmpty(); // an empty fragment is left out of the standard form
+        }
+        this.fragment = fragment;
+
         /*
-         * Reconstruct this URL into very standard form.
+         * The standard form of this URL is only built when needed, unless the
+         * spec happens to be in standard form already.
          * This should ensure that "distinct" URLs are really distinct.
          * Say, "http://eee.com" without slash (i.e. absolute path) at the end
          * is effectively identical to "http://eee.com/" with slash at the end.
          * */
-        this.url = protocol + "://" + host + ":" + port + path +
-                   (query.equals("") ? "" : "?=" + query) +
-                   (fragment.equals("") ? "" : "#" + fragment);
+        if (canonical && i == n) {
+            this.url = spec;
+        }
+    }
+
+    private static String intern(String s) {
+        var interned = INTERNED.get(s);
+        if (interned != null) {
+            return interned;
+        }
+        if (INTERNED.size() >= MAX_INTERNED) {
+            return s;
+        }
+        interned = INTERNED.putIfAbsent(s, s);
+        return interned != null ? interned : s;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private void splitPath() {
+        var slash = path.lastIndexOf('/');
+        if (slash < 0) {
+            directory = "/";
+            file = path;
+        } else {
+            directory = path.substring(0, slash + 1);
+            file = path.substring(slash + 1);
+        }
     }
 
     /**
      * @return the protocol of this URL
      */
     public String getProtocol() {
-        return protocol;
+        return PROTOCOL;
     }
 
     /**
@@ -79,7 +166,10 @@ public class SimpleURL {
      * like "example.com:123" where host is "example.com" and port is "123"
      */
     public String getHostPort() {
-        return host + ":" + port;
+        if (hostPort == null) {
+            hostPort = intern(host + ":" + port);
+        }
+        return hostPort;
     }
 
     /**
@@ -94,6 +184,9 @@ public class SimpleURL {
      * @return the directory ending with slash {@code /} of this URL
      */
     public String getDirectory() {
+        if (directory == null) {
+            splitPath();
+        }
         return directory;
     }
 
@@ -101,6 +194,9 @@ public class SimpleURL {
      * @return the file name of this URL, or empty string if one does not exist
      */
     public String getFile() {
+        if (file == null) {
+            splitPath();
+        }
         return file;
     }
 
@@ -120,8 +216,47 @@ public class SimpleURL {
         return fragment;
     }
 
+    /**
+     * Resolves a URL found in the page at this URL. Relative URLs are
+     * encoded into full format as much as possible for the purpose of
+     * comparing.
+     *
+     * @param spec the URL as written in the page
+     *
+     * @return the full URL
+     *
+     * @throws IllegalArgumentException if the result is not a http URL
+     */
+    public SimpleURL resolve(String spec) {
+        if (spec.startsWith("http://") || spec.startsWith("https://")) {
+            return new SimpleURL(spec);
+        }
+        var base = PROTOCOL + "://" + getHostPort();
+        if (spec.startsWith("/")) {
+            return new SimpleURL(base + spec);
+        } else {
+            return new SimpleURL(base + getDirectory() + spec);
+        }
+    }
+
+    /**
+     * @return this URL written the way it is parsed, which (unlike {@link
+     * #toString()}, which shows the query as "?=" plus the query) reads back
+     * into an equal URL
+     */
+    public String toSpec() {
+        return PROTOCOL + "://" + getHostPort() + path +
+               (query.equals("") ? "" : "?" + query) +
+               (fragment.equals("") ? "" : "#" + fragment);
+    }
+
     @Override
     public String toString() {
+        if (url == null) {
+            url = PROTOCOL + "://" + getHostPort() + path +
+                  (query.equals("") ? "" : "?=" + query) +
+                  (fragment.equals("") ? "" : "#" + fragment);
+        }
         return url;
     }
 
@@ -133,7 +268,8 @@ public class SimpleURL {
         if (!(obj instanceof SimpleURL)) {
             return false;
         }
-        return obj.hashCode() == this.hashCode();
+        // Different URLs can share a hashCode, so compare the whole thing
+        return obj.toString().equals(this.toString());
     }
 
     /**
@@ -143,7 +279,7 @@ public class SimpleURL {
      */
     @Override
     public int hashCode() {
-        return this.url.hashCode();
+        return this.toString().hashCode();
     }
 
 }
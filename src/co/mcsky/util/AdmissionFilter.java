@@ -0,0 +1,361 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which URLs may be queued at all, before anything touches the
+ * network. A URL which is not {@link #admits(SimpleURL) admitted} is neither
+ * fetched nor probed, and does not show up in the report.
+ *
+ * <p>The rules are compiled by a {@link Builder} into tries of chars, so a
+ * decision is a few array lookups per char of the URL and allocates nothing:
+ * <ul>
+ * <li>hosts are matched by suffix, a rule for {@code example.com} also
+ * covering {@code www.example.com} (but not {@code badexample.com}). The
+ * longest matching rule decides, so a host can be denied inside an allowed
+ * domain. Once any host is allowed, the hosts which are not are denied;</li>
+ * <li>paths are matched by prefix, the longest matching rule deciding as
+ * well. Once any path is allowed, the paths which are not are denied;</li>
+ * <li>files with a denied extension are denied, whatever the case;</li>
+ * <li>paths deeper than the max depth (in directories, {@code /a/b.html}
+ * being 2 deep) are denied.</li>
+ * </ul>
+ *
+ * <p>Instances are immutable, but for the count of rejected URLs, and
+ * thread-safe.
+ */
+public final class AdmissionFilter {
+
+    private static final byte NONE = 0;
+    private static final byte ALLOW = 1;
+    private static final byte DENY = 2;
+
+    // Hosts are walked backwards, from the top-level domain down
+    private final Trie hosts;
+    private final boolean hostsAllowList;
+    private final Trie paths;
+    private final boolean pathsAllowList;
+    // Extensions are walked backwards too, from the end of the path
+    private final Trie extensions;
+    private final int maxDepth;
+    private final int rules;
+    private final LongAdder rejected = new LongAdder();
+
+    private AdmissionFilter(Builder builder) {
+        this.hosts = builder.hosts.compile();
+        this.hostsAllowList = builder.hostsAllowList;
+        this.paths = builder.paths.compile();
+        this.pathsAllowList = builder.pathsAllowList;
+        this.extensions = builder.extensions.compile();
+        this.maxDepth = builder.maxDepth;
+        this.rules = builder.rules;
+    }
+
+    /**
+     * @param url any URL
+     *
+     * @return whether {@code url} may be crawled (or probed, if its host is
+     * not in the whitelist)
+     */
+    public boolean admits(SimpleURL url) {
+        if (check(url)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * @return the number of URLs rejected so far
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rules, %d URLs rejected", rules, getRejected());
+    }
+
+    private boolean check(SimpleURL url) {
+        var host = url.getHost();
+        var verdict = NONE;
+        var node = 0;
+        for (int i = host.length() - 1; i >= 0 && node >= 0; i--) {
+            node = hosts.next(node, Character.toLowerCase(host.charAt(i)));
+            // A rule only matches whole labels
+            if (node >= 0 && hosts.verdict[node] != NONE && (i == 0 || host.charAt(i - 1) == '.')) {
+                verdict = hosts.verdict[node];
+            }
+        }
+        if (verdict == DENY || (hostsAllowList && verdict != ALLOW)) {
+            return false;
+        }
+
+        var path = url.getPath();
+        verdict = NONE;
+        node = 0;
+        for (int i = 0; i < path.length() && node >= 0; i++) {
+            node = paths.next(node, path.charAt(i));
+            if (node >= 0 && paths.verdict[node] != NONE) {
+                verdict = paths.verdict[node];
+            }
+        }
+        if (verdict == DENY || (pathsAllowList && verdict != ALLOW)) {
+            return false;
+        }
+
+        node = 0;
+        for (int i = path.length() - 1; i >= 0 && node >= 0; i--) {
+            var c = path.charAt(i);
+            if (c == '/') {
+                break; // no extension
+            }
+            if (c == '.') {
+                if (extensions.verdict[node] == DENY) {
+                    return false;
+                }
+                break;
+            }
+            node = extensions.next(node, Character.toLowerCase(c));
+        }
+
+        if (maxDepth >= 0) {
+            var depth = 0;
+            for (int i = 0; i < path.length(); i++) {
+                if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/')) {
+                    depth++;
+                }
+            }
+            return depth <= maxDepth;
+        }
+        return true;
+    }
+
+    /**
+     * Collects the rules of a filter. Without any rule, a filter admits
+     * everything.
+     */
+    public static final class Builder {
+
+        private final Trie.Node hosts = new Trie.Node();
+        private final Trie.Node paths = new Trie.Node();
+        private final Trie.Node extensions = new Trie.Node();
+        private boolean hostsAllowList;
+        private boolean pathsAllowList;
+        private int maxDepth = -1;
+        private int rules;
+
+        /**
+         * @param domain a host, or a domain like {@code example.com} (or
+         *               {@code *.example.com}) for all the hosts in it
+         *
+         * @return this builder
+         */
+        public Builder allowHost(String domain) {
+            hostsAllowList = true;
+            return host(domain, ALLOW);
+        }
+
+        /**
+         * @param domain a host, or a domain like {@code example.com} (or
+         *               {@code *.example.com}) for all the hosts in it
+         *
+         * @return this builder
+         */
+        public Builder denyHost(String domain) {
+            return host(domain, DENY);
+        }
+
+        /**
+         * @param prefix the start of the paths to allow, like {@code /docs/}
+         *
+         * @return this builder
+         */
+        public Builder allowPath(String prefix) {
+            pathsAllowList = true;
+            return path(prefix, ALLOW);
+        }
+
+        /**
+         * @param prefix the start of the paths to deny, like {@code /cgi-bin/}
+         *
+         * @return this builder
+         */
+        public Builder denyPath(String prefix) {
+            return path(prefix, DENY);
+        }
+
+        /**
+         * @param extension an extension of the files to deny, like {@code
+         *                  jpg} or {@code .jpg}
+         *
+         * @return this builder
+         */
+        public Builder denyExtension(String extension) {
+            var ext = extension.startsWith(".") ? extension.substring(1) : extension;
+            if (ext.isEmpty()) {
+                throw new IllegalArgumentException("Empty extension");
+            }
+            var node = extensions;
+            for (int i = ext.length() - 1; i >= 0; i--) {
+                node = node.child(Character.toLowerCase(ext.charAt(i)));
+            }
+            node.verdict = DENY;
+            rules++;
+            return this;
+        }
+
+        /**
+         * @param maxDepth the max number of directories and file in a path,
+         *                 {@code 0} allowing just {@code /}
+         *
+         * @return this builder
+         */
+        public Builder maxDepth(int maxDepth) {
+            if (maxDepth < 0) {
+                throw new IllegalArgumentException("Max depth must not be negative: " + maxDepth);
+            }
+            this.maxDepth = maxDepth;
+            rules++;
+            return this;
+        }
+
+        /**
+         * @return the compiled filter
+         */
+        public AdmissionFilter build() {
+            return new AdmissionFilter(this);
+        }
+
+        private Builder host(String domain, byte verdict) {
+            var d = domain.strip().toLowerCase(Locale.ROOT);
+            if (d.startsWith("*.")) {
+                d = d.substring(2);
+            } else if (d.startsWith(".")) {
+                d = d.substring(1);
+            }
+            if (d.isEmpty()) {
+                throw new IllegalArgumentException("Empty domain: " + domain);
+            }
+            var node = hosts;
+            for (int i = d.length() - 1; i >= 0; i--) {
+                node = node.child(d.charAt(i));
+            }
+            node.verdict = verdict;
+            rules++;
+            return this;
+        }
+
+        private Builder path(String prefix, byte verdict) {
+            if (!prefix.startsWith("/")) {
+                throw new IllegalArgumentException("Path prefix must start with /: " + prefix);
+            }
+            var node = paths;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            node.verdict = verdict;
+            rules++;
+            return this;
+        }
+
+    }
+
+    /**
+     * A trie of chars flattened into arrays: node {@code n} has the sorted
+     * chars {@code keys[first[n]] .. keys[first[n + 1] - 1]} leading to the
+     * nodes at the same indexes in {@code targets}.
+     */
+    private static final class Trie {
+
+        final int[] first;
+        final char[] keys;
+        final int[] targets;
+        final byte[] verdict;
+
+        Trie(int[] first, char[] keys, int[] targets, byte[] verdict) {
+            this.first = first;
+            this.keys = keys;
+            this.targets = targets;
+            this.verdict = verdict;
+        }
+
+        /**
+         * @return the node reached from {@code node} by {@code c}, or
+         * {@code -1}
+         */
+        int next(int node, char c) {
+            var lo = first[node];
+            var hi = first[node + 1] - 1;
+            while (lo <= hi) {
+                var mid = (lo + hi) >>> 1;
+                var k = keys[mid];
+                if (k < c) {
+                    lo = mid + 1;
+                } else if (k > c) {
+                    hi = mid - 1;
+                } else {
+                    return targets[mid];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * A node of a trie being built.
+         */
+        static final class Node {
+
+            final Map<Character, Node> children = new TreeMap<>();
+            byte verdict = NONE;
+
+            Node child(char c) {
+                return children.computeIfAbsent(c, k -> new Node());
+            }
+
+            /**
+             * @return the trie from this node, which becomes node 0
+             */
+            Trie compile() {
+                // Number the nodes breadth first, so the children of a node are numbered together
+                var order = new ArrayList<Node>();
+                order.add(this);
+                for (int i = 0; i < order.size(); i++) {
+                    order.addAll(order.get(i).children.values());
+                }
+                var index = new IdentityHashMap<Node, Integer>();
+                for (int i = 0; i < order.size(); i++) {
+                    index.put(order.get(i), i);
+                }
+                var edges = order.size() - 1;
+                var first = new int[order.size() + 1];
+                var keys = new char[edges];
+                var targets = new int[edges];
+                var verdict = new byte[order.size()];
+                var e = 0;
+                for (int i = 0; i < order.size(); i++) {
+                    first[i] = e;
+                    verdict[i] = order.get(i).verdict;
+                    for (Map.Entry<Character, Node> child : order.get(i).children.entrySet()) {
+                        keys[e] = child.getKey();
+                        targets[e] = index.get(child.getValue());
+                        e++;
+                    }
+                }
+                first[order.size()] = e;
+                return new Trie(first, keys, targets, verdict);
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,290 @@
+package co.mcsky.util;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A file holding the latest snapshot of a crawl, written through a memory
+ * mapping so that taking a snapshot costs little more than copying the state
+ * into memory.
+ *
+ * <p>The file starts with a header naming two snapshot slots. A new snapshot
+ * is always written where it does not overlap the last good one (before it if
+ * it fits, after it otherwise), flushed to disk, and only then made current by
+ * writing its slot with a higher generation and a CRC32 of its bytes. If the
+ * JVM dies halfway through, the slot of the last good snapshot is left intact,
+ * so {@link #load(Section)} always finds a complete snapshot or none at all.
+ *
+ * <p>A snapshot is limited to about 2 GB, the size of a single mapping.
+ * Instances are not thread-safe.
+ */
+public class Checkpoint implements Closeable {
+
+    private static final long MAGIC = 0x43524157_4c434b50L; // "CRAWLCKP"
+    private static final int VERSION = 2; // 2: URLs of any length in the crawled set
+    private static final int HEADER_SIZE = 4096;
+    private static final int SLOT_SIZE = 32;
+    private static final int INITIAL_SIZE = HEADER_SIZE + (1 << 20);
+
+    private final Path path;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+
+    /**
+     * Opens a checkpoint file, creating it if it does not exist.
+     *
+     * @param path the file
+     *
+     * @throws IOException if the file cannot be opened or is not a checkpoint
+     *                     file
+     */
+    public Checkpoint(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            var fresh = channel.size() == 0;
+            map(Math.max(channel.size(), INITIAL_SIZE));
+            if (fresh) {
+                map.putLong(0, MAGIC);
+                map.putInt(8, VERSION);
+                map.force();
+            } else if (map.getLong(0) != MAGIC || map.getInt(8) != VERSION) {
+                throw new IOException("Not a checkpoint file: " + path);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a new snapshot. The previous one stays current until this one has
+     * been written completely.
+     *
+     * @param section writes the state, it may be called twice if the snapshot
+     *                has to be moved, so it must write the same bytes each time
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void save(Section<DataOutput> section) throws IOException {
+        var live = current();
+        var liveStart = live < 0 ? HEADER_SIZE : slotOffset(live);
+        var liveEnd = live < 0 ? HEADER_SIZE : liveStart + slotLength(live);
+
+        // Try to fit it in before the current snapshot, otherwise put it right after
+        var start = (long) HEADER_SIZE;
+        var length = liveStart > HEADER_SIZE ? write(section, start, liveStart) : -1;
+        if (length < 0) {
+            start = align(liveEnd);
+            length = write(section, start, Integer.MAX_VALUE);
+            if (length < 0) {
+                throw new IOException("Checkpoint is too large");
+            }
+        }
+        map.force();
+
+        var crc = new CRC32();
+        crc.update(slice(start, length));
+        var slot = live < 0 ? 0 : 1 - live;
+        var at = HEADER_SIZE / 2 + slot * SLOT_SIZE;
+        var generation = live < 0 ? 1 : slotGeneration(live) + 1;
+        map.putLong(at + 8, start);
+        map.putLong(at + 16, length);
+        map.putInt(at + 24, (int) crc.getValue());
+        map.putLong(at, generation); // written last, this is what makes the snapshot current
+        map.force();
+    }
+
+    /**
+     * Reads the current snapshot.
+     *
+     * @param section reads the state
+     *
+     * @return {@code false} if there is no snapshot yet
+     *
+     * @throws IOException if the snapshot cannot be read
+     */
+    public boolean load(Section<DataInput> section) throws IOException {
+        var live = current();
+        if (live < 0) {
+            return false;
+        }
+        var in = slice(slotOffset(live), slotLength(live));
+        section.accept(new DataInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return in.hasRemaining() ? in.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!in.hasRemaining()) {
+                    return -1;
+                }
+                var n = Math.min(len, in.remaining());
+                in.get(b, off, n);
+                return n;
+            }
+        }));
+        return true;
+    }
+
+    /**
+     * @return the file of this checkpoint
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    /**
+     * @return the slot of the newest complete snapshot, or {@code -1}
+     */
+    private int current() {
+        var best = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            if (slotGeneration(slot) > 0 && isIntact(slot) &&
+                (best < 0 || slotGeneration(slot) > slotGeneration(best))) {
+                best = slot;
+            }
+        }
+        return best;
+    }
+
+    private boolean isIntact(int slot) {
+        var offset = slotOffset(slot);
+        var length = slotLength(slot);
+        if (offset < HEADER_SIZE || length < 0 || offset + length > map.capacity()) {
+            return false;
+        }
+        var crc = new CRC32();
+        crc.update(slice(offset, length));
+        return (int) crc.getValue() == map.getInt(HEADER_SIZE / 2 + slot * SLOT_SIZE + 24);
+    }
+
+    private long slotGeneration(int slot) {
+        return map.getLong(HEADER_SIZE / 2 + slot * SLOT_SIZE);
+    }
+
+    private long slotOffset(int slot) {
+        return map.getLong(HEADER_SIZE / 2 + slot * SLOT_SIZE + 8);
+    }
+
+    private long slotLength(int slot) {
+        return map.getLong(HEADER_SIZE / 2 + slot * SLOT_SIZE + 16);
+    }
+
+    /**
+     * Runs the section into the file from {@code start}, growing the file as
+     * needed.
+     *
+     * @return the number of bytes written, or {@code -1} if they would have
+     * gone past {@code end}
+     */
+    private long write(Section<DataOutput> section, long start, long end) throws IOException {
+        var out = new MappedOutput(start, end);
+        var data = new DataOutputStream(out);
+        section.accept(data);
+        data.flush();
+        return out.overflow ? -1 : out.position - start;
+    }
+
+    private ByteBuffer slice(long offset, long length) {
+        var buffer = map.duplicate();
+        buffer.position((int) offset).limit((int) (offset + length));
+        return buffer.slice();
+    }
+
+    private void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Checkpoint is too large");
+        }
+        // Mapping past the end grows the file
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static long align(long position) {
+        return (position + 4095) & ~4095L;
+    }
+
+    /**
+     * Writes or reads one part of the state of a crawl.
+     *
+     * @param <T> {@link DataOutput} or {@link DataInput}
+     */
+    @FunctionalInterface
+    public interface Section<T> {
+
+        /**
+         * @param data where to write the state to, or read it from
+         *
+         * @throws IOException if {@code data} fails
+         */
+        void accept(T data) throws IOException;
+
+    }
+
+    /**
+     * Writes into the mapping, remapping a larger file when it runs out. Once
+     * {@code end} has been reached the rest is dropped and only counted as an
+     * overflow.
+     */
+    private class MappedOutput extends OutputStream {
+
+        final long end;
+        long position;
+        boolean overflow;
+
+        MappedOutput(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (reserve(1)) {
+                map.put((int) position++, (byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (reserve(len)) {
+                var buffer = map.duplicate();
+                buffer.position((int) position);
+                buffer.put(b, off, len);
+                position += len;
+            }
+        }
+
+        private boolean reserve(int len) throws IOException {
+            if (overflow || position + len > end) {
+                overflow = true;
+                return false;
+            }
+            if (position + len > map.capacity()) {
+                map(Math.min(Integer.MAX_VALUE, Math.max(position + len, map.capacity() * 2L)));
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,563 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * One node of a crawl distributed over several processes. The hosts are split
+ * between the nodes by a {@link HostPartitioner}, and each node crawls its own
+ * hosts with its own frontier, crawled URLs and rate limiter, exactly as a
+ * crawl on its own would.
+ *
+ * <p>A URL found by a node but belonging to another one is {@link
+ * #forward(SimpleURL) forwarded} to it. Forwarded URLs are batched per node
+ * and sent over one persistent connection to each node, as frames of
+ * {@code [type byte][length int][payload]}.
+ *
+ * <p>The crawl is over when every node has nothing left to crawl and no URL
+ * is on its way between nodes. Node 0 finds that out by asking every node for
+ * its status from time to time: whether it is idle, and how many URLs it has
+ * sent and received. Once all nodes are idle and the URLs sent add up to the
+ * URLs received, twice in a row with the same counts, nothing can be left in
+ * flight, and node 0 tells everyone to stop. A node which does not answer for
+ * a few rounds in a row is taken for dead, and node 0 stops the crawl with an
+ * error rather than wait for it forever. The nodes then send their reports
+ * to node 0, which {@link #collect(ReportAggregator) merges} them into the
+ * report of the whole crawl.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class ClusterNode implements Closeable {
+
+    private static final byte URLS = 1;
+    private static final byte PROBE = 2;
+    private static final byte STATUS = 3;
+    private static final byte STOP = 4;
+    private static final byte REPORT = 5;
+
+    private static final int BATCH_SIZE = 256;
+    // Leaves some room below the 64 KB writeUTF can take
+    private static final int MAX_URL_LENGTH = 16 * 1024;
+    private static final long FLUSH_INTERVAL = 50;
+    private static final long PROBE_INTERVAL = 500;
+    private static final long STATUS_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    // A node which misses that many rounds in a row is taken for dead
+    private static final int MAX_FAILED_ROUNDS = 3;
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long REPORT_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private final int self;
+    private final List<InetSocketAddress> nodes;
+    private final HostPartitioner partitioner;
+    private final ServerSocket server;
+    private final Peer[] peers;
+    private final List<Socket> incoming = new CopyOnWriteArrayList<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final BlockingQueue<long[]> statuses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ReportAggregator> reports = new LinkedBlockingQueue<>();
+    // URLs which arrived before this node started crawling, guarded by "this"
+    private final List<SimpleURL> early = new ArrayList<>();
+    private Consumer<SimpleURL> receiver;
+    private BooleanSupplier idle;
+    private Runnable onStop;
+    private volatile boolean stopped;
+
+    /**
+     * Joins a cluster: starts listening for the other nodes. The other nodes
+     * need not be up yet, connections to them are retried for a while.
+     *
+     * @param nodes the addresses of all the nodes, in the same order on every
+     *              node
+     * @param self  the index of this node in {@code nodes}
+     *
+     * @throws IOException if this node cannot listen on its address
+     */
+    public ClusterNode(List<InetSocketAddress> nodes, int self) throws IOException {
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("No node " + self + " in a cluster of " + nodes.size());
+        }
+        this.self = self;
+        this.nodes = List.copyOf(nodes);
+        this.partitioner = new HostPartitioner(nodes.size());
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = i == self ? null : new Peer(i);
+        }
+        this.server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(nodes.get(self));
+        daemon(this::accept, "cluster-acceptor").start();
+    }
+
+    /**
+     * @param url any URL
+     *
+     * @return whether this node crawls the host of {@code url}
+     */
+    public boolean isLocal(SimpleURL url) {
+        return partitioner.partitionOf(url) == self;
+    }
+
+    /**
+     * Starts taking part in the crawl. Until then this node never counts as
+     * idle, so the crawl cannot end before every node has started.
+     *
+     * @param receiver receives the URLs forwarded to this node by the others
+     * @param idle     tells whether this node has nothing left to crawl
+     * @param onStop   called once the whole crawl is over
+     */
+    public void start(Consumer<SimpleURL> receiver, BooleanSupplier idle, Runnable onStop) {
+        List<SimpleURL> arrived;
+        synchronized (this) {
+            this.receiver = receiver;
+            this.idle = idle;
+            this.onStop = onStop;
+            arrived = new ArrayList<>(early);
+            early.clear();
+        }
+        arrived.forEach(receiver);
+        daemon(this::flushPeriodically, "cluster-flusher").start();
+        if (self == 0) {
+            daemon(this::coordinate, "cluster-coordinator").start();
+        }
+    }
+
+    /**
+     * Hands a URL over to the node which crawls its host. The URL is sent
+     * with the next batch for that node.
+     *
+     * @param url a URL which is not {@link #isLocal(SimpleURL) local}
+     */
+    public void forward(SimpleURL url) {
+        var spec = url.toSpec();
+        if (spec.length() > MAX_URL_LENGTH) {
+            Log.warn("URL too long to forward, dropped: " + url);
+            return;
+        }
+        peers[partitioner.partitionOf(url)].add(spec);
+    }
+
+    /**
+     * @return whether the whole crawl is over
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Gathers the reports of all the nodes once the crawl is over. Node 0
+     * waits for the reports of the others and merges them; every other node
+     * sends its report to node 0.
+     *
+     * @param local the report of this node
+     *
+     * @return on node 0, the report of the whole crawl, otherwise {@code null}
+     */
+    public ReportAggregator collect(ReportAggregator local) {
+        if (self != 0) {
+            try {
+                peers[0].send(REPORT, local::save);
+            } catch (IOException e) {
+                Log.warn("couldn't send the report to node 0: " + e.getMessage());
+            }
+            return null;
+        }
+        var merged = new ReportAggregator(local.getSite());
+        merged.merge(local);
+        for (int i = 1; i < nodes.size(); i++) {
+            try {
+                var report = reports.poll(REPORT_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (report == null) {
+                    Log.warn((nodes.size() - i) + " node(s) sent no report, the report is incomplete");
+                    break;
+                }
+                merged.merge(report);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        server.close();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.close();
+            }
+        }
+        for (Socket socket : incoming) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("node %d of %d, %d URLs forwarded, %d URLs received", self, nodes.size(), sent.get(), received.get());
+    }
+
+    private boolean isIdle() {
+        BooleanSupplier idle;
+        synchronized (this) {
+            idle = this.idle;
+        }
+        if (idle == null || !idle.getAsBoolean()) {
+            return false;
+        }
+        for (Peer peer : peers) {
+            if (peer != null && peer.hasPending()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stop() {
+        Runnable onStop;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            onStop = this.onStop;
+        }
+        if (onStop != null) {
+            onStop.run();
+        }
+    }
+
+    private void deliver(SimpleURL url) {
+        Consumer<SimpleURL> receiver;
+        synchronized (this) {
+            receiver = this.receiver;
+            if (receiver == null) {
+                early.add(url);
+            }
+        }
+        if (receiver != null) {
+            receiver.accept(url);
+        }
+        // Counted once it is queued (or kept for later), so a node busy with it never looks idle with it uncounted
+        received.incrementAndGet();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                var socket = server.accept();
+                incoming.add(socket);
+                daemon(() -> read(socket), "cluster-reader").start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    Log.warn("cluster node " + self + " couldn't accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        try (var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                var type = in.readByte();
+                var payload = new byte[in.readInt()];
+                in.readFully(payload);
+                handle(type, new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+        } catch (EOFException e) {
+            // The other node has closed the connection
+        } catch (IOException | RuntimeException e) {
+            if (!stopped) {
+                Log.warn("cluster node " + self + " lost a connection: " + e);
+            }
+        } finally {
+            incoming.remove(socket);
+        }
+    }
+
+    private void handle(byte type, DataInput in) throws IOException {
+        switch (type) {
+            case URLS:
+                for (int n = in.readInt(); n > 0; n--) {
+                    deliver(new SimpleURL(in.readUTF()));
+                }
+                break;
+            case PROBE:
+                var round = in.readLong();
+                var isIdle = isIdle();
+                var sentNow = sent.get();
+                var receivedNow = received.get();
+                peers[0].send(STATUS, out -> {
+                    out.writeLong(round);
+                    out.writeInt(self);
+                    out.writeBoolean(isIdle);
+                    out.writeLong(sentNow);
+                    out.writeLong(receivedNow);
+                });
+                break;
+            case STATUS:
+                statuses.add(new long[]{in.readLong(), in.readInt(), in.readBoolean() ? 1 : 0, in.readLong(), in.readLong()});
+                break;
+            case STOP:
+                stop();
+                break;
+            case REPORT:
+                reports.add(ReportAggregator.load(in));
+                break;
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    /**
+     * Node 0 only: asks every node for its status in rounds, until the crawl
+     * is over or a node has not answered for {@link #MAX_FAILED_ROUNDS} rounds
+     * in a row.
+     */
+    private void coordinate() {
+        long lastSent = -1;
+        long lastReceived = -1;
+        var failedRounds = 0;
+        try {
+            for (long round = 1; !stopped; round++) {
+                Thread.sleep(PROBE_INTERVAL);
+                var allIdle = isIdle();
+                var totalSent = sent.get();
+                var totalReceived = received.get();
+                var answered = new boolean[nodes.size()];
+                answered[self] = true;
+                var missing = nodes.size() - 1;
+                for (Peer peer : peers) {
+                    if (peer != null) {
+                        final var r = round;
+                        try {
+                            peer.send(PROBE, out -> out.writeLong(r));
+                        } catch (IOException e) {
+                            Log.warn("couldn't probe node " + peer.node + ": " + e.getMessage());
+                        }
+                    }
+                }
+                var deadline = System.currentTimeMillis() + STATUS_TIMEOUT;
+                while (missing > 0) {
+                    var status = statuses.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (status == null) {
+                        break;
+                    }
+                    if (status[0] != round || answered[(int) status[1]]) {
+                        continue; // a late answer to an earlier round
+                    }
+                    answered[(int) status[1]] = true;
+                    missing--;
+                    allIdle &= status[2] == 1;
+                    totalSent += status[3];
+                    totalReceived += status[4];
+                }
+                if (missing > 0) {
+                    if (++failedRounds >= MAX_FAILED_ROUNDS) {
+                        throw new IOException(silent(answered) + " did not answer for " + failedRounds + " rounds");
+                    }
+                    lastSent = -1;
+                    continue;
+                }
+                failedRounds = 0;
+                if (!allIdle || totalSent != totalReceived) {
+                    lastSent = -1;
+                    continue;
+                }
+                if (totalSent == lastSent && totalReceived == lastReceived) {
+                    break; // nothing has moved since the last round, nothing can be in flight
+                }
+                lastSent = totalSent;
+                lastReceived = totalReceived;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.error("cluster coordinator failed, stopping the crawl: " + e.getMessage());
+        }
+        for (Peer peer : peers) {
+            if (peer != null) {
+                try {
+                    peer.send(STOP, out -> {
+                    });
+                } catch (IOException e) {
+                    Log.warn("couldn't tell node " + peer.node + " to stop: " + e.getMessage());
+                }
+            }
+        }
+        stop();
+    }
+
+    private static String silent(boolean[] answered) {
+        var nodes = new StringJoiner(", ", "node(s) ", "");
+        for (int i = 0; i < answered.length; i++) {
+            if (!answered[i]) {
+                nodes.add(String.valueOf(i));
+            }
+        }
+        return nodes.toString();
+    }
+
+    private void flushPeriodically() {
+        try {
+            while (!stopped) {
+                Thread.sleep(FLUSH_INTERVAL);
+                for (Peer peer : peers) {
+                    if (peer != null) {
+                        peer.flush();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        var t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    @FunctionalInterface
+    private interface Payload {
+
+        void write(DataOutput out) throws IOException;
+
+    }
+
+    /**
+     * The connection to another node, and the batch of URLs waiting to be
+     * sent to it.
+     */
+    private class Peer {
+
+        final int node;
+        // Guarded by "this"
+        final List<String> batch = new ArrayList<>();
+        Socket socket;
+        DataOutputStream out;
+
+        Peer(int node) {
+            this.node = node;
+        }
+
+        synchronized void add(String spec) {
+            batch.add(spec);
+            if (batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        synchronized boolean hasPending() {
+            return !batch.isEmpty();
+        }
+
+        /**
+         * Sends the batch. If it cannot be sent, it is kept for the next try.
+         */
+        synchronized void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                send(URLS, data -> {
+                    data.writeInt(batch.size());
+                    for (String spec : batch) {
+                        data.writeUTF(spec);
+                    }
+                });
+                sent.addAndGet(batch.size());
+                batch.clear();
+            } catch (IOException e) {
+                Log.warn("couldn't forward URLs to node " + node + ", will try again: " + e.getMessage());
+            }
+        }
+
+        synchronized void send(byte type, Payload payload) throws IOException {
+            var bytes = new ByteArrayOutputStream();
+            var data = new DataOutputStream(bytes);
+            payload.write(data);
+            data.flush();
+            try {
+                if (out == null) {
+                    connect();
+                }
+                out.writeByte(type);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void connect() throws IOException {
+            var deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            while (true) {
+                var s = new Socket();
+                try {
+                    s.connect(nodes.get(node), (int) CONNECT_TIMEOUT);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    return;
+                } catch (ConnectException e) {
+                    s.close();
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(200); // it may not be up yet
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while connecting to node " + node, ie);
+                    }
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing else we can do about it
+                }
+            }
+            socket = null;
+            out = null;
+        }
+
+    }
+
+}
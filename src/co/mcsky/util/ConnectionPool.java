@@ -0,0 +1,257 @@
+package co.mcsky.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of persistent (HTTP/1.1 keep-alive) connections, kept
+ * separately for each host.
+ *
+ * <p>At most {@code maxPerHost} connections to the same host are alive at any
+ * time: a thread asking for one more waits until another thread gives one back.
+ * Connections given back are kept idle for reuse, and the idle ones that have
+ * not been used for {@code idleTimeout} milliseconds are closed by a background
+ * thread, since servers tend to drop them around that time anyway.
+ */
+public class ConnectionPool implements Closeable {
+
+    private final int maxPerHost;
+    private final long idleTimeout;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile DnsCache dns;
+    private volatile boolean closed;
+
+    /**
+     * @param maxPerHost  the max number of connections to a single host
+     * @param idleTimeout in milliseconds, how long a connection can stay idle
+     *                    in the pool before being closed
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Max connections per host must be positive: " + maxPerHost);
+        }
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "connection-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        var period = Math.max(1000L, idleTimeout / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes new connections look their host up through the given cache.
+     *
+     * @param dns the cache of host lookups, or {@code null} to look the host
+     *            up for every new connection
+     */
+    public void setDnsCache(DnsCache dns) {
+        this.dns = dns;
+    }
+
+    /**
+     * Takes an idle connection to the host if there is one, otherwise opens a
+     * new one. Waits while there are already {@code maxPerHost} connections to
+     * the host in use.
+     *
+     * @param host the host to connect to
+     * @param port the port to connect to
+     *
+     * @return a connection which must be given back with {@link
+     * #release(Connection, boolean)}
+     *
+     * @throws IOException if a new connection cannot be opened
+     */
+    public Connection acquire(String host, int port) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool has been closed");
+        }
+        var h = hosts.computeIfAbsent(host + ":" + port, k -> new Host(host, port));
+        try {
+            h.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + h.key);
+        }
+        try {
+            Connection c;
+            while ((c = h.pollIdle()) != null) {
+                if (c.isUsable(idleTimeout)) {
+                    return c;
+                }
+                c.close();
+            }
+            var cache = dns;
+            return new Connection(h, cache == null ? new InetSocketAddress(h.host, h.port) : cache.resolve(h.host, h.port));
+        } catch (IOException | RuntimeException e) {
+            h.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool.
+     *
+     * @param connection the connection obtained from {@link #acquire(String,
+     *                   int)}
+     * @param reusable   whether the connection can carry another request,
+     *                   that is the last response has been read off completely
+     *                   and the server did not ask to close it
+     */
+    public void release(Connection connection, boolean reusable) {
+        var h = connection.host;
+        if (reusable && !closed) {
+            connection.lastUsed = System.nanoTime();
+            connection.served++;
+            h.offerIdle(connection);
+        } else {
+            connection.close();
+        }
+        h.permits.release();
+    }
+
+    /**
+     * Closes every idle connection which has not been used for {@code
+     * idleTimeout} milliseconds.
+     */
+    public void evictIdle() {
+        for (Host h : hosts.values()) {
+            h.evict(idleTimeout);
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections currently in use are closed
+     * when they are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Host h : hosts.values()) {
+            h.evict(-1);
+        }
+    }
+
+    /**
+     * The connections to a single host.
+     */
+    private class Host {
+
+        final String host;
+        final int port;
+        final String key;
+        final Semaphore permits = new Semaphore(maxPerHost);
+        // Most recently used first, so the warmest connection is reused
+        final Deque<Connection> idle = new ArrayDeque<>();
+
+        Host(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.key = host + ":" + port;
+        }
+
+        synchronized Connection pollIdle() {
+            return idle.pollFirst();
+        }
+
+        synchronized void offerIdle(Connection c) {
+            idle.addFirst(c);
+        }
+
+        synchronized void evict(long timeout) {
+            var it = idle.descendingIterator(); // least recently used first
+            while (it.hasNext()) {
+                var c = it.next();
+                if (timeout >= 0 && c.isUsable(timeout)) {
+                    break;
+                }
+                it.remove();
+                c.close();
+            }
+        }
+
+    }
+
+    /**
+     * A persistent connection to a host.
+     */
+    public static class Connection implements Closeable {
+
+        private final Host host;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private int served;
+
+        private Connection(Host host, InetSocketAddress address) throws IOException {
+            this.host = host;
+            this.socket = new Socket();
+            try {
+                socket.connect(address); // an unresolved address fails with UnknownHostException
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            // Bytes read past the end of a response are pushed back for the next one
+            this.in = HttpResponseReader.pushback(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.lastUsed = System.nanoTime();
+        }
+
+        /**
+         * @return the stream to read responses from with {@link
+         * HttpResponseReader}
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * @return the stream to write requests to, which must be flushed
+         */
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * @return whether this connection has carried a request before, in
+         * which case the server may have closed it in the meantime
+         */
+        public boolean isReused() {
+            return served > 0;
+        }
+
+        private boolean isUsable(long timeout) {
+            return !socket.isClosed() && System.nanoTime() - lastUsed < TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing else we can do about it
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,277 @@
+package co.mcsky.util;
+
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a {@code gzip} or {@code deflate} body chunk by chunk, as the parser
+ * hands it over, into another {@link HttpResponseParser.BodyConsumer}. Only a
+ * small window of decoded bytes exists at a time, the decoded body as a whole
+ * is never held here.
+ *
+ * <p>The {@code gzip} header (<a href="https://www.rfc-editor.org/rfc/rfc1952">RFC
+ * 1952</a>) is parsed by hand, byte by byte, so it may be split anywhere
+ * across chunks, then the data is inflated raw and checked against the CRC of
+ * the trailer. A {@code deflate} body is meant to be wrapped in zlib, but as
+ * some servers send it raw, the wrapper is only expected if the first two
+ * bytes look like one.
+ *
+ * <p>A malformed body stops the decoding: what has been decoded so far has
+ * been handed over, and {@link #getError()} tells what went wrong. Instances
+ * are not thread-safe.
+ */
+public class ContentDecoder implements HttpResponseParser.BodyConsumer {
+
+    /**
+     * The request header asking for the encodings this class decodes.
+     */
+    public static final String ACCEPT_ENCODING = "Accept-Encoding: gzip, deflate\r\n";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int FTEXT_CRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    // Where a gzip body is at
+    private static final int HEADER = 0;
+    private static final int EXTRA_LENGTH = 1;
+    private static final int EXTRA = 2;
+    private static final int NAME = 3;
+    private static final int COMMENT = 4;
+    private static final int HEADER_CRC = 5;
+    private static final int DATA = 6;
+    private static final int TRAILER = 7;
+    private static final int DONE = 8;
+    private static final int FAILED = 9;
+
+    private final HttpResponseParser.BodyConsumer out;
+    private final boolean gzip;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private int state;
+    // Bytes of the current gzip field seen so far, and how many it has
+    private int seen;
+    private int expected;
+    private int flags;
+    private long trailer;
+    // The first byte of a deflate body while waiting for the second, or -1
+    private int first = -1;
+    private String error;
+
+    private ContentDecoder(HttpResponseParser.BodyConsumer out, boolean gzip) {
+        this.out = out;
+        this.gzip = gzip;
+        this.state = gzip ? HEADER : DATA;
+    }
+
+    /**
+     * @param encoding the value of {@code Content-Encoding}, or {@code null}
+     * @param out      where the decoded body goes
+     *
+     * @return a decoder feeding {@code out}, or {@code null} if the body is
+     * not encoded, or encoded in a way this class does not know
+     */
+    public static ContentDecoder of(String encoding, HttpResponseParser.BodyConsumer out) {
+        if (encoding == null) {
+            return null;
+        }
+        switch (encoding.strip().toLowerCase(Locale.ROOT)) {
+            case "gzip":
+            case "x-gzip":
+                return new ContentDecoder(out, true);
+            case "deflate":
+                return new ContentDecoder(out, false);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void accept(byte[] b, int off, int len) {
+        var end = off + len;
+        while (off < end && state < DONE) {
+            if (state == DATA) {
+                off = inflate(b, off, end);
+            } else if (state == TRAILER) {
+                trailer |= (b[off++] & 0xffL) << (8 * seen++);
+                if (seen == 8) {
+                    if ((int) trailer != (int) crc.getValue()) {
+                        fail("CRC mismatch");
+                    } else if ((int) (trailer >>> 32) != (int) inflater.getBytesWritten()) {
+                        fail("length mismatch");
+                    } else {
+                        finish();
+                    }
+                }
+            } else {
+                header(b[off++] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * @return whether the whole encoded body has been decoded, which a
+     * malformed body or one which has not been fed whole never is
+     */
+    public boolean isFinished() {
+        return state == DONE;
+    }
+
+    /**
+     * @return what is wrong with the body, or {@code null} if nothing is
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Frees the native memory behind this decoder before it is garbage
+     * collected, which a decoder which has {@link #isFinished() finished}
+     * has done already.
+     */
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private void header(int c) {
+        switch (state) {
+            case HEADER:
+                if ((seen == 0 && c != 0x1f) || (seen == 1 && c != 0x8b) || (seen == 2 && c != 8)) {
+                    fail("not a gzip stream");
+                    return;
+                }
+                if (seen == 3) {
+                    flags = c;
+                }
+                if (++seen == 10) { // ID1 ID2 CM FLG MTIME(4) XFL OS
+                    next(EXTRA_LENGTH);
+                }
+                break;
+            case EXTRA_LENGTH:
+                expected |= c << (8 * seen);
+                if (++seen == 2) {
+                    state = EXTRA;
+                    seen = 0;
+                    if (expected == 0) {
+                        next(NAME);
+                    }
+                }
+                break;
+            case EXTRA:
+                if (++seen == expected) {
+                    next(NAME);
+                }
+                break;
+            case NAME:
+            case COMMENT:
+                if (c == 0) {
+                    next(state + 1);
+                }
+                break;
+            case HEADER_CRC:
+                if (++seen == 2) {
+                    next(DATA);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Not in the header: " + state);
+        }
+    }
+
+    /**
+     * Moves on to {@code to}, or to the first field after it which is there.
+     */
+    private void next(int to) {
+        seen = 0;
+        expected = 0;
+        state = to;
+        if (state == EXTRA_LENGTH && (flags & FEXTRA) == 0) {
+            state = NAME;
+        }
+        if (state == NAME && (flags & FNAME) == 0) {
+            state = COMMENT;
+        }
+        if (state == COMMENT && (flags & FCOMMENT) == 0) {
+            state = HEADER_CRC;
+        }
+        if (state == HEADER_CRC && (flags & FTEXT_CRC) == 0) {
+            state = DATA;
+        }
+    }
+
+    /**
+     * @return where the bytes not taken by the inflater start in {@code b}
+     */
+    private int inflate(byte[] b, int off, int end) {
+        if (inflater == null) {
+            if (gzip) {
+                inflater = new Inflater(true);
+            } else if (first < 0 && end - off < 2) {
+                first = b[off] & 0xff; // too early to tell whether it is wrapped
+                return end;
+            } else {
+                var cmf = first < 0 ? b[off] & 0xff : first;
+                var flg = b[first < 0 ? off + 1 : off] & 0xff;
+                // A zlib header is a deflate method byte, then a check on both
+                inflater = new Inflater(!((cmf & 0x0f) == 8 && (cmf << 8 | flg) % 31 == 0));
+                if (first >= 0) {
+                    inflater.setInput(new byte[]{(byte) first});
+                    try {
+                        inflater.inflate(buffer); // takes the byte in, there is nothing to inflate yet
+                    } catch (DataFormatException e) {
+                        fail(e.getMessage());
+                        return end;
+                    }
+                }
+            }
+        }
+        inflater.setInput(b, off, end - off);
+        try {
+            while (!inflater.finished()) {
+                var n = inflater.inflate(buffer);
+                if (n == 0) {
+                    break; // needs more input, or a dictionary
+                }
+                if (gzip) {
+                    crc.update(buffer, 0, n);
+                }
+                out.accept(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+            return end;
+        }
+        var left = inflater.getRemaining();
+        if (inflater.finished()) {
+            if (gzip) {
+                state = TRAILER;
+                seen = 0;
+            } else {
+                finish();
+            }
+        } else if (inflater.needsDictionary()) {
+            fail("preset dictionary");
+        }
+        return end - left;
+    }
+
+    private void finish() {
+        state = DONE;
+        close();
+    }
+
+    private void fail(String reason) {
+        error = reason;
+        state = FAILED;
+        close();
+    }
+
+}
@@ -0,0 +1,592 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.struct.StatusCode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the breadth-first crawl on a pool of worker threads.
+ *
+ * <p>Each worker repeatedly takes a URL off the shared queue, fetches it with
+ * the given {@link SimpleCrawler} and pushes every inner URL it has not seen
+ * before back onto the queue. Inner URLs are queued while the page is still
+ * being downloaded, so idle workers can pick them up right away. The crawl
+ * finishes once the queue is empty and no worker is fetching anything (so
+ * nothing new can show up).
+ *
+ * <p>The queue is a {@link Frontier}, by default a {@link SpillingFrontier}
+ * which keeps at most {@value #DEFAULT_HEAD_CAPACITY} URLs in memory. With
+ * several hosts, a {@link PoliteFrontier} keeps the workers busy on the hosts
+ * which are ready rather than waiting on the others.
+ *
+ * <p>With a {@link NioCrawler} there is a single driver thread instead, which
+ * keeps up to {@code parallelism} requests in flight at the same time and
+ * processes each response when it arrives.
+ *
+ * <p>By default every response is kept whole until the crawl ends. With
+ * {@link #setMetadataOnly(Consumer)}, only {@link
+ * SimpleHttpResponse#withoutBody()} is kept once the links of a response have
+ * been queued, and the whole response is handed to a sink (if any) before
+ * being dropped.
+ *
+ * <p>The statistics of the report are aggregated as responses arrive, by
+ * each thread on its own, and {@link #getReport()} merges them at any time.
+ * If the report is all that is needed, {@link #setRetainResponses(boolean)}
+ * stops the responses from being kept at all.
+ *
+ * <p>With a {@link Checkpoint}, the state of the crawl (the frontier, the
+ * crawled URLs and the report so far) is saved periodically, and a crawl can
+ * {@link #resume(Checkpoint)} from the last snapshot instead of starting over.
+ * Taking a snapshot briefly holds off new fetches and waits for those in
+ * flight, so a snapshot never holds half of a page.
+ *
+ * <p>With a {@link ClusterNode}, the engine is one node of a distributed
+ * crawl: the URLs of hosts belonging to other nodes are forwarded to them
+ * instead of queued, and idle workers wait for the whole cluster to be done
+ * rather than for the local queue alone.
+ *
+ * <p>With an {@link AdmissionFilter}, the URLs it does not admit are dropped
+ * before they are queued, so they are never fetched nor probed. With a {@link
+ * RobotsCache}, the URLs the {@code robots.txt} of their host disallows are
+ * skipped when they come off the queue.
+ *
+ * <p>With a {@link NearDuplicateIndex}, the links of a page which is a
+ * near-duplicate of one crawled before are not queued.
+ *
+ * <p>A URL is marked as crawled at the moment it is queued, through a single
+ * atomic {@link VisitedUrlSet#add(SimpleURL)}, so every distinct {@link
+ * SimpleURL} is fetched exactly once no matter how many workers discover it at
+ * the same time.
+ */
+public class CrawlEngine {
+
+    public static final int DEFAULT_HEAD_CAPACITY = 100_000;
+
+    private final SimpleCrawler crawler;
+    private final NioCrawler nioCrawler;
+    private final int parallelism;
+
+    // Guarded by "this"
+    private Frontier que = new SpillingFrontier(DEFAULT_HEAD_CAPACITY, null);
+    private int inFlight;
+    private boolean paused;
+
+    private Checkpoint checkpoint;
+    private long checkpointInterval;
+    private ClusterNode cluster;
+    private DnsCache dns;
+    private AdmissionFilter filter;
+    private RobotsCache robots;
+    private NearDuplicateIndex duplicates;
+
+    // This set is used to mark what we have crawled (URL should be enough to tell distinct responses)
+    private VisitedUrlSet crawledUrls = new VisitedUrlSet();
+    private boolean retainResponses = true;
+    private boolean metadataOnly;
+    private Consumer<SimpleHttpResponse> bodySink;
+    // This set is where we store all responses we have crawled for later analysis (the report)
+    private final Set<SimpleHttpResponse> crawledResponse = ConcurrentHashMap.newKeySet();
+    // Each thread aggregates the report of the responses it has processed, see getReport()
+    private final List<ReportAggregator> reports = new CopyOnWriteArrayList<>();
+    private volatile SimpleURL site;
+    private final ThreadLocal<ReportAggregator> report = ThreadLocal.withInitial(() -> {
+        var r = new ReportAggregator(site);
+        reports.add(r);
+        return r;
+    });
+
+    /**
+     * @param crawler     the crawler used to fetch every URL, it must be safe
+     *                    to be shared between threads
+     * @param parallelism the number of URLs to fetch at the same time
+     */
+    public CrawlEngine(SimpleCrawler crawler, int parallelism) {
+        this(crawler, null, parallelism);
+    }
+
+    /**
+     * @param crawler     the non-blocking crawler used to fetch every URL
+     * @param parallelism the max number of requests in flight at the same
+     *                    time
+     */
+    public CrawlEngine(NioCrawler crawler, int parallelism) {
+        this(null, crawler, parallelism);
+    }
+
+    private CrawlEngine(SimpleCrawler crawler, NioCrawler nioCrawler, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.crawler = crawler;
+        this.nioCrawler = nioCrawler;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Replaces the default frontier. This must be set before crawling.
+     *
+     * @param frontier where the URLs wait to be crawled, it is closed when
+     *                 the crawl ends
+     */
+    public synchronized void setFrontier(Frontier frontier) {
+        this.que = frontier;
+    }
+
+    /**
+     * Replaces the default (exact) set of crawled URLs. This must be set before
+     * crawling.
+     *
+     * @param visited where the URLs are marked as crawled
+     */
+    public void setVisitedUrls(VisitedUrlSet visited) {
+        this.crawledUrls = visited;
+    }
+
+    /**
+     * @return the URLs marked as crawled so far
+     */
+    public VisitedUrlSet getVisitedUrls() {
+        return crawledUrls;
+    }
+
+    /**
+     * Sets whether the responses are kept until the crawl ends, which they
+     * are by default. Without them {@link #crawl(SimpleURL)} returns an empty
+     * set, and {@link #getReport()} is the only outcome of the crawl. This must
+     * be set before crawling.
+     *
+     * @param retainResponses whether to keep the responses
+     */
+    public void setRetainResponses(boolean retainResponses) {
+        this.retainResponses = retainResponses;
+    }
+
+    /**
+     * Keeps only the metadata of each response instead of the whole response.
+     * This must be set before crawling.
+     *
+     * @param bodySink receives every whole response before its body is
+     *                 dropped, from any worker thread, or {@code null} to just
+     *                 drop it
+     */
+    public void setMetadataOnly(Consumer<SimpleHttpResponse> bodySink) {
+        this.metadataOnly = true;
+        this.bodySink = bodySink;
+    }
+
+    /**
+     * Makes this engine one node of a distributed crawl: it only crawls the
+     * hosts its node is given, forwards the URLs of the other hosts, and does
+     * not stop until the whole cluster is done. This must be set before
+     * crawling.
+     *
+     * @param cluster this node, or {@code null} to crawl alone
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Makes this engine look up the host of every URL in the background as
+     * soon as the URL is queued, so that its address is known by the time it
+     * is fetched. The crawler must look hosts up through the same cache. This
+     * must be set before crawling.
+     *
+     * @param dns the cache of host lookups the crawler uses, or {@code null}
+     *            not to prefetch anything
+     */
+    public void setDnsCache(DnsCache dns) {
+        this.dns = dns;
+    }
+
+    /**
+     * Makes this engine drop the URLs the given filter does not admit, before
+     * they are queued. This must be set before crawling.
+     *
+     * @param filter the rules a URL must pass, or {@code null} to queue every
+     *               URL found
+     */
+    public void setAdmissionFilter(AdmissionFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Makes this engine skip the URLs which the {@code robots.txt} of their
+     * host disallows. This must be set before crawling.
+     *
+     * @param robots the {@code robots.txt} of the hosts, or {@code null} to
+     *               ignore them
+     */
+    public void setRobotsCache(RobotsCache robots) {
+        this.robots = robots;
+    }
+
+    /**
+     * Makes this engine leave the links of near-duplicate pages alone: a page
+     * whose {@link SimHash} is close to that of a page crawled before still
+     * counts in the report, but its links are not queued. The crawler is made
+     * to fingerprint the pages, and the links of a page are then only queued
+     * once the page is complete. This must be set before crawling.
+     *
+     * @param duplicates the fingerprints of the pages crawled, or {@code null}
+     *                   to follow the links of every page
+     */
+    public void setNearDuplicateIndex(NearDuplicateIndex duplicates) {
+        this.duplicates = duplicates;
+        if (crawler != null) {
+            crawler.setContentFingerprints(duplicates != null);
+        } else {
+            nioCrawler.setContentFingerprints(duplicates != null);
+        }
+    }
+
+    /**
+     * Saves the state of the crawl periodically while crawling, and once more
+     * when it ends. This must be set before crawling.
+     *
+     * @param checkpoint where to save the state
+     * @param interval   in milliseconds, how often to save it
+     */
+    public void setCheckpoint(Checkpoint checkpoint, long interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + interval);
+        }
+        this.checkpoint = checkpoint;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Loads the state saved in a checkpoint, so that {@link #crawl(SimpleURL)}
+     * carries on from there: the URLs which had been crawled are not fetched
+     * again, and they are still counted in the report. This must be called
+     * before crawling, and replaces any {@link VisitedUrlSet} set before.
+     *
+     * @param checkpoint where the state has been saved
+     *
+     * @return {@code false} if there is nothing saved in the checkpoint yet
+     *
+     * @throws IOException if the state cannot be read
+     */
+    public synchronized boolean resume(Checkpoint checkpoint) throws IOException {
+        return checkpoint.load(in -> {
+            site = new SimpleURL(in.readUTF());
+            for (long n = in.readLong(); n > 0; n--) {
+                que.add(new SimpleURL(in.readUTF()));
+            }
+            crawledUrls = VisitedUrlSet.load(in);
+            reports.add(ReportAggregator.load(in));
+        });
+    }
+
+    /**
+     * Saves the state of the crawl now. New fetches are held off meanwhile,
+     * and the state is saved once the fetches in flight are done.
+     *
+     * @throws IOException if the state cannot be saved
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (checkpoint == null || site == null) {
+            return;
+        }
+        paused = true;
+        try {
+            while (inFlight > 0) {
+                wait();
+            }
+            checkpoint.save(out -> {
+                out.writeUTF(site.toSpec());
+                out.writeLong(que.size());
+                try {
+                    que.forEach(url -> {
+                        try {
+                            out.writeUTF(url.toSpec());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                crawledUrls.save(out);
+                getReport().save(out);
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the fetches in flight");
+        } finally {
+            paused = false;
+            notifyAll();
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            var start = System.nanoTime();
+            checkpoint();
+            Log.event(Log.Level.INFO, "checkpoint-saved",
+                      "path", checkpoint.getPath(), "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            Log.warn("couldn't save checkpoint to " + checkpoint.getPath() + ": " + e);
+        }
+    }
+
+    /**
+     * Crawls everything reachable from {@code site}, blocking until done.
+     *
+     * @param site the URL to start crawling from
+     *
+     * @return a {@link Set} of all the crawled http responses
+     *
+     * @throws IllegalArgumentException if the crawl resumed from a checkpoint
+     *                                  of another site
+     */
+    public Set<SimpleHttpResponse> crawl(SimpleURL site) {
+        if (this.site != null && !this.site.equals(site)) {
+            throw new IllegalArgumentException("Checkpoint is of another site: " + this.site);
+        }
+        this.site = site;
+        enqueue(site); // nothing happens if resumed, it has been crawled already
+        if (cluster != null) {
+            cluster.start(this::enqueue, this::isIdle, this::wakeUp);
+        }
+        ScheduledExecutorService checkpointer = null;
+        if (checkpoint != null) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "crawl-checkpointer");
+                t.setDaemon(true);
+                return t;
+            });
+            checkpointer.scheduleWithFixedDelay(this::checkpointQuietly, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        }
+        var threads = nioCrawler == null ? parallelism : 1;
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            var t = new Thread(r, "crawler-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(nioCrawler == null ? this::work : this::drive);
+        }
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting, a crawl may well take longer than a minute
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            Log.warn("crawling interrupted, reporting what has been crawled so far");
+        }
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            checkpointQuietly();
+        }
+        synchronized (this) {
+            que.close();
+        }
+        return crawledResponse;
+    }
+
+    /**
+     * @return the responses crawled so far, safe to read while crawling
+     */
+    public Set<SimpleHttpResponse> getCrawledResponse() {
+        return crawledResponse;
+    }
+
+    /**
+     * @return the report of the responses crawled so far, safe to call while
+     * crawling
+     *
+     * @throws IllegalStateException if the crawl has not started
+     */
+    public ReportAggregator getReport() {
+        if (site == null) {
+            throw new IllegalStateException("Crawling has not started");
+        }
+        var merged = new ReportAggregator(site);
+        reports.forEach(merged::merge);
+        return merged;
+    }
+
+    private void work() {
+        SimpleURL url;
+        while ((url = next()) != null) {
+            try {
+                if (robots != null && !robots.isAllowed(url)) {
+                    continue;
+                }
+                var base = url;
+                // A near-duplicate is only known once it is complete, too late for links queued on the fly
+                process(crawler.request(url, duplicates == null ? spec -> enqueue(base, spec) : null));
+            } catch (RuntimeException e) {
+                Log.warn("failed to crawl " + url + ": " + e);
+            } finally {
+                done();
+            }
+        }
+    }
+
+    private void drive() {
+        var slots = new Semaphore(parallelism);
+        SimpleURL url;
+        while ((url = next()) != null) {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (robots == null) {
+                fetch(url, slots);
+                continue;
+            }
+            // The first URL of a host waits for its robots.txt, fetched by the crawler too rather than on this thread
+            var current = url;
+            robots.allows(url).whenComplete((allowed, e) -> {
+                if (e == null && allowed) {
+                    fetch(current, slots);
+                } else {
+                    slots.release();
+                    done();
+                }
+            });
+        }
+    }
+
+    private void fetch(SimpleURL url, Semaphore slots) {
+        nioCrawler.request(url).whenComplete((response, e) -> {
+            try {
+                if (e != null) {
+                    Log.warn("failed to crawl " + url + ": " + e);
+                } else {
+                    process(response);
+                }
+            } catch (RuntimeException ex) {
+                Log.warn("failed to crawl " + url + ": " + ex);
+            } finally {
+                slots.release();
+                done();
+            }
+        });
+    }
+
+    private void process(SimpleHttpResponse response) {
+        if (isNearDuplicate(response)) {
+            Log.event(Log.Level.DEBUG, "near-duplicate", "url", response.getHead().getURL());
+        } else {
+            for (SimpleURL inner : response.getInnerUrls()) { // try to crawl all the inner URLs
+                enqueue(inner);
+            }
+        }
+        report.get().accept(response);
+        if (metadataOnly) {
+            if (bodySink != null) {
+                bodySink.accept(response);
+            }
+            response = response.withoutBody();
+        }
+        if (retainResponses) {
+            crawledResponse.add(response);
+        }
+    }
+
+    private boolean isNearDuplicate(SimpleHttpResponse response) {
+        if (duplicates == null || response.getHead().getStatusCode().orElse(null) != StatusCode.OK) {
+            return false;
+        }
+        var fingerprint = response.getContentFingerprint();
+        return fingerprint.isPresent() && !duplicates.add(fingerprint.getAsLong());
+    }
+
+    private void enqueue(SimpleURL base, String spec) {
+        try {
+            enqueue(base.resolve(spec));
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            // Not a http URL, SimpleHttpResponse skips it too
+        }
+    }
+
+    private void enqueue(SimpleURL url) {
+        if (filter != null && !filter.admits(url)) {
+            return; // never touches the network
+        }
+        var local = cluster == null || cluster.isLocal(url);
+        synchronized (this) {
+            // Marked as crawled and queued at once, a checkpoint must never see one without the other
+            if (!crawledUrls.add(url)) {
+                return; // only the first one to discover it gets to queue it
+            }
+            if (local && que.add(url)) {
+                notify();
+            }
+        }
+        if (!local) {
+            cluster.forward(url); // the node it belongs to keeps track of it from now on
+            return;
+        }
+        if (dns != null) {
+            dns.prefetch(url.getHost()); // a no-op but for the first URL of a host (or once its address expires)
+        }
+    }
+
+    /**
+     * Takes the next URL to crawl, waiting while other workers are still
+     * fetching pages that may contain new URLs, or while a checkpoint is being
+     * taken.
+     *
+     * @return the next URL, or {@code null} if the crawl has completed
+     */
+    private synchronized SimpleURL next() {
+        while (true) {
+            if (!paused) {
+                var url = que.poll();
+                if (url != null) {
+                    inFlight++; // only once there is a URL, or done() would never be called for it
+                    return url;
+                }
+                if (inFlight == 0 && (cluster == null || cluster.isStopped())) {
+                    notifyAll(); // wake up the other idle workers so they can quit too
+                    return null;
+                }
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private synchronized boolean isIdle() {
+        return inFlight == 0 && que.isEmpty();
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private synchronized void done() {
+        inFlight--;
+        if (inFlight == 0 && (paused || que.isEmpty())) {
+            notifyAll();
+        }
+    }
+
+}
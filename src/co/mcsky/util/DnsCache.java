@@ -0,0 +1,229 @@
+package co.mcsky.util;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of host lookups, so that a host is looked up once in a while
+ * rather than on every request.
+ *
+ * <p>An address is kept for {@code ttl} milliseconds. A host which does not
+ * exist is remembered as well, for {@code negativeTtl} milliseconds, which
+ * spares the lookup of the same dead host every time a page links to it.
+ * Threads looking up the same host at the same time share a single lookup.
+ *
+ * <p>A host can be {@link #prefetch(String) prefetched}: looked up in the
+ * background, for instance as soon as one of its URLs is queued, so that its
+ * address is ready by the time the URL is fetched.
+ *
+ * <p>The lookups themselves go through a {@link Resolver}, which is the
+ * system resolver by default but can be anything (a fixed table of local
+ * addresses, for instance). Instances are thread-safe.
+ */
+public class DnsCache {
+
+    /**
+     * Looks hosts up.
+     */
+    @FunctionalInterface
+    public interface Resolver {
+
+        /**
+         * The resolver of the system, as used by {@link java.net.Socket}
+         */
+        Resolver SYSTEM = InetAddress::getByName;
+
+        /**
+         * @param host a host name or a literal address
+         *
+         * @return an address of {@code host}
+         *
+         * @throws UnknownHostException if {@code host} has no address
+         */
+        InetAddress resolve(String host) throws UnknownHostException;
+
+    }
+
+    private static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int PREFETCH_THREADS = 4;
+
+    private final Resolver resolver;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<String, CompletableFuture<Entry>> entries = new ConcurrentHashMap<>();
+    private final ExecutorService prefetcher;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * A cache on the system resolver, keeping addresses for 5 minutes and
+     * unknown hosts for 1 minute.
+     */
+    public DnsCache() {
+        this(Resolver.SYSTEM, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * @param resolver    how hosts are looked up
+     * @param ttl         in milliseconds, how long an address is kept
+     * @param negativeTtl in milliseconds, how long an unknown host is
+     *                    remembered as such
+     */
+    public DnsCache(Resolver resolver, long ttl, long negativeTtl) {
+        this.resolver = resolver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        var id = new AtomicInteger();
+        this.prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+            var t = new Thread(r, "dns-prefetch-" + id.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Looks a host up, unless it has been looked up recently.
+     *
+     * @param host a host name or a literal address
+     *
+     * @return an address of {@code host}
+     *
+     * @throws UnknownHostException if {@code host} has no address, now or at
+     *                              the last lookup
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        var lookup = lookup(host, false);
+        Entry entry;
+        try {
+            entry = lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while looking up " + host);
+        } catch (ExecutionException e) {
+            // The resolver failed in some unexpected way, don't keep that
+            entries.remove(host, lookup);
+            throw (UnknownHostException) new UnknownHostException(host).initCause(e.getCause());
+        }
+        if (entry.address == null) {
+            throw new UnknownHostException(host);
+        }
+        return entry.address;
+    }
+
+    /**
+     * @param host a host name or a literal address
+     * @param port a port
+     *
+     * @return the address of {@code host} and {@code port}, unresolved if
+     * {@code host} has no address
+     */
+    public InetSocketAddress resolve(String host, int port) {
+        try {
+            return new InetSocketAddress(resolve(host), port);
+        } catch (UnknownHostException e) {
+            return InetSocketAddress.createUnresolved(host, port);
+        }
+    }
+
+    /**
+     * Looks a host up in the background, unless it has been looked up
+     * recently or is being looked up already. Returns at once.
+     *
+     * @param host a host name or a literal address
+     */
+    public void prefetch(String host) {
+        lookup(host, true);
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which went to the resolver
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hosts, %d lookups, %d answered from the cache", entries.size(), lookups.get(), hits.get());
+    }
+
+    private CompletableFuture<Entry> lookup(String host, boolean background) {
+        var now = System.currentTimeMillis();
+        var cached = entries.get(host);
+        if (cached != null && !isStale(cached, now)) {
+            if (!background) {
+                hits.incrementAndGet();
+            }
+            return cached;
+        }
+        var fresh = new CompletableFuture<Entry>();
+        var won = cached == null ? entries.putIfAbsent(host, fresh) == null : entries.replace(host, cached, fresh);
+        if (!won) {
+            return lookup(host, background); // someone else has just started a lookup
+        }
+        lookups.incrementAndGet();
+        if (background) {
+            prefetcher.execute(() -> complete(host, fresh));
+        } else {
+            complete(host, fresh);
+        }
+        return fresh;
+    }
+
+    private static boolean isStale(CompletableFuture<Entry> lookup, long now) {
+        if (!lookup.isDone()) {
+            return false; // still being looked up, wait for that one
+        }
+        return lookup.isCompletedExceptionally() || lookup.join().isExpired(now);
+    }
+
+    private void complete(String host, CompletableFuture<Entry> lookup) {
+        try {
+            var address = resolver.resolve(host);
+            lookup.complete(new Entry(address, System.currentTimeMillis() + ttl));
+        } catch (UnknownHostException e) {
+            lookup.complete(new Entry(null, System.currentTimeMillis() + negativeTtl));
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * The outcome of a lookup: an address, or {@code null} if the host is
+     * unknown.
+     */
+    private static final class Entry {
+
+        final InetAddress address;
+        final long expiresAt;
+
+        Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+    }
+
+}
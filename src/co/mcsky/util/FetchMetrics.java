@@ -0,0 +1,530 @@
+package co.mcsky.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Where the time of a fetch goes, phase by phase ({@link Phase}), overall and
+ * for each host, together with the number of requests, failures and bytes.
+ *
+ * <p>A crawler {@link #start(String) starts} a {@link Timing} for each
+ * request and marks the end of each phase on it. Durations go into {@link
+ * Histogram histograms} made of atomic counters, so recording never takes a
+ * lock. A crawler without metrics uses {@link Timing#OFF} instead, which does
+ * not even read the clock.
+ *
+ * <p>The metrics can be read through JMX once {@link #register() registered},
+ * and {@link #dumpPeriodically(Path, long) dumped} to a file every now and
+ * then, as text or as JSON. Instances are thread-safe.
+ */
+public class FetchMetrics implements Closeable, FetchMetricsMXBean {
+
+    private static final String OBJECT_NAME = "co.mcsky:type=FetchMetrics";
+
+    private final Stats overall = new Stats();
+    private final Map<String, Stats> hosts = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumper;
+    private Path dumpFile;
+    private ObjectName registered;
+
+    /**
+     * The phases of a fetch, in the order they happen.
+     */
+    public enum Phase {
+        /**
+         * Looking the host up
+         */
+        DNS,
+        /**
+         * Waiting for the rate limiter of the host
+         */
+        RATE_LIMIT,
+        /**
+         * Opening the connection, or with a {@link ConnectionPool} taking one
+         * from the pool (the host is looked up in there as well then)
+         */
+        CONNECT,
+        /**
+         * From the request sent to the first byte of the response
+         */
+        FIRST_BYTE,
+        /**
+         * Receiving the rest of the response (its links are extracted on the
+         * fly)
+         */
+        BODY,
+        /**
+         * Building the {@link co.mcsky.struct.SimpleHttpResponse}
+         */
+        PARSE,
+        /**
+         * The whole fetch
+         */
+        TOTAL;
+
+        private final String label = name().toLowerCase(Locale.ROOT).replace('_', '-');
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Starts timing a request.
+     *
+     * @param hostPort the host of the request, as in {@link
+     *                 co.mcsky.struct.SimpleURL#getHostPort()}
+     *
+     * @return the timing of the request, to be used by one thread at a time
+     */
+    public Timing start(String hostPort) {
+        return new Timing(this, hosts.computeIfAbsent(hostPort, k -> new Stats()));
+    }
+
+    /**
+     * @return the number of requests made
+     */
+    @Override
+    public long getRequests() {
+        return overall.requests.sum();
+    }
+
+    /**
+     * @return the number of requests which could not reach their host, or
+     * whose response could not be read
+     */
+    @Override
+    public long getFailures() {
+        return overall.failures.sum();
+    }
+
+    /**
+     * @return the number of bytes received, heads included
+     */
+    @Override
+    public long getBytes() {
+        return overall.bytes.sum();
+    }
+
+    @Override
+    public Map<String, Double> getPercentilesMillis() {
+        var percentiles = new LinkedHashMap<String, Double>();
+        for (Phase phase : Phase.values()) {
+            var h = overall.phases[phase.ordinal()];
+            percentiles.put(phase + ".p50", millis(h.percentile(0.50)));
+            percentiles.put(phase + ".p99", millis(h.percentile(0.99)));
+            percentiles.put(phase + ".max", millis(h.getMax()));
+        }
+        return percentiles;
+    }
+
+    @Override
+    public List<String> getHosts() {
+        var list = new ArrayList<>(hosts.keySet());
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * @param phase a phase of a fetch
+     *
+     * @return the durations of {@code phase} over all hosts, in nanoseconds
+     */
+    public Histogram getHistogram(Phase phase) {
+        return overall.phases[phase.ordinal()];
+    }
+
+    /**
+     * @param hostPort a host
+     * @param phase    a phase of a fetch
+     *
+     * @return the durations of {@code phase} for {@code hostPort}, in
+     * nanoseconds, or {@code null} if nothing has been fetched from it
+     */
+    public Histogram getHistogram(String hostPort, Phase phase) {
+        var stats = hosts.get(hostPort);
+        return stats == null ? null : stats.phases[phase.ordinal()];
+    }
+
+    @Override
+    public String toText() {
+        var text = new StringBuilder();
+        text.append(this).append('\n');
+        overall.appendText(text);
+        for (String host : getHosts()) {
+            var stats = hosts.get(host);
+            text.append(String.format(Locale.ROOT, "%s: %d requests, %d failed, %d bytes%n",
+                                      host, stats.requests.sum(), stats.failures.sum(), stats.bytes.sum()));
+            stats.appendText(text);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toJson() {
+        var json = new StringBuilder("{");
+        overall.appendJson(json);
+        json.append(",\"hosts\":{");
+        var first = true;
+        for (String host : getHosts()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(host.replace("\\", "\\\\").replace("\"", "\\\"")).append("\":{");
+            hosts.get(host).appendJson(json);
+            json.append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Makes the metrics readable through JMX, as {@value #OBJECT_NAME}. If
+     * other metrics are registered under that name already, they are
+     * replaced.
+     *
+     * @throws JMException if the metrics cannot be registered
+     */
+    public synchronized void register() throws JMException {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new StandardMBean(this, FetchMetricsMXBean.class, true), name);
+        registered = name;
+    }
+
+    /**
+     * Writes the metrics to a file every {@code interval} milliseconds, and
+     * once more on {@link #close()}. The file is replaced as a whole each
+     * time, so a reader never sees half a dump.
+     *
+     * @param file     where the metrics go, as JSON if its name ends with
+     *                 {@code .json}, otherwise as text
+     * @param interval in milliseconds, how often the file is written
+     */
+    public synchronized void dumpPeriodically(Path file, long interval) {
+        if (dumper != null) {
+            throw new IllegalStateException("Already dumping to " + dumpFile);
+        }
+        dumpFile = file;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "metrics-dumper");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(this::dumpQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the metrics to a file, as JSON if its name ends with {@code
+     * .json}, otherwise as text.
+     *
+     * @param file where the metrics go
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void dump(Path file) throws IOException {
+        var content = file.getFileName().toString().endsWith(".json") ? toJson() : toText();
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stops the periodic dump, writing the file one last time, and
+     * unregisters the metrics from JMX.
+     */
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumpQuietly();
+            dumper = null;
+        }
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (JMException ignored) {
+                // Already gone
+            }
+            registered = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        var total = overall.phases[Phase.TOTAL.ordinal()];
+        return String.format(Locale.ROOT, "%d requests, %d failed, %d bytes, fetch p50 %.2f ms, p99 %.2f ms",
+                             getRequests(), getFailures(), getBytes(),
+                             millis(total.percentile(0.50)), millis(total.percentile(0.99)));
+    }
+
+    private void dumpQuietly() {
+        Path file;
+        synchronized (this) {
+            file = dumpFile;
+        }
+        try {
+            dump(file);
+        } catch (IOException e) {
+            Log.warn("couldn't dump the metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The metrics of all hosts, or of a single one.
+     */
+    private static final class Stats {
+
+        final Histogram[] phases = new Histogram[Phase.values().length];
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        Stats() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+
+        void appendText(StringBuilder text) {
+            text.append(String.format(Locale.ROOT, "  %-10s %10s %10s %10s %10s %10s%n", "phase", "count", "mean ms", "p50 ms", "p99 ms", "max ms"));
+            for (Phase phase : Phase.values()) {
+                var h = phases[phase.ordinal()];
+                text.append(String.format(Locale.ROOT, "  %-10s %10d %10.3f %10.3f %10.3f %10.3f%n",
+                                          phase, h.getCount(), h.getMean() / 1e6,
+                                          millis(h.percentile(0.50)), millis(h.percentile(0.99)), millis(h.getMax())));
+            }
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append(String.format(Locale.ROOT, "\"requests\":%d,\"failures\":%d,\"bytes\":%d,\"phases\":{",
+                                      requests.sum(), failures.sum(), bytes.sum()));
+            for (Phase phase : Phase.values()) {
+                var h = phases[phase.ordinal()];
+                if (phase.ordinal() > 0) {
+                    json.append(',');
+                }
+                json.append(String.format(Locale.ROOT, "\"%s\":{\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+                                          phase, h.getCount(), h.getMean() / 1e6,
+                                          millis(h.percentile(0.50)), millis(h.percentile(0.99)), millis(h.getMax())));
+            }
+            json.append('}');
+        }
+
+    }
+
+    /**
+     * The timing of one request. Each call to {@link #lap(Phase)} records the
+     * time since the previous one (or since the start) as the duration of a
+     * phase.
+     */
+    public static final class Timing {
+
+        /**
+         * A timing which records nothing, for crawlers without metrics
+         */
+        public static final Timing OFF = new Timing(null, null);
+
+        private final FetchMetrics metrics;
+        private final Stats host;
+        private final long start;
+        private long last;
+        private long bytes;
+
+        private Timing(FetchMetrics metrics, Stats host) {
+            this.metrics = metrics;
+            this.host = host;
+            this.start = metrics == null ? 0 : System.nanoTime();
+            this.last = start;
+        }
+
+        /**
+         * Ends a phase.
+         *
+         * @param phase the phase which has just ended
+         */
+        public void lap(Phase phase) {
+            if (metrics == null) {
+                return;
+            }
+            var now = System.nanoTime();
+            record(phase, now - last);
+            last = now;
+        }
+
+        /**
+         * Counts bytes received.
+         *
+         * @param n the number of bytes just received
+         */
+        public void received(long n) {
+            if (metrics == null) {
+                return; // OFF is shared by every thread, it must stay untouched
+            }
+            bytes += n;
+        }
+
+        /**
+         * Ends the request.
+         *
+         * @param ok whether the host could be reached
+         */
+        public void finish(boolean ok) {
+            if (metrics == null) {
+                return;
+            }
+            record(Phase.TOTAL, System.nanoTime() - start);
+            for (Stats stats : new Stats[]{metrics.overall, host}) {
+                stats.requests.increment();
+                stats.bytes.add(bytes);
+                if (!ok) {
+                    stats.failures.increment();
+                }
+            }
+        }
+
+        private void record(Phase phase, long nanos) {
+            metrics.overall.phases[phase.ordinal()].record(nanos);
+            host.phases[phase.ordinal()].record(nanos);
+        }
+
+    }
+
+    /**
+     * A histogram of durations with a bounded relative error (about 3%), in
+     * the manner of HdrHistogram: each power of two is split into {@value
+     * #SUB_BUCKETS} buckets of equal width, so that a few hundred atomic
+     * counters cover everything from a nanosecond to about half an hour, longer
+     * durations being counted in the last bucket.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKETS = 16;
+        private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+        private static final int MAX_EXPONENT = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value a duration in nanoseconds, negative ones count as
+         *              {@code 0}
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the mean of the values recorded, or {@code 0} if there are
+         * none
+         */
+        public double getMean() {
+            var n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @return the largest value recorded, exactly
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param p a fraction between {@code 0} and {@code 1}
+         *
+         * @return the value below which a fraction {@code p} of the values
+         * fall, within the error of a bucket, or {@code 0} if there are none
+         */
+        public long percentile(double p) {
+            var n = 0L;
+            var snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                n += snapshot[i];
+            }
+            if (n == 0) {
+                return 0;
+            }
+            var rank = Math.max(1, (long) Math.ceil(p * n));
+            var seen = 0L;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(middle(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            var exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+            if (exponent == MAX_EXPONENT && value >= 2L << MAX_EXPONENT) {
+                value = (2L << MAX_EXPONENT) - 1;
+            }
+            var sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the value in the middle of bucket {@code i}
+         */
+        private static long middle(int i) {
+            if (i < SUB_BUCKETS) {
+                return i;
+            }
+            var exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+            var width = 1L << (exponent - SUB_BITS);
+            return ((long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS)) + width / 2;
+        }
+
+    }
+
+}
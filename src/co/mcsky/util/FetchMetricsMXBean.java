@@ -0,0 +1,49 @@
+package co.mcsky.util;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What {@link FetchMetrics} shows through JMX, under {@code
+ * co.mcsky:type=FetchMetrics}.
+ */
+public interface FetchMetricsMXBean {
+
+    /**
+     * @return the number of requests made
+     */
+    long getRequests();
+
+    /**
+     * @return the number of requests which could not reach their host, or
+     * whose response could not be read
+     */
+    long getFailures();
+
+    /**
+     * @return the number of bytes received, heads included
+     */
+    long getBytes();
+
+    /**
+     * @return for every phase of a fetch over all hosts, its p50, p99 and max
+     * in milliseconds, keyed like {@code "first-byte.p99"}
+     */
+    Map<String, Double> getPercentilesMillis();
+
+    /**
+     * @return the hosts requests have been made to, sorted
+     */
+    List<String> getHosts();
+
+    /**
+     * @return all the metrics, overall and for each host, as text
+     */
+    String toText();
+
+    /**
+     * @return all the metrics, overall and for each host, as JSON
+     */
+    String toJson();
+
+}
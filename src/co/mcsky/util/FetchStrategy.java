@@ -0,0 +1,204 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides how much of a resource is worth downloading, so that the resources
+ * which have no links to follow cost little more than their head.
+ *
+ * <p>A URL is {@link #shouldProbe(SimpleURL) probed} with a {@code HEAD}
+ * request when it is predicted not to be a page, from the extension of its
+ * path: the usual extensions of images, media, archives and documents are
+ * predicted to be binary from the start, and any other extension once enough
+ * responses with that extension have come back binary (see {@link
+ * #learn(SimpleURL, SimpleHttpResponse)}). A prediction is dropped for an
+ * extension whose responses turn out to be pages as often as not. A probe
+ * which turns out to be a page anyway {@link #needsGet(SimpleHttpResponse)
+ * needs} a {@code GET} after all.
+ *
+ * <p>A {@code GET} which turns out to be binary, or whose body goes over the
+ * max body size (as told by {@code Content-Length}, or as it arrives), is cut
+ * off right after its head, see {@link HttpResponseReader.Message}.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class FetchStrategy {
+
+    /**
+     * The extensions which are predicted to be binary from the start.
+     */
+    public static final Set<String> BINARY_EXTENSIONS = Set.of(
+            "png", "jpg", "jpeg", "gif", "bmp", "ico", "webp", "tif", "tiff",
+            "mp3", "mp4", "ogg", "wav", "avi", "mov", "webm",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "tar", "jar",
+            "pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx",
+            "exe", "bin", "iso", "dmg", "woff", "woff2", "ttf", "otf");
+
+    // Responses with an extension which has not been seen binary this often are not predicted
+    private static final int MIN_SAMPLES = 3;
+
+    private final long maxBodySize;
+    private final boolean probe;
+    private final Map<String, Outcomes> extensions = new ConcurrentHashMap<>();
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder mispredictions = new LongAdder();
+
+    /**
+     * @param maxBodySize the max number of bytes of a body, or {@code -1} for
+     *                    no limit
+     * @param probe       whether to probe the URLs predicted to be binary
+     *                    with a {@code HEAD} request, otherwise they are
+     *                    fetched with a {@code GET} cut off after the head
+     */
+    public FetchStrategy(long maxBodySize, boolean probe) {
+        if (maxBodySize < -1) {
+            throw new IllegalArgumentException("Max body size must be -1 or more: " + maxBodySize);
+        }
+        this.maxBodySize = maxBodySize;
+        this.probe = probe;
+    }
+
+    /**
+     * Tells whether a URL should be requested with {@code HEAD}, counting it
+     * as a probe if so.
+     *
+     * @param url the URL about to be requested
+     *
+     * @return whether {@code url} is predicted not to be a page
+     */
+    public boolean shouldProbe(SimpleURL url) {
+        if (!probe) {
+            return false;
+        }
+        var extension = extension(url);
+        if (extension == null) {
+            return false;
+        }
+        var outcomes = extensions.get(extension);
+        long binary = outcomes == null ? 0 : outcomes.binary.sum();
+        long text = outcomes == null ? 0 : outcomes.text.sum();
+        boolean binaryPredicted = BINARY_EXTENSIONS.contains(extension)
+                                  ? text <= binary
+                                  : binary >= MIN_SAMPLES && text * 10 <= binary;
+        if (binaryPredicted) {
+            probes.increment();
+        }
+        return binaryPredicted;
+    }
+
+    /**
+     * Tells whether the response to a {@code HEAD} request was mispredicted,
+     * counting it if so.
+     *
+     * @param response the response to a probe
+     *
+     * @return whether the probed URL turns out to be a page, so its body is
+     * wanted after all
+     */
+    public boolean needsGet(SimpleHttpResponse response) {
+        var head = response.getHead();
+        if (head.getStatusCode().isEmpty() || !head.getStatusCode().get().status20x()) {
+            return false; // redirects and errors have nothing more to say
+        }
+        if (!isPage(response)) {
+            return false;
+        }
+        mispredictions.increment();
+        return true;
+    }
+
+    /**
+     * Learns from the type of a response whether its extension is binary.
+     *
+     * @param url      the URL which has been requested
+     * @param response the response to it, to a {@code GET} or a {@code HEAD}
+     */
+    public void learn(SimpleURL url, SimpleHttpResponse response) {
+        var head = response.getHead();
+        if (head.getStatusCode().isEmpty() || !head.getStatusCode().get().status20x()) {
+            return;
+        }
+        var extension = extension(url);
+        if (extension == null) {
+            return;
+        }
+        var outcomes = extensions.computeIfAbsent(extension, k -> new Outcomes());
+        if (isPage(response)) {
+            outcomes.text.increment();
+        } else {
+            outcomes.binary.increment();
+        }
+    }
+
+    /**
+     * @return the max number of bytes of a body, or {@code -1} for no limit
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * @return the number of {@code HEAD} requests so far
+     */
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    /**
+     * @return the number of probes which had to be followed by a {@code GET}
+     */
+    public long getMispredictions() {
+        return mispredictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d probed with HEAD, %d mispredicted, %d extensions learnt",
+                             getProbes(), getMispredictions(), extensions.size());
+    }
+
+    /**
+     * @return whether {@code response} is a {@link
+     * HttpResponseReader#isPage(String) page}, which is what a response
+     * without a {@code Content-Type} is taken for
+     */
+    private static boolean isPage(SimpleHttpResponse response) {
+        return response.getHead().getMediaType().map(HttpResponseReader::isPage).orElse(true);
+    }
+
+    /**
+     * @return the lower case extension of the last segment of the path of
+     * {@code url}, or {@code null} if it has none
+     */
+    static String extension(SimpleURL url) {
+        var path = url.getPath();
+        for (int i = path.length() - 1; i >= 0; i--) {
+            var c = path.charAt(i);
+            if (c == '/') {
+                return null;
+            }
+            if (c == '.') {
+                return i == path.length() - 1 ? null : path.substring(i + 1).toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * How often the responses with an extension have been pages or not.
+     */
+    private static final class Outcomes {
+
+        final LongAdder text = new LongAdder();
+        final LongAdder binary = new LongAdder();
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * The URLs waiting to be crawled, taken out in the order they should be
+ * fetched.
+ *
+ * <p>Implementations need not be thread-safe, {@link CrawlEngine} only calls
+ * them while holding its own lock.
+ */
+public interface Frontier extends Closeable {
+
+    /**
+     * Queues a URL. The caller makes sure each URL is only added once.
+     *
+     * @param url the URL to crawl later
+     *
+     * @return {@code false} if the URL could not be queued, in which case it
+     * is not counted by {@link #size()}
+     */
+    boolean add(SimpleURL url);
+
+    /**
+     * Takes the next URL to crawl out of the frontier.
+     *
+     * @return the next URL, or {@code null} if the frontier is empty
+     */
+    SimpleURL poll();
+
+    /**
+     * Visits every URL waiting in the frontier, in the order they would be
+     * taken out, without taking them out.
+     *
+     * @param action what to do with each URL
+     */
+    void forEach(Consumer<? super SimpleURL> action);
+
+    /**
+     * @return the number of URLs waiting in the frontier
+     */
+    long size();
+
+    /**
+     * @return whether there is no URL waiting in the frontier
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Drops whatever is left in the frontier and frees the resources behind
+     * it.
+     */
+    @Override
+    void close();
+
+}
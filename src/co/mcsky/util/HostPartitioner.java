@@ -0,0 +1,95 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.util.Arrays;
+
+/**
+ * Splits the hosts of a crawl between the nodes of a cluster with consistent
+ * hashing, so that every host is crawled by exactly one node (which is what
+ * keeps the politeness of a host in one place) and adding a node only moves
+ * about {@code 1/n} of the hosts.
+ *
+ * <p>Each node is given {@link #VIRTUAL_NODES} points on a ring of 64-bit
+ * hashes, and a host belongs to the node owning the first point at or after
+ * the hash of its {@code host:port}. Every node builds the same ring from the
+ * number of nodes alone. Instances are immutable.
+ */
+public class HostPartitioner {
+
+    /**
+     * The number of points of each node on the ring, enough to spread the
+     * hosts evenly
+     */
+    public static final int VIRTUAL_NODES = 128;
+
+    private final int nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param nodes the number of nodes in the cluster
+     */
+    public HostPartitioner(int nodes) {
+        if (nodes < 1) {
+            throw new IllegalArgumentException("Number of nodes must be positive: " + nodes);
+        }
+        this.nodes = nodes;
+        var ring = new long[nodes * VIRTUAL_NODES][];
+        for (int node = 0; node < nodes; node++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring[node * VIRTUAL_NODES + v] = new long[]{VisitedUrlSet.fingerprint("node-" + node + "#" + v), node};
+            }
+        }
+        // Ties (practically never) go to the lower node, the same on every node
+        Arrays.sort(ring, (a, b) -> a[0] != b[0] ? Long.compareUnsigned(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * @param url any URL
+     *
+     * @return the node which crawls the host of {@code url}, from {@code 0}
+     * to {@code nodes - 1}
+     */
+    public int partitionOf(SimpleURL url) {
+        return partitionOf(url.getHostPort());
+    }
+
+    /**
+     * @param hostPort a host and its port, as in {@link SimpleURL#getHostPort()}
+     *
+     * @return the node which crawls {@code hostPort}
+     */
+    public int partitionOf(String hostPort) {
+        if (nodes == 1) {
+            return 0;
+        }
+        var hash = VisitedUrlSet.fingerprint(hostPort);
+        // First point at or after the hash, in unsigned order, wrapping around
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi) {
+            var mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(points[mid], hash) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return owners[lo == points.length ? 0 : lo];
+    }
+
+    /**
+     * @return the number of nodes in the cluster
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+}
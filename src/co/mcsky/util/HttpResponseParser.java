@@ -0,0 +1,516 @@
+package co.mcsky.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An incremental http response parser working on raw bytes.
+ *
+ * <p>Bytes are pushed in with {@link #feed(byte[], int, int)} as they arrive
+ * from the network, in chunks of any size. The status line and the headers are
+ * parsed in a single pass, in place, and only the values of the headers we
+ * care about become Strings, so parsing a head costs time proportional to the
+ * size of the head. Once the empty line ending the head has been seen, the body
+ * is handed over to a {@link BodyConsumer} chunk by chunk, straight from the
+ * fed buffers, and never gets looked at by the parser.
+ *
+ * <p>The body is framed following <a href="https://www.rfc-editor.org/rfc/rfc7230#section-3.3.3">RFC
+ * 7230 3.3.3</a>: a chunked body is decoded, otherwise {@code Content-Length}
+ * bytes are taken, otherwise the body runs until {@link #endOfInput()}. A
+ * parser handles a single response and stops right after it, so whatever is
+ * fed beyond it belongs to the next response on the same connection.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public class HttpResponseParser {
+
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    private static final int STATUS_LINE = 0;
+    private static final int HEADER_LINE = 1;
+    private static final int BODY_FIXED = 2;
+    private static final int BODY_UNTIL_CLOSE = 3;
+    private static final int CHUNK_SIZE = 4;
+    private static final int CHUNK_DATA = 5;
+    private static final int CHUNK_DATA_END = 6;
+    private static final int TRAILER = 7;
+    private static final int DONE = 8;
+
+    private final BodyConsumer consumer;
+    private int state = STATUS_LINE;
+
+    // The raw head, lines are parsed in place from here
+    private byte[] head = new byte[512];
+    private int headLength;
+    private int lineStart;
+
+    private long remaining;
+    private boolean chunkExtension;
+    private boolean chunkSizeSeen;
+    private int trailerLineLength;
+    private boolean bodyExpected = true;
+    private long bodyLength;
+
+    private int statusCode = -1;
+    private long contentLength = -1;
+    private String contentType;
+    private String contentEncoding;
+    private String lastModified;
+    private String etag;
+    private String location;
+    private boolean chunked;
+    private boolean keepAlive;
+
+    /**
+     * @param consumer where the body goes, or {@code null} to throw it away
+     */
+    public HttpResponseParser(BodyConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Parses just the head of a response which has already been received as a
+     * whole. Only the characters up to the end of the head are looked at.
+     *
+     * @param response the string representation of a http response
+     *
+     * @return a parser which has seen the head of {@code response}
+     */
+    public static HttpResponseParser ofHead(CharSequence response) {
+        var parser = new HttpResponseParser(null);
+        var buf = new byte[256];
+        try {
+            for (int i = 0; i < response.length() && !parser.isHeadComplete(); ) {
+                var n = Math.min(buf.length, response.length() - i);
+                for (int j = 0; j < n; j++) {
+                    buf[j] = (byte) response.charAt(i + j);
+                }
+                for (int used = 0; used < n && !parser.isHeadComplete(); ) {
+                    used += parser.feed(buf, used, n - used);
+                }
+                i += n;
+            }
+        } catch (IOException e) {
+            // Malformed head, keep whatever has been parsed
+        }
+        parser.endOfInput();
+        return parser;
+    }
+
+    /**
+     * Tells the parser that the response comes without a body whatever its
+     * headers say, as is the case with the response to a {@code HEAD} request.
+     * This must be called before the head is complete.
+     */
+    public void expectNoBody() {
+        this.bodyExpected = false;
+    }
+
+    /**
+     * @return whether the response may come with a body, see {@link
+     * #expectNoBody()}
+     */
+    public boolean isBodyExpected() {
+        return bodyExpected;
+    }
+
+    /**
+     * Pushes the next bytes of the response into the parser.
+     *
+     * @param b   the buffer holding the bytes
+     * @param off where the bytes start in {@code b}
+     * @param len the number of bytes
+     *
+     * @return the number of bytes consumed, which is less than {@code len}
+     * only if the response has ended before them
+     *
+     * @throws IOException if the response is malformed
+     */
+    public int feed(byte[] b, int off, int len) throws IOException {
+        int i = off;
+        int end = off + len;
+        while (i < end && state != DONE) {
+            switch (state) {
+                case STATUS_LINE:
+                case HEADER_LINE:
+                    i = feedHead(b, i, end);
+                    break;
+                case BODY_FIXED:
+                case CHUNK_DATA: {
+                    var n = (int) Math.min(remaining, end - i);
+                    deliver(b, i, n);
+                    i += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = state == BODY_FIXED ? DONE : CHUNK_DATA_END;
+                    }
+                    break;
+                }
+                case BODY_UNTIL_CLOSE:
+                    deliver(b, i, end - i);
+                    i = end;
+                    break;
+                case CHUNK_SIZE:
+                    chunkSize(b[i++]);
+                    break;
+                case CHUNK_DATA_END:
+                    if (b[i++] == '\n') {
+                        state = CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILER: {
+                    var c = b[i++];
+                    if (c == '\n') {
+                        if (trailerLineLength == 0) {
+                            state = DONE;
+                        }
+                        trailerLineLength = 0;
+                    } else if (c != '\r') {
+                        trailerLineLength++;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown parser state: " + state);
+            }
+        }
+        return i - off;
+    }
+
+    /**
+     * Tells the parser that the connection has been closed. This completes a
+     * body delimited by the end of the connection, and a head which has been
+     * cut short is taken as it is.
+     */
+    public void endOfInput() {
+        if (state == STATUS_LINE || state == HEADER_LINE) {
+            if (lineStart < headLength) {
+                parseLine(lineStart, headLength);
+            }
+            state = DONE;
+        } else if (state == BODY_UNTIL_CLOSE) {
+            state = DONE;
+        }
+    }
+
+    private int feedHead(byte[] b, int i, int end) throws IOException {
+        while (i < end) {
+            var c = b[i++];
+            if (headLength == head.length) {
+                if (headLength >= MAX_HEAD_SIZE) {
+                    throw new IOException("Http head is too large");
+                }
+                head = Arrays.copyOf(head, headLength * 2);
+            }
+            head[headLength++] = c;
+            if (c != '\n') {
+                continue;
+            }
+            var lineEnd = headLength - 1;
+            if (lineEnd > lineStart && head[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (state == HEADER_LINE && lineEnd == lineStart) {
+                headComplete();
+                return i;
+            }
+            parseLine(lineStart, lineEnd);
+            lineStart = headLength;
+        }
+        return i;
+    }
+
+    private void parseLine(int from, int to) {
+        if (state == STATUS_LINE) {
+            if (from == to) {
+                return; // tolerate empty lines before the status line
+            }
+            parseStatusLine(from, to);
+            state = HEADER_LINE;
+        } else {
+            parseHeader(from, to);
+        }
+    }
+
+    private void parseStatusLine(int from, int to) {
+        // HTTP/1.1 200 OK
+        keepAlive = regionEquals(from, to, "HTTP/1.1");
+        var space = from;
+        while (space < to && head[space] != ' ') {
+            space++;
+        }
+        var code = 0;
+        for (int i = space + 1; i < space + 4; i++) {
+            if (i >= to || head[i] < '0' || head[i] > '9') {
+                return;
+            }
+            code = code * 10 + head[i] - '0';
+        }
+        statusCode = code;
+    }
+
+    private void parseHeader(int from, int to) {
+        var colon = from;
+        while (colon < to && head[colon] != ':') {
+            colon++;
+        }
+        if (colon == to) {
+            return; // not a header at all
+        }
+        var valueFrom = colon + 1;
+        while (valueFrom < to && (head[valueFrom] == ' ' || head[valueFrom] == '\t')) {
+            valueFrom++;
+        }
+        var valueTo = to;
+        while (valueTo > valueFrom && (head[valueTo - 1] == ' ' || head[valueTo - 1] == '\t')) {
+            valueTo--;
+        }
+
+        // Only the headers we care about get their values copied out
+        if (nameEquals(from, colon, "Content-Length")) {
+            contentLength = parseDecimal(valueFrom, valueTo);
+        } else if (nameEquals(from, colon, "Content-Type")) {
+            contentType = string(valueFrom, valueTo);
+        } else if (nameEquals(from, colon, "Content-Encoding")) {
+            contentEncoding = string(valueFrom, valueTo);
+        } else if (nameEquals(from, colon, "Last-Modified")) {
+            lastModified = string(valueFrom, valueTo);
+        } else if (nameEquals(from, colon, "ETag")) {
+            etag = string(valueFrom, valueTo);
+        } else if (nameEquals(from, colon, "Location")) {
+            location = string(valueFrom, valueTo);
+        } else if (nameEquals(from, colon, "Transfer-Encoding")) {
+            chunked = regionEndsWithIgnoreCase(valueFrom, valueTo, "chunked");
+        } else if (nameEquals(from, colon, "Connection")) {
+            if (regionEqualsIgnoreCase(valueFrom, valueTo, "close")) {
+                keepAlive = false;
+            } else if (regionEqualsIgnoreCase(valueFrom, valueTo, "keep-alive")) {
+                keepAlive = true;
+            }
+        }
+    }
+
+    private void headComplete() {
+        if (!bodyExpected || statusCode / 100 == 1 || statusCode == 204 || statusCode == 304) {
+            state = DONE;
+        } else if (chunked) {
+            state = CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = contentLength == 0 ? DONE : BODY_FIXED;
+        } else {
+            keepAlive = false; // the body ends when the connection does
+            state = BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void chunkSize(byte c) throws IOException {
+        if (c == '\n') {
+            if (!chunkSizeSeen) {
+                throw new IOException("Missing chunk size");
+            }
+            state = remaining == 0 ? TRAILER : CHUNK_DATA;
+            chunkExtension = false;
+            chunkSizeSeen = false;
+            return;
+        }
+        if (chunkExtension || c == '\r' || c == ' ' || c == '\t') {
+            return;
+        }
+        if (c == ';') {
+            chunkExtension = true; // chunk extensions are ignored
+            return;
+        }
+        var digit = Character.digit(c, 16);
+        if (digit < 0 || remaining > (Long.MAX_VALUE >> 4)) {
+            throw new IOException("Malformed chunk size");
+        }
+        remaining = remaining * 16 + digit;
+        chunkSizeSeen = true;
+    }
+
+    private void deliver(byte[] b, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        bodyLength += len;
+        if (consumer != null) {
+            consumer.accept(b, off, len);
+        }
+    }
+
+    private boolean nameEquals(int from, int to, String name) {
+        return regionEqualsIgnoreCase(from, to, name);
+    }
+
+    private boolean regionEquals(int from, int to, String s) {
+        if (to - from < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (head[from + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (lower(head[from + i]) != lower((byte) s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEndsWithIgnoreCase(int from, int to, String s) {
+        return to - from >= s.length() && regionEqualsIgnoreCase(to - s.length(), to, s);
+    }
+
+    private static int lower(byte c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private long parseDecimal(int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            if (head[i] < '0' || head[i] > '9') {
+                return -1;
+            }
+            n = n * 10 + head[i] - '0';
+        }
+        return n;
+    }
+
+    private String string(int from, int to) {
+        return new String(head, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return whether the whole head has been parsed, after which the getters
+     * of the headers can be trusted
+     */
+    public boolean isHeadComplete() {
+        return state > HEADER_LINE;
+    }
+
+    /**
+     * @return whether the whole response (head and body) has been parsed
+     */
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    /**
+     * @return the status code, or {@code -1} if there isn't a valid one
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the value of {@code Content-Length}, or {@code -1} if absent
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the value of {@code Content-Type}, or {@code null} if absent
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the value of {@code Content-Encoding}, or {@code null} if
+     * absent
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return the value of {@code Last-Modified}, or {@code null} if absent
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the value of {@code ETag} (quotes and all), or {@code null} if
+     * absent
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the value of {@code Location}, or {@code null} if absent
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return whether the body is chunked
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return whether the connection can carry another response after this
+     * one, going by the version and the {@code Connection} header
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return the number of bytes of the head, including the empty line
+     */
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /**
+     * @return the number of body bytes handed to the consumer so far, after
+     * de-chunking
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return the string representation of the head as received
+     */
+    public String getHeadText() {
+        return string(0, headLength);
+    }
+
+    /**
+     * Receives the body of a response, chunk by chunk.
+     */
+    @FunctionalInterface
+    public interface BodyConsumer {
+
+        /**
+         * @param b   the buffer holding the next bytes of the body, which is
+         *            only valid during this call
+         * @param off where the bytes start in {@code b}
+         * @param len the number of bytes
+         */
+        void accept(byte[] b, int off, int len);
+
+    }
+
+}
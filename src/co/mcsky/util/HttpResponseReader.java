@@ -0,0 +1,441 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Reads exactly one http response off a stream with a {@link
+ * HttpResponseParser}, so that a persistent connection can carry the next
+ * response afterwards.
+ *
+ * <p>If the stream is a {@link PushbackInputStream}, the bytes read past the
+ * end of the response are pushed back for the next response to pick up, which
+ * is what makes http pipelining work.
+ */
+public class HttpResponseReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private HttpResponseReader() {
+    }
+
+    /**
+     * @param in the stream to wrap
+     *
+     * @return a stream which {@link #read(InputStream, boolean)} can push the
+     * bytes of the next response back into
+     */
+    public static PushbackInputStream pushback(InputStream in) {
+        return new PushbackInputStream(in, BUFFER_SIZE) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                var pushed = buf.length - pos;
+                if (pushed > 0 && len > 0) {
+                    // Hand out the pushed back bytes alone, the next response may well be all in there already
+                    var n = Math.min(pushed, len);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Reads a response.
+     *
+     * @param in            the stream to read from
+     * @param abortUnwanted if {@code true}, stop reading right after the head
+     *                      of a binary response, or of one over its {@link
+     *                      Message#limitBody(long) max body size} (the
+     *                      connection is not reusable then), otherwise read
+     *                      the body off the stream but throw it away
+     *
+     * @return the response read
+     *
+     * @throws EOFException if the stream ends before a status line is read,
+     *                      which typically means the server has closed a
+     *                      persistent connection
+     * @throws IOException  if the response cannot be read
+     */
+    public static Message read(InputStream in, boolean abortUnwanted) throws IOException {
+        return read(in, abortUnwanted, new Message());
+    }
+
+    /**
+     * Reads a response, handing over the links of the page as soon as they
+     * arrive.
+     *
+     * @param in            the stream to read from
+     * @param abortUnwanted see {@link #read(InputStream, boolean)}
+     * @param onLink        receives every link of the page (as written in the
+     *                      page) while the body is still being received, or
+     *                      {@code null}
+     *
+     * @return the response read
+     *
+     * @throws IOException see {@link #read(InputStream, boolean)}
+     */
+    public static Message read(InputStream in, boolean abortUnwanted, Consumer<String> onLink) throws IOException {
+        return read(in, abortUnwanted, new Message(onLink));
+    }
+
+    /**
+     * Reads a response into a message set up by the caller (for instance to
+     * {@link Message#recordRaw() record} its raw bytes).
+     *
+     * @param in            the stream to read from
+     * @param abortUnwanted see {@link #read(InputStream, boolean)}
+     * @param message       a new message to read the response into
+     *
+     * @return {@code message}
+     *
+     * @throws IOException see {@link #read(InputStream, boolean)}
+     */
+    public static Message read(InputStream in, boolean abortUnwanted, Message message) throws IOException {
+        var buf = new byte[BUFFER_SIZE];
+        while (!message.isComplete()) {
+            var n = in.read(buf);
+            if (n == -1) {
+                message.endOfInput();
+                if (message.parser.getHeadLength() == 0) {
+                    throw new EOFException("Connection closed before a response");
+                }
+                break;
+            }
+            var used = message.feed(buf, 0, n);
+            if (used < n && in instanceof PushbackInputStream) {
+                ((PushbackInputStream) in).unread(buf, used, n - used);
+            }
+            if (message.isBodyUnwanted() && !message.isComplete()) {
+                if (abortUnwanted) {
+                    message.abort();
+                    break;
+                }
+                message.discardBody();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @param contentType the value of a {@code Content-Type}
+     *
+     * @return whether a response of this type is a page, which may have links
+     * to follow: text, XHTML or some other XML
+     */
+    public static boolean isPage(String contentType) {
+        var end = contentType.indexOf(';');
+        var type = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text") ||
+               type.equals("application/xhtml+xml") ||
+               type.equals("application/xml") ||
+               type.endsWith("+xml");
+    }
+
+    /**
+     * A response being received: the parser of the head plus the body
+     * collected so far. It can be fed straight from network buffers (see
+     * {@link #feed(byte[], int, int)}) when the bytes do not come from a
+     * blocking stream.
+     *
+     * <p>The body of a text response is run through a {@link LinkExtractor}
+     * chunk by chunk as it arrives, so its links are known by the time the
+     * body is complete and the page never has to be scanned again. A {@code
+     * gzip} or {@code deflate} body goes through a {@link ContentDecoder}
+     * first, chunk by chunk as well. The decoded body is collected for {@link
+     * #toResponse(SimpleURL, Charset)} unless {@link #dropBody() dropped}, in
+     * which case no copy of it is made at all.
+     */
+    public static class Message {
+
+        private final HttpResponseParser parser = new HttpResponseParser(this::append);
+        private final Consumer<String> onLink;
+        private final List<String> links = new ArrayList<>();
+        private LinkExtractor extractor;
+        private SimHash simHash;
+        private boolean fingerprint;
+        private boolean keepBody = true;
+        private ContentDecoder decoder;
+        private boolean bodyStarted;
+        private byte[] body = new byte[0];
+        private int bodyLength;
+        // The bytes of the body once decoded, which is what the page weighs
+        private long decodedLength;
+        private boolean discard;
+        private boolean aborted;
+        // The bytes of the response as received, only if asked for
+        private byte[] raw;
+        private int rawLength;
+        private FetchMetrics.Timing timing = FetchMetrics.Timing.OFF;
+        private long received;
+        private long maxBodySize = -1;
+
+        public Message() {
+            this(null);
+        }
+
+        /**
+         * @param onLink receives every link of the page as soon as it has
+         *               arrived, or {@code null}
+         */
+        public Message(Consumer<String> onLink) {
+            this.onLink = onLink;
+        }
+
+        /**
+         * Pushes the next bytes of the response in.
+         *
+         * @return the number of bytes consumed, see {@link
+         * HttpResponseParser#feed(byte[], int, int)}
+         *
+         * @throws IOException if the response is malformed
+         */
+        public int feed(byte[] b, int off, int len) throws IOException {
+            if (received == 0 && len > 0) {
+                timing.lap(FetchMetrics.Phase.FIRST_BYTE);
+            }
+            var used = parser.feed(b, off, len);
+            if (decoder != null && decoder.getError() != null) {
+                throw new IOException("Malformed " + parser.getContentEncoding() + " body: " + decoder.getError());
+            }
+            if (decoder != null && parser.isComplete()) {
+                decoder.close(); // in case the body ended early
+            }
+            received += used;
+            timing.received(used);
+            if (raw != null) {
+                if (rawLength + used > raw.length) {
+                    raw = Arrays.copyOf(raw, Math.max(rawLength + used, raw.length * 2));
+                }
+                System.arraycopy(b, off, raw, rawLength, used);
+                rawLength += used;
+            }
+            return used;
+        }
+
+        /**
+         * Keeps the bytes of the response exactly as they are received, head
+         * and all, before any de-chunking. This must be called before feeding
+         * the message.
+         */
+        public void recordRaw() {
+            if (raw == null) {
+                raw = new byte[BUFFER_SIZE];
+            }
+        }
+
+        /**
+         * Works out the {@link SimHash} of a text body as it arrives. This
+         * must be called before feeding the message.
+         */
+        public void fingerprintContent() {
+            fingerprint = true;
+        }
+
+        /**
+         * Does not collect the body, only its links (and its {@link SimHash}
+         * if asked for) as it goes by, so the response has an empty body.
+         * This must be called before feeding the message.
+         */
+        public void dropBody() {
+            keepBody = false;
+        }
+
+        /**
+         * Gives up on the body once it is known to be larger than {@code
+         * maxBodySize} bytes, from its {@code Content-Length} or as it
+         * arrives. This must be called before feeding the message.
+         *
+         * @param maxBodySize the max number of bytes of the body, or {@code
+         *                    -1} for no limit
+         */
+        public void limitBody(long maxBodySize) {
+            this.maxBodySize = maxBodySize;
+        }
+
+        /**
+         * Marks the first byte of the response on the given timing, and counts
+         * the bytes received on it. This must be called before feeding the
+         * message.
+         *
+         * @param timing the timing of the request of this response
+         */
+        public void time(FetchMetrics.Timing timing) {
+            this.timing = timing;
+        }
+
+        /**
+         * @return the bytes received so far (see {@link #recordRaw()}), or
+         * {@code null} if they are not recorded
+         */
+        public ByteBuffer getRaw() {
+            return raw == null ? null : ByteBuffer.wrap(raw, 0, rawLength).asReadOnlyBuffer();
+        }
+
+        /**
+         * Tells that the connection has been closed.
+         */
+        public void endOfInput() {
+            parser.endOfInput();
+        }
+
+        /**
+         * Stops receiving the body: what has been received so far is dropped
+         * (but for its links, see {@link #discardBody()}) and the connection
+         * must be closed.
+         */
+        public void abort() {
+            discardBody();
+            aborted = true;
+        }
+
+        /**
+         * Keeps receiving the body (so the connection stays usable) but
+         * drops it. The links found so far are kept, as they may have been
+         * handed over already.
+         */
+        public void discardBody() {
+            discard = true;
+            if (decoder != null) {
+                decoder.close();
+                decoder = null;
+            }
+            body = new byte[0];
+            bodyLength = 0;
+            decodedLength = 0;
+            simHash = null;
+        }
+
+        private void link(String spec) {
+            links.add(spec);
+            if (onLink != null) {
+                onLink.accept(spec);
+            }
+        }
+
+        private void append(byte[] b, int off, int len) {
+            if (discard) {
+                return;
+            }
+            if (!bodyStarted) {
+                bodyStarted = true;
+                decoder = ContentDecoder.of(parser.getContentEncoding(), this::appendDecoded);
+            }
+            if (decoder != null) {
+                decoder.accept(b, off, len);
+            } else {
+                appendDecoded(b, off, len);
+            }
+        }
+
+        private void appendDecoded(byte[] b, int off, int len) {
+            if (extractor == null && (parser.getContentType() == null || isPage(parser.getContentType()))) {
+                extractor = new LinkExtractor(this::link);
+                if (fingerprint) {
+                    simHash = new SimHash();
+                }
+            }
+            if (extractor != null) {
+                extractor.feed(b, off, len);
+            }
+            if (simHash != null) {
+                simHash.feed(b, off, len);
+            }
+            decodedLength += len;
+            if (!keepBody) {
+                return;
+            }
+            if (bodyLength + len > body.length) {
+                var hint = parser.getContentLength() > 0 ? (int) Math.min(parser.getContentLength(), 1 << 20) : 0;
+                body = Arrays.copyOf(body, Math.max(Math.max(hint, bodyLength + len), body.length * 2));
+            }
+            System.arraycopy(b, off, body, bodyLength, len);
+            bodyLength += len;
+        }
+
+        /**
+         * @return the parser holding the head of this response
+         */
+        public HttpResponseParser getParser() {
+            return parser;
+        }
+
+        /**
+         * @return whether the head says this response is not a {@link
+         * #isPage(String) page}, so it has no links to follow
+         */
+        public boolean isBinary() {
+            return parser.isHeadComplete() &&
+                   parser.getContentType() != null &&
+                   !isPage(parser.getContentType());
+        }
+
+        /**
+         * @return whether the body is too large, see {@link #limitBody(long)}
+         */
+        public boolean isOversized() {
+            return maxBodySize >= 0 && parser.isHeadComplete() &&
+                   (parser.getContentLength() > maxBodySize || parser.getBodyLength() > maxBodySize);
+        }
+
+        /**
+         * @return whether the rest of the body is not worth receiving, the
+         * response being {@link #isBinary() binary} or {@link #isOversized()
+         * oversized}
+         */
+        public boolean isBodyUnwanted() {
+            return isBinary() || isOversized();
+        }
+
+        /**
+         * @return whether the whole response has been received
+         */
+        public boolean isComplete() {
+            return parser.isComplete();
+        }
+
+        /**
+         * @return whether the connection can carry another request
+         */
+        public boolean isKeepAlive() {
+            return !aborted && parser.isComplete() && parser.isKeepAlive();
+        }
+
+        /**
+         * @return whether the body has been left unread, see {@link
+         * #isBodyUnwanted()}
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * @param url     the URL this response came from
+         * @param charset the charset to decode the body with
+         *
+         * @return this response as a {@link SimpleHttpResponse}
+         */
+        public SimpleHttpResponse toResponse(SimpleURL url, Charset charset) {
+            var content = simHash == null || simHash.getShingles() == 0 ? null : simHash.value();
+            // A body cut off, thrown away or never sent weighs whatever its Content-Length says
+            var length = parser.isComplete() && parser.isBodyExpected() && !discard ? decodedLength : -1;
+            return new SimpleHttpResponse(url, parser, new String(body, 0, bodyLength, charset), links, content, length, true);
+        }
+
+    }
+
+}
@@ -0,0 +1,286 @@
+package co.mcsky.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Pulls the values of {@code href} and {@code src} attributes out of html, in
+ * a single linear pass over the page.
+ *
+ * <p>This is a hand-written tokenizer rather than a regex: it understands
+ * double-quoted, single-quoted and unquoted attribute values, skips comments,
+ * and never backtracks. Its state survives between calls to {@code feed}, so a
+ * page can be fed chunk by chunk as it is being downloaded and every link is
+ * handed over as soon as its closing quote arrives.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public class LinkExtractor {
+
+    private static final int MAX_VALUE_LENGTH = 8 * 1024;
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int MARKUP_DECLARATION = 2;
+    private static final int COMMENT = 3;
+    private static final int SKIP_TAG = 4;
+    private static final int TAG_NAME = 5;
+    private static final int BEFORE_ATTR = 6;
+    private static final int ATTR_NAME = 7;
+    private static final int AFTER_ATTR_NAME = 8;
+    private static final int BEFORE_VALUE = 9;
+    private static final int VALUE_DOUBLE_QUOTED = 10;
+    private static final int VALUE_SINGLE_QUOTED = 11;
+    private static final int VALUE_UNQUOTED = 12;
+
+    private final Consumer<String> sink;
+    private final StringBuilder value = new StringBuilder();
+    private int state = TEXT;
+    // Just enough of the attribute name to tell "href" and "src" apart from the rest
+    private final char[] name = new char[5];
+    private int nameLength;
+    private boolean wanted;
+    private int dashes;
+    private boolean fromBytes;
+    private boolean nonAscii;
+
+    /**
+     * @param sink where every extracted attribute value goes, in the order of
+     *             the page
+     */
+    public LinkExtractor(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param html a whole html page
+     *
+     * @return a {@link List} of all the {@code href} and {@code src} values of
+     * the page, can be size of 0
+     */
+    public static List<String> extract(CharSequence html) {
+        var links = new ArrayList<String>();
+        var extractor = new LinkExtractor(links::add);
+        extractor.feed(html);
+        extractor.end();
+        return links;
+    }
+
+    /**
+     * Feeds the next chunk of the page as raw bytes. Attribute syntax is
+     * ASCII, and values are decoded as UTF-8.
+     */
+    public void feed(byte[] b, int off, int len) {
+        fromBytes = true;
+        for (int i = off, end = off + len; i < end; i++) {
+            step((char) (b[i] & 0xFF));
+        }
+    }
+
+    /**
+     * Feeds the next chunk of the page as characters.
+     */
+    public void feed(CharSequence chunk) {
+        fromBytes = false;
+        for (int i = 0, n = chunk.length(); i < n; i++) {
+            step(chunk.charAt(i));
+        }
+    }
+
+    /**
+     * Tells that the page has ended, so a value cut short by the end of the
+     * page is dropped just like the regex used to.
+     */
+    public void end() {
+        state = TEXT;
+        value.setLength(0);
+    }
+
+    private void step(char c) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = TAG_OPEN;
+                }
+                break;
+            case TAG_OPEN:
+                if (isLetter(c)) {
+                    state = TAG_NAME;
+                } else if (c == '!') {
+                    dashes = 0;
+                    state = MARKUP_DECLARATION;
+                } else if (c == '/' || c == '?') {
+                    state = SKIP_TAG;
+                } else if (c != '<') {
+                    state = TEXT;
+                }
+                break;
+            case MARKUP_DECLARATION: // <!-- or <!DOCTYPE
+                if (c == '-' && ++dashes == 2) {
+                    dashes = 0;
+                    state = COMMENT;
+                } else if (c != '-') {
+                    state = c == '>' ? TEXT : SKIP_TAG;
+                }
+                break;
+            case COMMENT:
+                if (c == '-') {
+                    dashes++;
+                } else {
+                    if (c == '>' && dashes >= 2) {
+                        state = TEXT;
+                    }
+                    dashes = 0;
+                }
+                break;
+            case SKIP_TAG:
+                if (c == '>') {
+                    state = TEXT;
+                }
+                break;
+            case TAG_NAME:
+                if (isSpace(c) || c == '/') {
+                    state = BEFORE_ATTR;
+                } else if (c == '>') {
+                    state = TEXT;
+                }
+                break;
+            case BEFORE_ATTR:
+                if (c == '>') {
+                    state = TEXT;
+                } else if (!isSpace(c) && c != '/') {
+                    startName(c);
+                    state = ATTR_NAME;
+                }
+                break;
+            case ATTR_NAME:
+                if (c == '=') {
+                    endName();
+                    state = BEFORE_VALUE;
+                } else if (isSpace(c)) {
+                    state = AFTER_ATTR_NAME;
+                } else if (c == '>') {
+                    state = TEXT;
+                } else if (c == '/') {
+                    state = BEFORE_ATTR;
+                } else {
+                    appendName(c);
+                }
+                break;
+            case AFTER_ATTR_NAME:
+                if (c == '=') {
+                    endName();
+                    state = BEFORE_VALUE;
+                } else if (c == '>') {
+                    state = TEXT;
+                } else if (!isSpace(c)) {
+                    startName(c); // the previous attribute had no value
+                    state = ATTR_NAME;
+                }
+                break;
+            case BEFORE_VALUE:
+                if (c == '"') {
+                    startValue();
+                    state = VALUE_DOUBLE_QUOTED;
+                } else if (c == '\'') {
+                    startValue();
+                    state = VALUE_SINGLE_QUOTED;
+                } else if (c == '>') {
+                    state = TEXT;
+                } else if (!isSpace(c)) {
+                    startValue();
+                    appendValue(c);
+                    state = VALUE_UNQUOTED;
+                }
+                break;
+            case VALUE_DOUBLE_QUOTED:
+                if (c == '"') {
+                    emit();
+                    state = BEFORE_ATTR;
+                } else {
+                    appendValue(c);
+                }
+                break;
+            case VALUE_SINGLE_QUOTED:
+                if (c == '\'') {
+                    emit();
+                    state = BEFORE_ATTR;
+                } else {
+                    appendValue(c);
+                }
+                break;
+            case VALUE_UNQUOTED:
+                if (isSpace(c)) {
+                    emit();
+                    state = BEFORE_ATTR;
+                } else if (c == '>') {
+                    emit();
+                    state = TEXT;
+                } else {
+                    appendValue(c);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown extractor state: " + state);
+        }
+    }
+
+    private void startName(char c) {
+        wanted = false;
+        nameLength = 0;
+        appendName(c);
+    }
+
+    private void appendName(char c) {
+        if (nameLength < name.length) {
+            name[nameLength] = Character.toLowerCase(c);
+        }
+        nameLength++;
+    }
+
+    private void endName() {
+        wanted = nameLength == 4 && name[0] == 'h' && name[1] == 'r' && name[2] == 'e' && name[3] == 'f' ||
+                 nameLength == 3 && name[0] == 's' && name[1] == 'r' && name[2] == 'c';
+    }
+
+    private void startValue() {
+        value.setLength(0);
+        nonAscii = false;
+    }
+
+    private void appendValue(char c) {
+        if (wanted && value.length() < MAX_VALUE_LENGTH) {
+            value.append(c);
+            nonAscii |= c >= 0x80;
+        }
+    }
+
+    private void emit() {
+        if (!wanted) {
+            return;
+        }
+        wanted = false;
+        var s = value.toString().trim();
+        if (s.isEmpty()) {
+            return;
+        }
+        if (fromBytes && nonAscii) {
+            s = new String(s.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        }
+        if (s.indexOf('&') >= 0) {
+            s = s.replace("&amp;", "&");
+        }
+        sink.accept(s);
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+}
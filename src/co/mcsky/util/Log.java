@@ -0,0 +1,316 @@
+package co.mcsky.util;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The log of the crawler, written out of the way of the threads which crawl.
+ *
+ * <p>Logging a message only puts it in a bounded lock-free ring buffer. A
+ * single background thread takes the messages out in batches, formats them
+ * and prints each batch at once, {@link Level#WARN} and above to {@code
+ * System.err} and the rest to {@code System.out}. A crawler thread therefore
+ * never takes the lock of a {@code PrintStream} nor waits for a flush.
+ *
+ * <p>Besides plain messages, the log takes {@link #event(Level, String,
+ * Object...) events}: a name and some fields, which are only turned into
+ * text by the background thread, so the crawler does not build strings it
+ * may not need.
+ *
+ * <p>When the buffer is full, a message either waits for room (the default,
+ * nothing is lost) or is {@link #configure(Level, boolean) dropped}, in which
+ * case the number of dropped messages is logged once there is room again.
+ * Messages below the {@link #configure(Level, boolean) level} cost a volatile
+ * read and nothing else.
+ */
+public final class Log {
+
+    /**
+     * How much a message matters, from least to most.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR,
+        /**
+         * Nothing is logged at all
+         */
+        OFF
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK = 1_000_000; // 1 ms
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS", Locale.ROOT)
+                                                                   .withZone(ZoneId.systemDefault());
+
+    private static final Ring RING = new Ring(CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Thread WRITER;
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean dropWhenFull;
+    // How many messages the writer has printed so far
+    private static volatile long written;
+
+    static {
+        WRITER = new Thread(Log::write, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flusher"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets how the log behaves from now on.
+     *
+     * @param level        the least level a message must have to be logged
+     * @param dropWhenFull whether to drop messages while the buffer is full,
+     *                     rather than make the crawler wait for room
+     */
+    public static void configure(Level level, boolean dropWhenFull) {
+        Log.level = level;
+        Log.dropWhenFull = dropWhenFull;
+    }
+
+    /**
+     * @return the least level a message must have to be logged
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level a level
+     *
+     * @return whether messages of {@code level} are logged
+     */
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(Log.level) >= 0;
+    }
+
+    /**
+     * @param message what to log at {@link Level#DEBUG}
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    /**
+     * @param message what to log at {@link Level#INFO}
+     */
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    /**
+     * @param message what to log at {@link Level#WARN}
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    /**
+     * @param message what to log at {@link Level#ERROR}
+     */
+    public static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    /**
+     * Logs an event, written as its name followed by {@code key=value} for
+     * every field which is not {@code null}. The values are turned into text
+     * later on by another thread, so they must not change afterwards.
+     *
+     * @param level  how much the event matters
+     * @param name   what has happened, like {@code "response"}
+     * @param fields the names and values of the fields, one after the other
+     */
+    public static void event(Level level, String name, Object... fields) {
+        log(level, name, fields);
+    }
+
+    /**
+     * Waits until every message logged so far has been printed.
+     */
+    public static void flush() {
+        var target = RING.tail.get();
+        while (written < target && WRITER.isAlive()) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void log(Level level, String message, Object[] fields) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        var entry = new Entry(System.currentTimeMillis(), level, message, fields);
+        while (!RING.offer(entry)) {
+            if (dropWhenFull) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /**
+     * The background thread: prints the messages in batches, and naps when
+     * there are none.
+     */
+    private static void write() {
+        var out = new StringBuilder();
+        var err = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            var n = 0;
+            Entry entry;
+            while (n < BATCH_SIZE && (entry = RING.poll()) != null) {
+                var line = entry.level.compareTo(Level.WARN) >= 0 ? err : out;
+                var length = line.length();
+                try {
+                    entry.appendTo(line);
+                } catch (RuntimeException e) {
+                    // A field which cannot be printed must not take the log down
+                    line.setLength(length);
+                    line.append("Crawler - unprintable log message: ").append(e).append(System.lineSeparator());
+                }
+                n++;
+            }
+            var dropped = DROPPED.get();
+            if (dropped != reportedDrops) {
+                new Entry(System.currentTimeMillis(), Level.WARN, (dropped - reportedDrops) + " log messages dropped, the log buffer was full", null)
+                        .appendTo(err);
+                reportedDrops = dropped;
+            }
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+                out.setLength(0);
+            }
+            if (err.length() > 0) {
+                System.err.print(err);
+                System.err.flush();
+                err.setLength(0);
+            }
+            written += n;
+            if (n == 0) {
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+    }
+
+    /**
+     * A message waiting to be printed.
+     */
+    private static final class Entry {
+
+        final long time;
+        final Level level;
+        final String message;
+        final Object[] fields;
+
+        Entry(long time, Level level, String message, Object[] fields) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+            this.fields = fields;
+        }
+
+        void appendTo(StringBuilder line) {
+            line.append("Crawler - ").append(TIME.format(Instant.ofEpochMilli(time)))
+                .append(' ').append(level).append(' ').append(message);
+            if (fields != null) {
+                for (int i = 0; i + 1 < fields.length; i += 2) {
+                    if (fields[i + 1] == null) {
+                        continue;
+                    }
+                    var value = String.valueOf(fields[i + 1]);
+                    line.append(' ').append(fields[i]).append('=');
+                    if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0) {
+                        line.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                    } else {
+                        line.append(value);
+                    }
+                }
+            }
+            line.append(System.lineSeparator());
+        }
+
+    }
+
+    /**
+     * A bounded queue for many producers and a single consumer, without
+     * locks (after Dmitry Vyukov's bounded queue). Every slot has a sequence
+     * number telling whether it is free for the producer of a given position
+     * or holds a message for the consumer.
+     */
+    private static final class Ring {
+
+        final Entry[] slots;
+        final AtomicLongArray sequences;
+        final int mask;
+        // The next position to fill
+        final AtomicLong tail = new AtomicLong();
+        // The next position to take, only touched by the consumer
+        long head;
+
+        Ring(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+            }
+            this.slots = new Entry[capacity];
+            this.sequences = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * @return {@code false} if the ring is full
+         */
+        boolean offer(Entry entry) {
+            var position = tail.get();
+            while (true) {
+                var i = (int) position & mask;
+                var gap = sequences.get(i) - position;
+                if (gap == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots[i] = entry;
+                        sequences.set(i, position + 1); // publishes the entry
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (gap < 0) {
+                    return false; // the consumer has not freed this slot yet
+                } else {
+                    position = tail.get(); // another producer got it first
+                }
+            }
+        }
+
+        /**
+         * @return the next entry, or {@code null} if there is none yet
+         */
+        Entry poll() {
+            var i = (int) head & mask;
+            if (sequences.get(i) != head + 1) {
+                return null;
+            }
+            var entry = slots[i];
+            slots[i] = null;
+            sequences.set(i, head + slots.length); // frees the slot for the next lap
+            head++;
+            return entry;
+        }
+
+    }
+
+}
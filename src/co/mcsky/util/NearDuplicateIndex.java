@@ -0,0 +1,108 @@
+package co.mcsky.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link SimHash} fingerprints of the pages crawled so far, looked up for
+ * near-duplicates: fingerprints at most {@code maxDistance} bits apart.
+ *
+ * <p>A fingerprint is cut into {@value #BANDS} bands of {@value #BAND_BITS}
+ * bits, and indexed under each of them. Two fingerprints which differ in at
+ * most {@code BANDS - 1} bits have at least one band in common, so only the
+ * fingerprints sharing a band with the one looked up need to be compared, and
+ * none is ever missed.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class NearDuplicateIndex {
+
+    public static final int BANDS = 4;
+    public static final int BAND_BITS = 64 / BANDS;
+
+    private final int maxDistance;
+    // One map per band, from the bits of the band to the fingerprints with these bits
+    private final Map<Integer, long[]>[] bands;
+    private long pages;
+    private long duplicates;
+
+    /**
+     * @param maxDistance the max number of bits two fingerprints may differ in
+     *                    for their pages to be near-duplicates, {@code 3}
+     *                    being a common choice for 64 bits
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public NearDuplicateIndex(int maxDistance) {
+        if (maxDistance < 0 || maxDistance >= BANDS) {
+            throw new IllegalArgumentException("Max distance must be from 0 to " + (BANDS - 1) + ": " + maxDistance);
+        }
+        this.maxDistance = maxDistance;
+        this.bands = new Map[BANDS];
+        for (int i = 0; i < BANDS; i++) {
+            bands[i] = new HashMap<>();
+        }
+    }
+
+    /**
+     * Adds the fingerprint of a page, unless the page is a near-duplicate of
+     * one added before.
+     *
+     * @param fingerprint the {@link SimHash} of a page
+     *
+     * @return {@code false} if the page is a near-duplicate, in which case
+     * its fingerprint is not added
+     */
+    public synchronized boolean add(long fingerprint) {
+        pages++;
+        for (int i = 0; i < BANDS; i++) {
+            var bucket = bands[i].get(band(fingerprint, i));
+            if (bucket == null) {
+                continue;
+            }
+            // The first slot holds the number of fingerprints in the bucket
+            for (int j = 1; j <= bucket[0]; j++) {
+                if (SimHash.distance(fingerprint, bucket[j]) <= maxDistance) {
+                    duplicates++;
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < BANDS; i++) {
+            bands[i].merge(band(fingerprint, i), new long[]{1, fingerprint}, (bucket, one) -> {
+                var size = (int) bucket[0] + 1;
+                if (size == bucket.length) {
+                    bucket = Arrays.copyOf(bucket, size * 2);
+                }
+                bucket[size] = one[1];
+                bucket[0] = size;
+                return bucket;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of pages looked up so far
+     */
+    public synchronized long getPages() {
+        return pages;
+    }
+
+    /**
+     * @return the number of pages found to be near-duplicates so far
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d pages fingerprinted, %d near-duplicates not expanded", pages, duplicates);
+    }
+
+    private static int band(long fingerprint, int i) {
+        return (int) (fingerprint >>> (i * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+    }
+
+}
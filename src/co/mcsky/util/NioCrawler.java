@@ -0,0 +1,518 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking http crawler, the asynchronous counterpart of {@link
+ * SimpleCrawler}.
+ *
+ * <p>Requests are multiplexed on a few {@link Selector} threads, so thousands
+ * of them can be in flight without holding a thread each. The bytes read are
+ * fed to the {@link HttpResponseReader} right on the selector thread, so that
+ * is where bodies are inflated, their links extracted and their SimHash
+ * computed, as they arrive. This is linear in the size of the body, but it
+ * does hold up the other requests of that thread meanwhile, so a crawl of
+ * large pages wants a few more selectors. Archiving the response, building
+ * the {@link SimpleHttpResponse} and revalidating it run on a separate
+ * {@link Executor}.
+ *
+ * <p>Rate limiting never blocks either. A request which is not permitted yet
+ * by the {@link RateLimiter} is parked on its selector thread until its time
+ * comes, and that thread keeps serving the other requests meanwhile.
+ *
+ * <p>As with {@link SimpleCrawler#setValidatorCache(ValidatorCache)}, a
+ * {@link ValidatorCache} makes requests conditional, a {@link
+ * ResponseArchive} keeps the raw responses, {@link FetchMetrics} time
+ * every phase of a request, a {@link DnsCache} saves looking the same host
+ * up again and again and a {@link FetchStrategy} saves downloading what is
+ * not a page.
+ */
+public class NioCrawler implements Closeable {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private final RateLimiter throttler;
+    private final Set<String> whitelist;
+    private final Executor parser;
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile ValidatorCache validators;
+    private volatile ResponseArchive archive;
+    private volatile FetchMetrics metrics;
+    private volatile DnsCache dns;
+    private volatile FetchStrategy strategy;
+    private volatile boolean contentFingerprints;
+    private volatile boolean retainBodies = true;
+
+    /**
+     * Initializes a crawler.
+     *
+     * @param throttler the per-host rate limiter of this crawler
+     * @param whitelist what websites should the crawler crawls for
+     * @param selectors the number of selector threads
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioCrawler(RateLimiter throttler, Set<String> whitelist, int selectors) throws IOException {
+        this(throttler, whitelist, selectors, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes a crawler.
+     *
+     * @param throttler the per-host rate limiter of this crawler
+     * @param whitelist what websites should the crawler crawls for
+     * @param selectors the number of selector threads
+     * @param parser    where the responses are archived and built, once
+     *                  their bytes have all been read
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioCrawler(RateLimiter throttler, Set<String> whitelist, int selectors, Executor parser) throws IOException {
+        if (selectors < 1) {
+            throw new IllegalArgumentException("Number of selectors must be positive: " + selectors);
+        }
+        this.throttler = throttler;
+        this.whitelist = whitelist;
+        this.parser = parser;
+        this.loops = new Loop[selectors];
+        for (int i = 0; i < selectors; i++) {
+            loops[i] = new Loop(i);
+            loops[i].thread.start();
+        }
+    }
+
+    /**
+     * Makes this crawler send conditional requests for the pages in the given
+     * cache, and keep the cache up to date. This must be set before crawling.
+     *
+     * @param validators the validators of earlier crawls, or {@code null} to
+     *                   always download pages in full
+     */
+    public void setValidatorCache(ValidatorCache validators) {
+        this.validators = validators;
+    }
+
+    /**
+     * Makes this crawler archive the raw bytes of every response it receives.
+     * This must be set before crawling.
+     *
+     * @param archive where the responses go, or {@code null} not to archive
+     *                them
+     */
+    public void setResponseArchive(ResponseArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Makes this crawler record how long each phase of its requests takes.
+     * This must be set before crawling.
+     *
+     * @param metrics where the timings go, or {@code null} not to time
+     *                anything
+     */
+    public void setFetchMetrics(FetchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Makes this crawler look hosts up through the given cache. This must be
+     * set before crawling.
+     *
+     * @param dns the cache of host lookups, or {@code null} to look the host
+     *            up for every request
+     */
+    public void setDnsCache(DnsCache dns) {
+        this.dns = dns;
+    }
+
+    /**
+     * Makes this crawler ask for the head alone of the URLs the given strategy
+     * predicts not to be pages, and cut off the bodies it does not want. This
+     * must be set before crawling.
+     *
+     * @param strategy what to download of a resource, or {@code null} to
+     *                 download everything but the body of images
+     */
+    public void setFetchStrategy(FetchStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Makes this crawler work out the {@link SimHash} of every text body as
+     * it arrives, see {@link SimpleHttpResponse#getContentFingerprint()}. This
+     * must be set before crawling.
+     *
+     * @param contentFingerprints whether to fingerprint the bodies
+     */
+    public void setContentFingerprints(boolean contentFingerprints) {
+        this.contentFingerprints = contentFingerprints;
+    }
+
+    /**
+     * Makes this crawler keep the body of every response, see {@link
+     * SimpleHttpResponse#getBody()}, which is the default. Without it, the
+     * links and the {@link SimHash} are worked out of the body as it arrives
+     * and the body itself is dropped chunk by chunk, which is all a crawl
+     * needs unless something reads the pages. This must be set before
+     * crawling.
+     *
+     * @param retainBodies whether to keep the bodies
+     */
+    public void setRetainBodies(boolean retainBodies) {
+        this.retainBodies = retainBodies;
+    }
+
+    /**
+     * Sends a http GET request to given URL without waiting for the response.
+     *
+     * @param url standard URL
+     *
+     * @return a future which completes with the {@link SimpleHttpResponse}
+     * obtained from the {@code URL}. It never completes exceptionally: as with
+     * {@link SimpleCrawler#request(SimpleURL)}, connection problems result in
+     * an empty response
+     */
+    public CompletableFuture<SimpleHttpResponse> request(SimpleURL url) {
+        var fetching = strategy;
+        if (fetching == null || !fetching.shouldProbe(url)) {
+            return send(url, false, fetching, false);
+        }
+        // Mispredicted if it is a page after all, then it takes a GET
+        return send(url, true, fetching, false).thenCompose(response -> fetching.needsGet(response)
+                                                                        ? send(url, false, fetching, false)
+                                                                        : CompletableFuture.completedFuture(response));
+    }
+
+    /**
+     * Sends a http GET request to given URL without waiting for the response,
+     * leaving the {@link ValidatorCache} out of it: the request is not
+     * conditional and the response is not remembered, and its body is always
+     * kept. This is for the files the crawler reads itself, like {@code
+     * robots.txt}.
+     *
+     * @param url standard URL
+     *
+     * @return see {@link #request(SimpleURL)}
+     */
+    public CompletableFuture<SimpleHttpResponse> requestUnconditionally(SimpleURL url) {
+        return send(url, false, null, true);
+    }
+
+    private CompletableFuture<SimpleHttpResponse> send(SimpleURL url, boolean head, FetchStrategy fetching, boolean own) {
+        Log.event(Log.Level.DEBUG, "request", "url", url, "method", SimpleCrawler.method(head));
+        var exchange = new Exchange(url, head, fetching, own);
+        if (archive != null) {
+            exchange.received.recordRaw();
+        }
+        if (head) {
+            exchange.received.getParser().expectNoBody();
+        }
+        if (fetching != null) {
+            exchange.received.limitBody(fetching.getMaxBodySize());
+        }
+        if (contentFingerprints) {
+            exchange.received.fingerprintContent();
+        }
+        if (!retainBodies && !own) {
+            exchange.received.dropBody();
+        }
+        var stats = metrics;
+        if (stats != null) {
+            exchange.timing = stats.start(url.getHostPort());
+            exchange.received.time(exchange.timing);
+        }
+        // Resolve the host here, a selector thread must never block on DNS
+        var cache = dns;
+        exchange.address = cache == null
+                           ? new InetSocketAddress(url.getHost(), url.getPort())
+                           : cache.resolve(url.getHost(), url.getPort());
+        exchange.timing.lap(FetchMetrics.Phase.DNS);
+        var onSite = whitelist.contains(url.getHostPort());
+        if (onSite) {
+            // Rate limiting, each host has its own budget
+            exchange.startAt = throttler.reserve(url.getHostPort());
+        } else {
+            // Check whitelist. If the site is not in whitelist, then just see if we can connect to it
+            exchange.probe = true;
+            exchange.startAt = System.nanoTime();
+        }
+        loops[Math.floorMod(next.getAndIncrement(), loops.length)].submit(exchange);
+        return exchange.future;
+    }
+
+    /**
+     * Stops the selector threads. Requests still in flight are completed with
+     * empty responses.
+     */
+    @Override
+    public void close() {
+        for (Loop loop : loops) {
+            loop.thread.interrupt();
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * A request in flight and the bytes of its response received so far.
+     */
+    private static class Exchange {
+
+        final SimpleURL url;
+        final boolean head;
+        final FetchStrategy strategy;
+        // Read by the crawler itself, see requestUnconditionally()
+        final boolean own;
+        final CompletableFuture<SimpleHttpResponse> future = new CompletableFuture<>();
+        final HttpResponseReader.Message received = new HttpResponseReader.Message();
+        ByteBuffer request;
+        InetSocketAddress address;
+        SocketChannel channel;
+        FetchMetrics.Timing timing = FetchMetrics.Timing.OFF;
+        long startAt;
+        long deadline;
+        boolean probe;
+        boolean done;
+
+        Exchange(SimpleURL url, boolean head, FetchStrategy strategy, boolean own) {
+            this.url = url;
+            this.head = head;
+            this.strategy = strategy;
+            this.own = own;
+        }
+
+    }
+
+    /**
+     * A selector thread.
+     */
+    private class Loop implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        final Queue<Exchange> submitted = new ConcurrentLinkedQueue<>();
+        // Exchanges waiting for the rate limiter, only touched by this thread
+        final PriorityQueue<Exchange> waiting = new PriorityQueue<>(Comparator.comparingLong(e -> e.startAt));
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long nextSweep;
+
+        Loop(int id) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "crawler-selector-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        void submit(Exchange exchange) {
+            submitted.add(exchange);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Exchange e;
+                    while ((e = submitted.poll()) != null) {
+                        waiting.add(e);
+                    }
+                    var now = System.nanoTime();
+                    while ((e = waiting.peek()) != null && e.startAt - now <= 0) {
+                        connect(waiting.poll());
+                    }
+                    sweep(now);
+
+                    var timeout = TimeUnit.SECONDS.toMillis(1);
+                    if (e != null) {
+                        timeout = Math.min(timeout, Math.max(1, TimeUnit.NANOSECONDS.toMillis(e.startAt - now)));
+                    }
+                    selector.select(timeout);
+                    var keys = selector.selectedKeys();
+                    for (SelectionKey key : keys) {
+                        handle(key);
+                    }
+                    keys.clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                Log.error("selector failed: " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    fail((Exchange) key.attachment(), "crawler closed");
+                }
+                submitted.forEach(e -> fail(e, "crawler closed"));
+                waiting.forEach(e -> fail(e, "crawler closed"));
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Nothing else we can do about it
+                }
+            }
+        }
+
+        private void connect(Exchange e) {
+            e.timing.lap(FetchMetrics.Phase.RATE_LIMIT);
+            try {
+                if (e.address.isUnresolved()) {
+                    Log.warn("Unknown host " + e.url.getHost() + ", returning empty response");
+                    complete(e, null, false);
+                    return;
+                }
+                e.channel = SocketChannel.open();
+                e.channel.configureBlocking(false);
+                e.deadline = System.nanoTime() + TIMEOUT;
+                if (e.channel.connect(e.address)) {
+                    connected(e, e.channel.register(selector, 0, e));
+                } else {
+                    e.channel.register(selector, SelectionKey.OP_CONNECT, e);
+                }
+            } catch (IOException ex) {
+                fail(e, "couldn't connect");
+            }
+        }
+
+        private void connected(Exchange e, SelectionKey key) {
+            e.timing.lap(FetchMetrics.Phase.CONNECT);
+            if (e.probe) {
+                Log.info(e.url.getHostPort() + " not in whitelist, skipped and returning empty response");
+                complete(e, null, true);
+                return;
+            }
+            var cache = e.own ? null : validators;
+            var httpRequest = String.format("%s %s HTTP/1.0\r\n%s%s\r\n", SimpleCrawler.method(e.head), e.url.getPath(),
+                                            ContentDecoder.ACCEPT_ENCODING, cache == null ? "" : cache.conditionalHeaders(e.url));
+            e.request = ByteBuffer.wrap(httpRequest.getBytes(StandardCharsets.ISO_8859_1));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void handle(SelectionKey key) {
+            var e = (Exchange) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    e.channel.finishConnect();
+                    connected(e, key);
+                } else if (key.isWritable()) {
+                    e.channel.write(e.request);
+                    if (!e.request.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    read(e);
+                }
+            } catch (CancelledKeyException ex) {
+                // Already completed
+            } catch (IOException ex) {
+                fail(e, "couldn't get I/O for the connection");
+            }
+        }
+
+        private void read(Exchange e) throws IOException {
+            buffer.clear();
+            var n = e.channel.read(buffer);
+            if (n == -1) { // HTTP/1.0, the response ends when the connection does
+                e.received.endOfInput();
+                complete(e, e.received, true);
+                return;
+            }
+            // The bytes go straight from the network buffer into the parser
+            e.received.feed(buffer.array(), 0, n);
+            if (e.received.isBodyUnwanted() && !e.received.isComplete()) {
+                // Don't download the whole binary files as we don't need... just get the headers
+                Log.event(Log.Level.DEBUG, "body-aborted", "url", e.url, "oversized", e.received.isOversized());
+                e.received.abort();
+                complete(e, e.received, true);
+            } else if (e.received.isComplete()) {
+                complete(e, e.received, true);
+            }
+        }
+
+        private void sweep(long now) {
+            if (now - nextSweep < 0) {
+                return;
+            }
+            nextSweep = now + TimeUnit.SECONDS.toNanos(1);
+            for (SelectionKey key : selector.keys()) {
+                var e = (Exchange) key.attachment();
+                if (now - e.deadline > 0) {
+                    fail(e, "timed out");
+                }
+            }
+        }
+
+        private void fail(Exchange e, String reason) {
+            Log.warn(reason + " for " + e.url.getHostPort() + ", returning empty response");
+            complete(e, null, false);
+        }
+
+        private void complete(Exchange e, HttpResponseReader.Message response, boolean alive) {
+            if (e.channel != null) {
+                try {
+                    e.channel.close(); // also cancels its key
+                } catch (IOException ignored) {
+                    // Nothing else we can do about it
+                }
+            }
+            if (e.done) {
+                return;
+            }
+            e.done = true;
+            if (response != null) {
+                e.timing.lap(FetchMetrics.Phase.BODY);
+            }
+            CompletableFuture.runAsync(() -> {
+                var sink = archive;
+                if (sink != null && response != null) {
+                    try {
+                        sink.append(e.url, Instant.now(), response.getRaw(), response.isAborted());
+                    } catch (IOException ex) {
+                        Log.warn("couldn't archive the response of " + e.url + ": " + ex.getMessage());
+                    }
+                }
+                var cache = e.own ? null : validators;
+                var httpResponse = response == null
+                                   ? new SimpleHttpResponse(e.url, null, alive)
+                                   : response.toResponse(e.url, Charset.defaultCharset());
+                if (cache != null) {
+                    httpResponse = cache.revalidate(e.url, httpResponse, e.head);
+                }
+                if (e.strategy != null) {
+                    e.strategy.learn(e.url, httpResponse);
+                }
+                if (response != null) {
+                    e.timing.lap(FetchMetrics.Phase.PARSE);
+                }
+                e.timing.finish(alive);
+                SimpleCrawler.logResponse(httpResponse);
+                e.future.complete(httpResponse);
+            }, parser).exceptionally(ex -> {
+                Log.warn("couldn't parse the response of " + e.url + ": " + ex);
+                e.timing.finish(false);
+                e.future.complete(new SimpleHttpResponse(e.url, null, alive));
+                return null;
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,280 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A {@link Frontier} which hands out URLs host by host, always from the host
+ * that may be fetched the soonest, so that workers are not stuck behind the
+ * politeness delay of one host while other hosts have URLs ready (the
+ * scheduler of the Mercator crawler).
+ *
+ * <p>URLs first go to one of several front queues by priority, {@code 0}
+ * being the highest. They move on to the back queues, one per host, each
+ * holding the URLs of a single host. There are at most {@code maxBackQueues}
+ * back queues at a time (a few times the number of workers is plenty), and a
+ * back queue which is full sends the URLs of its host back to the front
+ * queues. When a back queue runs dry, the front queues are drained, highest
+ * priority first, until a URL of a host without a back queue shows up and
+ * gets one.
+ *
+ * <p>The back queues sit in a heap ordered by the time their host may next be
+ * fetched. Handing out a URL of a throttled host moves the host one interval
+ * of the {@link RateLimiter} later, starting from whenever the rate limiter
+ * lets it go. The rate limiter still does the waiting, this only decides the
+ * order. Hosts which are not throttled (those the crawler only probes) are
+ * always ready.
+ *
+ * <p>The front queues are {@link SpillingFrontier}s, so most of the URLs of a
+ * large crawl stay on disk. Instances are not thread-safe.
+ */
+public class PoliteFrontier implements Frontier {
+
+    // The URLs kept in memory by all the front queues together
+    private static final int FRONT_CAPACITY = 100_000;
+
+    private final RateLimiter limiter;
+    private final Set<String> throttled;
+    private final ToIntFunction<SimpleURL> priority;
+    private final int maxBackQueues;
+    private final int backQueueCapacity;
+
+    private final Frontier[] fronts;
+    private final Map<String, BackQueue> backQueues = new HashMap<>();
+    // When the hosts whose back queue ran dry may next be fetched, for when they get one again
+    private final Map<String, Long> closed = new HashMap<>();
+    private final PriorityQueue<BackQueue> ready = new PriorityQueue<>(
+            Comparator.comparingLong((BackQueue q) -> q.next).thenComparingLong(q -> q.order));
+    private long order;
+    private long size;
+
+    /**
+     * @param limiter           the rate limiter of the crawler, whose interval
+     *                          spaces the URLs of a host
+     * @param throttled         the hosts the rate limiter applies to,
+     *                          typically the whitelist of the crawler
+     * @param priorities        the number of front queues
+     * @param priority          gives the front queue of a URL, from {@code 0}
+     *                          to {@code priorities - 1}, see {@link
+     *                          #byDepth(int)}
+     * @param maxBackQueues     the max number of hosts with a back queue
+     * @param backQueueCapacity the max number of URLs a back queue holds
+     *                          before the next ones of its host go to the front
+     *                          queues
+     */
+    public PoliteFrontier(RateLimiter limiter, Set<String> throttled, int priorities, ToIntFunction<SimpleURL> priority,
+                          int maxBackQueues, int backQueueCapacity) {
+        if (priorities < 1) {
+            throw new IllegalArgumentException("Priorities must be positive: " + priorities);
+        }
+        if (maxBackQueues < 1) {
+            throw new IllegalArgumentException("Max back queues must be positive: " + maxBackQueues);
+        }
+        if (backQueueCapacity < 1) {
+            throw new IllegalArgumentException("Back queue capacity must be positive: " + backQueueCapacity);
+        }
+        this.limiter = limiter;
+        this.throttled = throttled;
+        this.priority = priority;
+        this.maxBackQueues = maxBackQueues;
+        this.backQueueCapacity = backQueueCapacity;
+        this.fronts = new Frontier[priorities];
+        for (int i = 0; i < priorities; i++) {
+            fronts[i] = new SpillingFrontier(Math.max(1, FRONT_CAPACITY / priorities), null);
+        }
+    }
+
+    /**
+     * @param priorities the number of front queues
+     *
+     * @return a priority which puts the shallow paths first, {@code /} and
+     * {@code /a.html} having the highest and the paths {@code priorities - 1}
+     * or more directories deep the lowest
+     */
+    public static ToIntFunction<SimpleURL> byDepth(int priorities) {
+        return url -> {
+            var path = url.getPath();
+            var depth = 0;
+            for (int i = 1; i < path.length(); i++) {
+                if (path.charAt(i) == '/') {
+                    depth++;
+                }
+            }
+            return Math.min(depth, priorities - 1);
+        };
+    }
+
+    @Override
+    public boolean add(SimpleURL url) {
+        var queue = backQueues.get(url.getHostPort());
+        if (queue != null && queue.urls.size() < backQueueCapacity) {
+            queue.urls.addLast(url);
+        } else if (queue == null && backQueues.size() < maxBackQueues) {
+            open(url);
+        } else if (!fronts[Math.max(0, Math.min(priority.applyAsInt(url), fronts.length - 1))].add(url)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Takes a URL of the host which may be fetched the soonest, even if that
+     * is not right now.
+     */
+    @Override
+    public SimpleURL poll() {
+        if (ready.isEmpty()) {
+            refill();
+        }
+        var queue = ready.poll();
+        if (queue == null) {
+            return null;
+        }
+        size--;
+        var url = queue.urls.pollFirst();
+        if (queue.throttled) {
+            queue.next = Math.max(queue.next, System.nanoTime()) + limiter.getInterval();
+        }
+        if (queue.urls.isEmpty()) {
+            backQueues.remove(queue.hostPort);
+            if (queue.throttled) {
+                closed.put(queue.hostPort, queue.next);
+            }
+            refill();
+        } else {
+            queue.order = order++;
+            ready.add(queue);
+        }
+        return url;
+    }
+
+    /**
+     * Visits the back queues in the order of their hosts, then the front
+     * queues by priority.
+     */
+    @Override
+    public void forEach(Consumer<? super SimpleURL> action) {
+        var queues = new ArrayList<>(ready);
+        queues.sort(ready.comparator());
+        queues.forEach(queue -> queue.urls.forEach(action));
+        for (Frontier front : fronts) {
+            front.forEach(action);
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of hosts with a back queue
+     */
+    public int getActiveHosts() {
+        return backQueues.size();
+    }
+
+    @Override
+    public void close() {
+        backQueues.clear();
+        closed.clear();
+        ready.clear();
+        for (Frontier front : fronts) {
+            front.close();
+        }
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d URLs, %d hosts active", size, backQueues.size());
+    }
+
+    /**
+     * Moves URLs from the front queues to the back queues until a new back
+     * queue has been opened, or the front queues are empty. A URL of a host
+     * whose back queue is full goes back to the end of its front queue, and
+     * after {@code maxBackQueues} of those the rest is left for the next time.
+     */
+    private void refill() {
+        var skipped = 0;
+        while (backQueues.size() < maxBackQueues) {
+            var front = pollableFront();
+            if (front == null) {
+                return;
+            }
+            var url = front.poll();
+            var queue = backQueues.get(url.getHostPort());
+            if (queue == null) {
+                open(url);
+                return;
+            }
+            if (queue.urls.size() < backQueueCapacity) {
+                queue.urls.addLast(url);
+            } else {
+                if (!front.add(url)) {
+                    size--; // lost on the way back
+                }
+                if (++skipped >= maxBackQueues) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Frontier pollableFront() {
+        for (Frontier front : fronts) {
+            if (!front.isEmpty()) {
+                return front;
+            }
+        }
+        return null;
+    }
+
+    private void open(SimpleURL url) {
+        var hostPort = url.getHostPort();
+        var isThrottled = throttled.contains(hostPort);
+        var queue = new BackQueue(hostPort, isThrottled);
+        queue.urls.addLast(url);
+        queue.next = System.nanoTime();
+        if (isThrottled) {
+            var next = closed.remove(hostPort);
+            queue.next = Math.max(limiter.nextPermittedTime(hostPort), next == null ? Long.MIN_VALUE : next);
+        }
+        queue.order = order++;
+        backQueues.put(hostPort, queue);
+        ready.add(queue);
+    }
+
+    /**
+     * The URLs of a single host.
+     */
+    private static final class BackQueue {
+
+        final String hostPort;
+        final boolean throttled;
+        final Deque<SimpleURL> urls = new ArrayDeque<>();
+        // The System.nanoTime() at which the host may next be fetched
+        long next;
+        // Breaks ties first come, first served
+        long order;
+
+        BackQueue(String hostPort, boolean throttled) {
+            this.hostPort = hostPort;
+            this.throttled = throttled;
+        }
+
+    }
+
+}
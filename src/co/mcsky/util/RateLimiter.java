@@ -1,62 +1,165 @@
 package co.mcsky.util;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
- * This class enables a thread to run at most once per {@link #interval}
- * milliseconds specified.
+ * A per-host token bucket. Each key (typically {@link
+ * co.mcsky.struct.SimpleURL#getHostPort()}) gets its own bucket which refills
+ * one token per {@link #interval} and holds at most {@link #burst} tokens, so
+ * being polite to one host never slows down requests to the other hosts.
+ *
+ * <p>Every bucket is a single {@link AtomicLong} holding its "theoretical
+ * arrival time" (the generic cell rate algorithm, which behaves exactly like a
+ * token bucket), updated with compare-and-set. No lock is ever taken and no
+ * thread is ever parked by this class except inside {@link #await(String)}.
+ *
+ * <p>All the timestamps used by this class are in {@link System#nanoTime()}
+ * units.
  */
 public class RateLimiter {
 
     private final long interval;
-    private long lastExecute;
+    private final int burst;
+    private final long tolerance;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
 
     /**
-     * Creates a rate limiter with specified interval.
+     * Creates a rate limiter which allows 1 request per {@code interval} per
+     * host, without bursts.
      *
      * @param interval in milliseconds.
      */
     public RateLimiter(long interval) {
-        this.interval = interval;
-    }
-
-    /**
-     * Invocation on this method restricts current thread to run at most once
-     * per {@code interval} milliseconds specified in this constructor. If the
-     * thread invokes this method under the specified interval (say, the thread
-     * is calling this method too frequent), then the thread will sleep for a
-     * particular length of time so that it can "slow down" and effectively runs
-     * at most once per {@code interval}.
-     */
-    public void await() {
-        if (check()) {
-            lastExecute = System.currentTimeMillis();
-        } else {
-            try {
-                Thread.sleep(left());
-                lastExecute = System.currentTimeMillis();
-            } catch (InterruptedException e) {
-                System.err.println("Waiting terminated early");
+        this(interval, 1);
+    }
+
+    /**
+     * Creates a rate limiter with specified interval and burst capacity.
+     *
+     * @param interval in milliseconds, the time for a bucket to refill a
+     *                 single token
+     * @param burst    the number of tokens a bucket can hold, that is how many
+     *                 requests to an idle host can go at once
+     */
+    public RateLimiter(long interval, int burst) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval cannot be negative: " + interval);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be positive: " + burst);
+        }
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+        this.burst = burst;
+        this.tolerance = this.interval * (burst - 1);
+    }
+
+    /**
+     * Takes a token from the bucket of {@code key} without waiting for it. If
+     * the bucket is empty, the token is borrowed from the future and the
+     * returned time tells when it becomes valid.
+     *
+     * @param key the bucket to take from, like "example.com:80"
+     *
+     * @return the {@link System#nanoTime()} at which the caller may go ahead,
+     * which is never before now
+     */
+    public long reserve(String key) {
+        var bucket = bucket(key);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.get();
+            long start = Math.max(now, tat - tolerance);
+            if (bucket.compareAndSet(tat, Math.max(tat, start) + interval)) {
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Takes a token from the bucket of {@code key} only if one is available
+     * right now.
+     *
+     * @param key the bucket to take from, like "example.com:80"
+     *
+     * @return whether a token has been taken
+     */
+    public boolean tryAcquire(String key) {
+        var bucket = bucket(key);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.get();
+            if (now < tat - tolerance) {
+                return false;
+            }
+            if (bucket.compareAndSet(tat, Math.max(tat, now) + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Tells when the bucket of {@code key} will next have a token, without
+     * taking it. This is meant for schedulers which would rather work on other
+     * hosts than park a thread.
+     *
+     * @param key the bucket to look at, like "example.com:80"
+     *
+     * @return the {@link System#nanoTime()} at which the next request to
+     * {@code key} is permitted, which is never before now
+     */
+    public long nextPermittedTime(String key) {
+        long now = System.nanoTime();
+        var bucket = buckets.get(key);
+        return bucket == null ? now : Math.max(now, bucket.get() - tolerance);
+    }
+
+    /**
+     * Takes a token from the bucket of {@code key}, and if the host has been
+     * requested too frequently, parks the current thread until the token
+     * becomes valid. Other threads and other hosts are not affected by the
+     * wait.
+     *
+     * @param key the bucket to take from, like "example.com:80"
+     */
+    public void await(String key) {
+        long start = reserve(key);
+        long left;
+        while ((left = start - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, left);
+            if (Thread.currentThread().isInterrupted()) {
+                Log.warn("waiting for " + key + " terminated early");
+                return;
             }
         }
     }
 
     /**
-     * Resets the internal timer of this throttler. This will make the next
-     * invocation on {@link #await()} immediately return without sleeping.
+     * Resets all the buckets of this rate limiter, making them full again.
      */
     public void reset() {
-        lastExecute = 0;
+        buckets.clear();
     }
 
-    private boolean check() {
-        return diff() > interval;
+    /**
+     * @return the interval of this rate limiter in nanoseconds
+     */
+    public long getInterval() {
+        return interval;
     }
 
-    private long left() {
-        return interval - diff();
+    /**
+     * @return the burst capacity of this rate limiter
+     */
+    public int getBurst() {
+        return burst;
     }
 
-    private long diff() {
-        return System.currentTimeMillis() - lastExecute;
+    private AtomicLong bucket(String key) {
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
     }
 
 }
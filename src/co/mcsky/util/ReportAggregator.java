@@ -0,0 +1,372 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.ContentType;
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.struct.StatusCode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Works out every statistic of the report online, in O(1) per response, so
+ * that neither the crawled responses nor a pass over them are needed at the
+ * end.
+ *
+ * <p>Aggregates are mergeable: each worker thread can aggregate the responses
+ * it has fetched on its own, and {@link #merge(ReportAggregator)} combines
+ * them into the report of the whole crawl, at the end or at any point during
+ * it. Only what the report prints is kept, that is the URL and one value for
+ * each extreme and for each listed URL.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class ReportAggregator {
+
+    private final SimpleURL site;
+
+    private long total;
+    private long htmlPages;
+    private long nonHtmlObjects;
+    private Entry<Integer> smallest;
+    private Entry<Integer> largest;
+    private Entry<LocalDateTime> oldest;
+    private Entry<LocalDateTime> newest;
+    private final List<Entry<StatusCode>> invalid = new ArrayList<>();
+    private final List<Entry<SimpleURL>> redirects = new ArrayList<>();
+    private final List<Entry<Boolean>> offSite = new ArrayList<>();
+
+    /**
+     * @param site the website being crawled, which tells on-site URLs from
+     *             off-site ones
+     */
+    public ReportAggregator(SimpleURL site) {
+        this.site = site;
+    }
+
+    /**
+     * Counts a response in.
+     *
+     * @param response a crawled response, whole or {@link
+     *                 SimpleHttpResponse#withoutBody() without its body}
+     */
+    public synchronized void accept(SimpleHttpResponse response) {
+        var head = response.getHead();
+        var url = head.getURL();
+        var status = head.getStatusCode().orElse(null);
+        var type = head.getContentType().orElse(null);
+        total++;
+
+        if (status == StatusCode.OK && type == ContentType.TEXT) {
+            htmlPages++;
+        } else if (status == StatusCode.OK && type != null) {
+            nonHtmlObjects++;
+        }
+
+        // The size of the page itself, which is not the Content-Length of a compressed page
+        var length = head.getBodyLength().orElse(-1);
+        if (status != null && status.status20x() && type == ContentType.TEXT && length >= 0) {
+            if (smallest == null || length < smallest.value) {
+                smallest = new Entry<>(url, length);
+            }
+            if (largest == null || length > largest.value) {
+                largest = new Entry<>(url, length);
+            }
+        }
+
+        head.getModifiedTime().ifPresent(time -> {
+            if (oldest == null || time.isBefore(oldest.value)) {
+                oldest = new Entry<>(url, time);
+            }
+            if (newest == null || time.isAfter(newest.value)) {
+                newest = new Entry<>(url, time);
+            }
+        });
+
+        if (status != null && status.status40x()) {
+            invalid.add(new Entry<>(url, status));
+        }
+        if (status != null && status.status30x()) {
+            head.getRedirectTo().filter(this::isOnSite).ifPresent(to -> redirects.add(new Entry<>(url, to)));
+        }
+        if (!isOnSite(url)) {
+            offSite.add(new Entry<>(url, response.isAlive()));
+        }
+    }
+
+    /**
+     * Adds everything another aggregate has counted into this one. Ties on
+     * the extremes go to this aggregate.
+     *
+     * @param other an aggregate for the same site, left as it is
+     */
+    public void merge(ReportAggregator other) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot merge an aggregate into itself");
+        }
+        ReportAggregator copy;
+        synchronized (other) {
+            copy = new ReportAggregator(other.site);
+            copy.copyFrom(other);
+        }
+        synchronized (this) {
+            total += copy.total;
+            htmlPages += copy.htmlPages;
+            nonHtmlObjects += copy.nonHtmlObjects;
+            if (copy.smallest != null && (smallest == null || copy.smallest.value < smallest.value)) {
+                smallest = copy.smallest;
+            }
+            if (copy.largest != null && (largest == null || copy.largest.value > largest.value)) {
+                largest = copy.largest;
+            }
+            if (copy.oldest != null && (oldest == null || copy.oldest.value.isBefore(oldest.value))) {
+                oldest = copy.oldest;
+            }
+            if (copy.newest != null && (newest == null || copy.newest.value.isAfter(newest.value))) {
+                newest = copy.newest;
+            }
+            invalid.addAll(copy.invalid);
+            redirects.addAll(copy.redirects);
+            offSite.addAll(copy.offSite);
+        }
+    }
+
+    private void copyFrom(ReportAggregator other) {
+        total = other.total;
+        htmlPages = other.htmlPages;
+        nonHtmlObjects = other.nonHtmlObjects;
+        smallest = other.smallest;
+        largest = other.largest;
+        oldest = other.oldest;
+        newest = other.newest;
+        invalid.addAll(other.invalid);
+        redirects.addAll(other.redirects);
+        offSite.addAll(other.offSite);
+    }
+
+    /**
+     * @return a copy of this aggregate as it is now
+     */
+    public ReportAggregator snapshot() {
+        var copy = new ReportAggregator(site);
+        synchronized (this) {
+            copy.copyFrom(this);
+        }
+        return copy;
+    }
+
+    /**
+     * Writes this aggregate out, so that {@link #load(DataInput)} can read it
+     * back.
+     *
+     * @param out where to write to
+     *
+     * @throws IOException if {@code out} fails
+     */
+    public synchronized void save(DataOutput out) throws IOException {
+        out.writeUTF(site.toSpec());
+        out.writeLong(total);
+        out.writeLong(htmlPages);
+        out.writeLong(nonHtmlObjects);
+        writeEntry(out, smallest, (o, v) -> o.writeInt(v));
+        writeEntry(out, largest, (o, v) -> o.writeInt(v));
+        writeEntry(out, oldest, (o, v) -> o.writeUTF(v.toString()));
+        writeEntry(out, newest, (o, v) -> o.writeUTF(v.toString()));
+        writeEntries(out, invalid, (o, v) -> o.writeInt(v.code));
+        writeEntries(out, redirects, (o, v) -> o.writeUTF(v.toSpec()));
+        writeEntries(out, offSite, DataOutput::writeBoolean);
+    }
+
+    /**
+     * Reads an aggregate written by {@link #save(DataOutput)}.
+     *
+     * @param in where to read from
+     *
+     * @return the aggregate as it was saved
+     *
+     * @throws IOException if {@code in} fails or does not hold an aggregate
+     */
+    public static ReportAggregator load(DataInput in) throws IOException {
+        try {
+            var report = new ReportAggregator(new SimpleURL(in.readUTF()));
+            report.total = in.readLong();
+            report.htmlPages = in.readLong();
+            report.nonHtmlObjects = in.readLong();
+            report.smallest = readEntry(in, DataInput::readInt);
+            report.largest = readEntry(in, DataInput::readInt);
+            report.oldest = readEntry(in, i -> LocalDateTime.parse(i.readUTF()));
+            report.newest = readEntry(in, i -> LocalDateTime.parse(i.readUTF()));
+            readEntries(in, report.invalid, i -> StatusCode.matchCode(i.readInt()));
+            readEntries(in, report.redirects, i -> new SimpleURL(i.readUTF()));
+            readEntries(in, report.offSite, DataInput::readBoolean);
+            return report;
+        } catch (RuntimeException e) {
+            throw new IOException("Not a saved report: " + e.getMessage(), e);
+        }
+    }
+
+    private static <T> void writeEntry(DataOutput out, Entry<T> entry, ValueWriter<T> writer) throws IOException {
+        out.writeBoolean(entry != null);
+        if (entry != null) {
+            out.writeUTF(entry.url.toSpec());
+            writer.write(out, entry.value);
+        }
+    }
+
+    private static <T> void writeEntries(DataOutput out, List<Entry<T>> entries, ValueWriter<T> writer) throws IOException {
+        out.writeInt(entries.size());
+        for (Entry<T> entry : entries) {
+            out.writeUTF(entry.url.toSpec());
+            writer.write(out, entry.value);
+        }
+    }
+
+    private static <T> Entry<T> readEntry(DataInput in, ValueReader<T> reader) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        var url = new SimpleURL(in.readUTF());
+        return new Entry<>(url, reader.read(in));
+    }
+
+    private static <T> void readEntries(DataInput in, List<Entry<T>> entries, ValueReader<T> reader) throws IOException {
+        var n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            var url = new SimpleURL(in.readUTF());
+            entries.add(new Entry<>(url, reader.read(in)));
+        }
+    }
+
+    @FunctionalInterface
+    private interface ValueWriter<T> {
+
+        void write(DataOutput out, T value) throws IOException;
+
+    }
+
+    @FunctionalInterface
+    private interface ValueReader<T> {
+
+        T read(DataInput in) throws IOException;
+
+    }
+
+    /**
+     * @return the website being crawled
+     */
+    public SimpleURL getSite() {
+        return site;
+    }
+
+    /**
+     * @return the total number of distinct URLs (including any errors and
+     * redirects)
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of html pages
+     */
+    public synchronized long getHtmlPages() {
+        return htmlPages;
+    }
+
+    /**
+     * @return the number of non-html objects (e.g. images)
+     */
+    public synchronized long getNonHtmlObjects() {
+        return nonHtmlObjects;
+    }
+
+    /**
+     * @return the smallest html page and its {@code Content-Length}
+     */
+    public synchronized Optional<Entry<Integer>> getSmallest() {
+        return Optional.ofNullable(smallest);
+    }
+
+    /**
+     * @return the largest html page and its {@code Content-Length}
+     */
+    public synchronized Optional<Entry<Integer>> getLargest() {
+        return Optional.ofNullable(largest);
+    }
+
+    /**
+     * @return the oldest modified page and its modified time
+     */
+    public synchronized Optional<Entry<LocalDateTime>> getOldest() {
+        return Optional.ofNullable(oldest);
+    }
+
+    /**
+     * @return the most-recently modified page and its modified time
+     */
+    public synchronized Optional<Entry<LocalDateTime>> getNewest() {
+        return Optional.ofNullable(newest);
+    }
+
+    /**
+     * @return the invalid URLs (40x) and their status codes
+     */
+    public synchronized List<Entry<StatusCode>> getInvalid() {
+        return new ArrayList<>(invalid);
+    }
+
+    /**
+     * @return the on-site redirected URLs (30x) and where they redirect to
+     */
+    public synchronized List<Entry<SimpleURL>> getRedirects() {
+        return new ArrayList<>(redirects);
+    }
+
+    /**
+     * @return the off-site URLs and whether their web servers are available
+     */
+    public synchronized List<Entry<Boolean>> getOffSite() {
+        return new ArrayList<>(offSite);
+    }
+
+    private boolean isOnSite(SimpleURL test) {
+        return this.site.getHost().equals(test.getHost()) && this.site.getPort() == test.getPort();
+    }
+
+    /**
+     * A URL with the value the report shows next to it.
+     *
+     * @param <T> the type of the value
+     */
+    public static final class Entry<T> {
+
+        private final SimpleURL url;
+        private final T value;
+
+        Entry(SimpleURL url, T value) {
+            this.url = url;
+            this.value = value;
+        }
+
+        /**
+         * @return the URL
+         */
+        public SimpleURL getURL() {
+            return url;
+        }
+
+        /**
+         * @return the value shown next to the URL
+         */
+        public T getValue() {
+            return value;
+        }
+
+    }
+
+}
@@ -1,103 +1,77 @@
 package co.mcsky.util;
 
-import co.mcsky.struct.ContentType;
 import co.mcsky.struct.SimpleHttpResponse;
 import co.mcsky.struct.SimpleURL;
-import co.mcsky.struct.StatusCode;
 
-import java.util.Comparator;
 import java.util.Set;
 
 import static java.lang.System.out;
 
 /**
  * Generating the report that conforms the assignment.
+ *
+ * <p>The statistics come from a {@link ReportAggregator}, which has worked
+ * them out as the responses arrived, so generating the report is just
+ * printing them.
  */
 public class ReportAss2 {
 
-    private final SimpleURL site;
-
     /**
      * @param site    the website to crawl
      * @param crawled a {@link Set} of crawled http responses represented by
      *                {@link SimpleHttpResponse}
      */
     public ReportAss2(SimpleURL site, Set<SimpleHttpResponse> crawled) {
-        this.site = site;
+        this(aggregate(site, crawled));
+    }
 
+    /**
+     * @param report the statistics of the crawl
+     */
+    public ReportAss2(ReportAggregator report) {
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * Print the total number of distinct URLs found on the site (including any errors and redirects)
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * */
-        out.printf("Total no of distinct URLs: %s%n", crawled.size());
+        out.printf("Total no of distinct URLs: %s%n", report.getTotal());
 
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * Print the number of html pages and the number of non-html objects on the site (e.g. images)
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * */
-        out.printf("The number of html pages on the site: %s%n",
-                   crawled.stream()
-                          .map(SimpleHttpResponse::getHead)
-                          .filter(u -> u.getStatusCode().isPresent() && u.getStatusCode().get() == StatusCode.OK)
-                          .filter(u -> u.getContentType().isPresent() && u.getContentType().get() == ContentType.TEXT)
-                          .count());
-        out.printf("The number of non-html objects on the site: %s%n",
-                   crawled.stream()
-                          .map(SimpleHttpResponse::getHead)
-                          .filter(u -> u.getStatusCode().isPresent() && u.getStatusCode().get() == StatusCode.OK)
-                          .filter(u -> u.getContentType().isPresent() && u.getContentType().get() != ContentType.TEXT)
-                          .count());
+        out.printf("The number of html pages on the site: %s%n", report.getHtmlPages());
+        out.printf("The number of non-html objects on the site: %s%n", report.getNonHtmlObjects());
 
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * The smallest and largest html pages, and their sizes
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * */
-        crawled.stream()
-               .map(SimpleHttpResponse::getHead)
-               .filter(u -> u.getContentLength().isPresent() &&
-                            u.getStatusCode().isPresent() && u.getStatusCode().get().status20x() &&
-                            u.getContentType().isPresent() && u.getContentType().get() == ContentType.TEXT)
-               .min(Comparator.comparingInt(u -> u.getContentLength().get()))
-               .ifPresent(u -> out.printf("Smallest html page: %s (%s bytes)%n",
-                                          u.getURL().toString(),
-                                          u.getContentLength().orElse(-1)));
-        crawled.stream()
-               .map(SimpleHttpResponse::getHead)
-               .filter(u -> u.getContentLength().isPresent() &&
-                            u.getStatusCode().isPresent() && u.getStatusCode().get().status20x() &&
-                            u.getContentType().isPresent() && u.getContentType().get() == ContentType.TEXT)
-               .max(Comparator.comparingInt(u -> u.getContentLength().get()))
-               .ifPresent(u -> out.printf("Largest html page: %s (%s bytes)%n",
-                                          u.getURL().toString(),
-                                          u.getContentLength().orElse(-1)));
+        report.getSmallest()
+              .ifPresent(u -> out.printf("Smallest html page: %s (%s bytes)%n",
+                                         u.getURL().toString(),
+                                         u.getValue()));
+        report.getLargest()
+              .ifPresent(u -> out.printf("Largest html page: %s (%s bytes)%n",
+                                         u.getURL().toString(),
+                                         u.getValue()));
 
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * The oldest and the most-recently modified page, and their date/timestamps
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * */
-        crawled.stream()
-               // 404 html pages have null modified time headers,
-               // so we have to ignore them to avoid NPE.
-               .map(SimpleHttpResponse::getHead)
-               .filter(u -> u.getModifiedTime().isPresent())
-               .min(Comparator.comparing(u -> u.getModifiedTime().get()))
-               .filter(u -> u.getModifiedTime().isPresent())
-               .ifPresent(u -> out.printf("Oldest modified page: %s (Date: %s)%n",
-                                          u.getURL().toString(),
-                                          u.getModifiedTime().get()));
-        crawled.stream()
-               // Same as above
-               .map(SimpleHttpResponse::getHead)
-               .filter(u -> u.getModifiedTime().isPresent())
-               .max(Comparator.comparing(u -> u.getModifiedTime().get()))
-               .filter(u -> u.getModifiedTime().isPresent())
-               .ifPresent(u -> out.printf("Most-recently modified page: %s (Date: %s)%n",
-                                          u.getURL().toString(),
-                                          u.getModifiedTime().get()));
+        // 404 html pages have null modified time headers, the aggregator leaves them out
+        report.getOldest()
+              .ifPresent(u -> out.printf("Oldest modified page: %s (Date: %s)%n",
+                                         u.getURL().toString(),
+                                         u.getValue()));
+        report.getNewest()
+              .ifPresent(u -> out.printf("Most-recently modified page: %s (Date: %s)%n",
+                                         u.getURL().toString(),
+                                         u.getValue()));
 
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
@@ -106,12 +80,10 @@ public class ReportAss2 {
          * */
         // TODO To confirm: what status codes should be classified as valid URLs?
         out.println("A list of invalid URLs (not) found (404):");
-        crawled.stream()
-               .map(SimpleHttpResponse::getHead)
-               .filter(u -> u.getStatusCode().isPresent() && u.getStatusCode().get().status40x())
-               .forEach(u -> out.printf(" - %s (Reason: %s)%n",
-                                        u.getURL().toString(),
-                                        u.getStatusCode().get().toString()));
+        report.getInvalid()
+              .forEach(u -> out.printf(" - %s (Reason: %s)%n",
+                                       u.getURL().toString(),
+                                       u.getValue().toString()));
 
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
@@ -119,13 +91,10 @@ public class ReportAss2 {
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * */
         out.println("A list of on-site redirected URLs:");
-        crawled.stream()
-               .map(SimpleHttpResponse::getHead)
-               .filter(u -> u.getStatusCode().isPresent() && u.getStatusCode().get().status30x() &&
-                            u.getRedirectTo().isPresent() && isOnSite(u.getRedirectTo().get()))
-               .forEach(u -> out.printf(" - %s -> %s%n",
-                                        u.getURL().toString(),
-                                        u.getRedirectTo().get().toString()));
+        report.getRedirects()
+              .forEach(u -> out.printf(" - %s -> %s%n",
+                                       u.getURL().toString(),
+                                       u.getValue().toString()));
 
         /*
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
@@ -134,24 +103,18 @@ public class ReportAss2 {
          * @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
          * */
         out.println("A list of off-site URLs found:");
-        crawled.stream()
-               .filter(u -> !isOnSite(u.getHead().getURL()))
-               .forEach(u -> out.printf(" - %s -> %s%n",
-                                        u.getHead().getURL().toString(),
-                                        u.isAlive()
-                                        ? "web server available"
-                                        : "web server unavailable"));
+        report.getOffSite()
+              .forEach(u -> out.printf(" - %s -> %s%n",
+                                       u.getURL().toString(),
+                                       u.getValue()
+                                       ? "web server available"
+                                       : "web server unavailable"));
     }
 
-    /**
-     * Check whether a URL is on-site or not.
-     *
-     * @param test the URL to check for whether it is on-site or not
-     *
-     * @return whether the URL is on-site or not
-     */
-    private boolean isOnSite(SimpleURL test) {
-        return this.site.getHost().equals(test.getHost()) && this.site.getPort() == test.getPort();
+    private static ReportAggregator aggregate(SimpleURL site, Set<SimpleHttpResponse> crawled) {
+        var report = new ReportAggregator(site);
+        crawled.forEach(report::accept);
+        return report;
     }
 
 }
@@ -0,0 +1,326 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only archive of raw http responses, as they came off the network,
+ * so that a crawl can be analysed again offline without fetching anything.
+ *
+ * <p>Records are appended to rolling segment files ({@code
+ * archive-00000.warc}, ...) in a WARC-like layout: a short text header giving
+ * the URL, the fetch time and the length, then the raw bytes of the response.
+ * The raw bytes are never decoded. They are handed over as a {@link
+ * ByteBuffer} and written together with the header by a single gathering
+ * {@link FileChannel#write(ByteBuffer[])}.
+ *
+ * <p>Next to the segments, {@code archive.idx} holds the offset of every
+ * record, so that {@link #read(SimpleURL)} reads a record straight from its
+ * segment. The index is loaded again when an existing archive is opened, and
+ * new records go into new segments. A record the index does not know (because
+ * the crawler died before the index was written) is still in its segment,
+ * just not reachable by URL.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class ResponseArchive implements Closeable {
+
+    private static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+    private static final Pattern SEGMENT = Pattern.compile("archive-(\\d{5})\\.warc");
+    private static final byte[] RECORD_END = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Path dir;
+    private final long segmentSize;
+    private final FileChannel index;
+    // URL -> where its record is
+    private final Map<String, Location> locations = new HashMap<>();
+    private FileChannel writer;
+    private int segment;
+    private long written;
+
+    /**
+     * Opens an archive with segments of up to 1 GB.
+     *
+     * @param dir the directory of the archive, created if needed
+     *
+     * @throws IOException if the archive cannot be opened
+     */
+    public ResponseArchive(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens an archive, loading its index if it exists already.
+     *
+     * @param dir         the directory of the archive, created if needed
+     * @param segmentSize the size at which a segment is closed and a new one
+     *                    started (a single record larger than that gets a
+     *                    segment of its own)
+     *
+     * @throws IOException if the archive cannot be opened
+     */
+    public ResponseArchive(Path dir, long segmentSize) throws IOException {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+        try (var files = Files.list(dir)) {
+            this.segment = files.map(p -> SEGMENT.matcher(p.getFileName().toString()))
+                                .filter(m -> m.matches())
+                                .mapToInt(m -> Integer.parseInt(m.group(1)) + 1)
+                                .max()
+                                .orElse(0);
+        }
+        this.index = FileChannel.open(dir.resolve("archive.idx"),
+                                      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loadIndex();
+        } catch (IOException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the raw response of a URL.
+     *
+     * @param url       the URL which has been fetched
+     * @param fetchedAt when it was fetched
+     * @param raw       the bytes of the response, head and body, as received;
+     *                  its position is left unchanged
+     * @param truncated whether the response was cut short on purpose (e.g. an
+     *                  image whose body was not read)
+     *
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void append(SimpleURL url, Instant fetchedAt, ByteBuffer raw, boolean truncated) throws IOException {
+        var spec = url.toSpec();
+        var header = ByteBuffer.wrap(("WARC/1.0\r\n" +
+                                      "WARC-Type: response\r\n" +
+                                      "WARC-Target-URI: " + spec + "\r\n" +
+                                      "WARC-Date: " + fetchedAt + "\r\n" +
+                                      (truncated ? "WARC-Truncated: length\r\n" : "") +
+                                      "Content-Type: application/http; msgtype=response\r\n" +
+                                      "Content-Length: " + raw.remaining() + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        var payload = raw.duplicate();
+        var trailer = ByteBuffer.wrap(RECORD_END);
+        var length = header.remaining() + payload.remaining() + trailer.remaining();
+
+        if (writer == null || (written > 0 && written + length > segmentSize)) {
+            roll();
+        }
+        var location = new Location(segment - 1, written + header.remaining(), payload.remaining(), fetchedAt.toEpochMilli(), truncated);
+        var buffers = new ByteBuffer[]{header, payload, trailer};
+        while (trailer.hasRemaining()) {
+            writer.write(buffers);
+        }
+        written += length;
+
+        // The index entry goes last, an entry always points to a whole record
+        var key = spec.getBytes(StandardCharsets.UTF_8);
+        var entry = ByteBuffer.allocate(Location.BYTES + 4 + key.length);
+        location.write(entry);
+        entry.putInt(key.length).put(key).flip();
+        while (entry.hasRemaining()) {
+            index.write(entry);
+        }
+        locations.put(url.toString(), location);
+    }
+
+    /**
+     * Reads the latest record of a URL back from its segment.
+     *
+     * @param url a URL which has been archived
+     *
+     * @return the record, if the URL is in the archive
+     *
+     * @throws IOException if the segment cannot be read
+     */
+    public Optional<Record> read(SimpleURL url) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = locations.get(url.toString());
+        }
+        if (location == null) {
+            return Optional.empty();
+        }
+        if (location.length > Integer.MAX_VALUE) {
+            throw new IOException("Record too large to read at once: " + url);
+        }
+        var raw = ByteBuffer.allocate((int) location.length);
+        try (var channel = FileChannel.open(segmentPath(location.segment), StandardOpenOption.READ)) {
+            while (raw.hasRemaining()) {
+                if (channel.read(raw, location.offset + raw.position()) == -1) {
+                    throw new IOException("Truncated archive segment " + segmentPath(location.segment));
+                }
+            }
+        }
+        raw.flip();
+        return Optional.of(new Record(url, Instant.ofEpochMilli(location.fetchedAt), raw.asReadOnlyBuffer(), location.truncated));
+    }
+
+    /**
+     * @return the URLs in the archive, in the standard format
+     */
+    public synchronized Set<String> getUrls() {
+        return new HashSet<>(locations.keySet());
+    }
+
+    /**
+     * @return the number of URLs in the archive
+     */
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d responses in %s", size(), dir);
+    }
+
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        writer = FileChannel.open(segmentPath(segment++), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        written = 0;
+    }
+
+    private Path segmentPath(int n) {
+        return dir.resolve(String.format("archive-%05d.warc", n));
+    }
+
+    private void loadIndex() throws IOException {
+        var buffer = ByteBuffer.allocate(64 * 1024);
+        long good = 0;
+        while (index.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.remaining() >= Location.BYTES + 4) {
+                buffer.mark();
+                var location = Location.read(buffer);
+                var keyLength = buffer.getInt();
+                if (keyLength < 0 || keyLength > buffer.capacity() - Location.BYTES - 4) {
+                    throw new IOException("Corrupt archive index in " + dir);
+                }
+                if (buffer.remaining() < keyLength) {
+                    buffer.reset();
+                    break;
+                }
+                var key = new byte[keyLength];
+                buffer.get(key);
+                locations.put(new SimpleURL(new String(key, StandardCharsets.UTF_8)).toString(), location);
+                good += Location.BYTES + 4 + keyLength;
+            }
+            buffer.compact();
+        }
+        // Whatever is left is an entry torn when the crawler died, drop it
+        index.truncate(good);
+        index.position(good);
+    }
+
+    /**
+     * Where the payload of a record is.
+     */
+    private static final class Location {
+
+        static final int BYTES = 4 + 8 + 8 + 8 + 1;
+
+        final int segment;
+        final long offset;
+        final long length;
+        final long fetchedAt;
+        final boolean truncated;
+
+        Location(int segment, long offset, long length, long fetchedAt, boolean truncated) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.fetchedAt = fetchedAt;
+            this.truncated = truncated;
+        }
+
+        void write(ByteBuffer out) {
+            out.putInt(segment).putLong(offset).putLong(length).putLong(fetchedAt).put((byte) (truncated ? 1 : 0));
+        }
+
+        static Location read(ByteBuffer in) {
+            return new Location(in.getInt(), in.getLong(), in.getLong(), in.getLong(), in.get() != 0);
+        }
+
+    }
+
+    /**
+     * A response read back from the archive.
+     */
+    public static final class Record {
+
+        private final SimpleURL url;
+        private final Instant fetchedAt;
+        private final ByteBuffer raw;
+        private final boolean truncated;
+
+        Record(SimpleURL url, Instant fetchedAt, ByteBuffer raw, boolean truncated) {
+            this.url = url;
+            this.fetchedAt = fetchedAt;
+            this.raw = raw;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @return the URL which was fetched
+         */
+        public SimpleURL getURL() {
+            return url;
+        }
+
+        /**
+         * @return when it was fetched
+         */
+        public Instant getFetchedAt() {
+            return fetchedAt;
+        }
+
+        /**
+         * @return the bytes of the response as received, head and body
+         */
+        public ByteBuffer getRaw() {
+            return raw.duplicate();
+        }
+
+        /**
+         * @return whether the response was cut short on purpose
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+    }
+
+}
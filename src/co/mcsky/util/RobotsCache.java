@@ -0,0 +1,281 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.struct.StatusCode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * The {@code robots.txt} of every host crawled, fetched the first time a URL
+ * of the host is about to be fetched and kept for the rest of the crawl.
+ *
+ * <p>The rules of the group matching the user agent (or else of the {@code *}
+ * group) are kept: {@code Allow} and {@code Disallow} lines, with {@code *}
+ * matching anything and a trailing {@code $} anchoring the end. The longest
+ * matching rule decides, {@code Allow} winning a tie. A host without a
+ * {@code robots.txt}, or which cannot be reached, allows everything.
+ *
+ * <p>Threads asking about the same host at the same time share a single
+ * fetch, which may be asynchronous (see {@link #allows(SimpleURL)}) so that
+ * a non-blocking crawler does not wait on it. Instances are thread-safe.
+ */
+public class RobotsCache {
+
+    private final Function<SimpleURL, CompletableFuture<SimpleHttpResponse>> fetcher;
+    private final String agent;
+    private final Set<String> whitelist;
+    private final Map<String, CompletableFuture<Rules>> hosts = new ConcurrentHashMap<>();
+    private final LongAdder disallowed = new LongAdder();
+
+    /**
+     * @param fetcher   fetches the {@code robots.txt} of a host, usually
+     *                  through the crawler so it is rate limited like any
+     *                  other page, body included (not with a conditional
+     *                  request, which a {@code 304} may answer without it),
+     *                  and completes the future it returns with the
+     *                  response
+     * @param agent     the name the crawler goes by, matched against the
+     *                  {@code User-agent} lines
+     * @param whitelist the hosts which are crawled, the others are only
+     *                  probed so their {@code robots.txt} is never fetched
+     */
+    public RobotsCache(Function<SimpleURL, CompletableFuture<SimpleHttpResponse>> fetcher, String agent, Set<String> whitelist) {
+        this.fetcher = fetcher;
+        this.agent = agent.toLowerCase(Locale.ROOT);
+        this.whitelist = whitelist;
+    }
+
+    /**
+     * Tells whether the {@code robots.txt} of its host lets a URL be crawled,
+     * fetching it if this is the first URL of the host.
+     *
+     * @param url the URL about to be fetched
+     *
+     * @return whether {@code url} may be fetched
+     */
+    public boolean isAllowed(SimpleURL url) {
+        return allows(url).join();
+    }
+
+    /**
+     * Tells whether the {@code robots.txt} of its host lets a URL be crawled,
+     * without waiting for it to be fetched if this is the first URL of the
+     * host.
+     *
+     * @param url the URL about to be fetched
+     *
+     * @return a future which completes with whether {@code url} may be
+     * fetched, never exceptionally
+     */
+    public CompletableFuture<Boolean> allows(SimpleURL url) {
+        if (!whitelist.contains(url.getHostPort())) {
+            return CompletableFuture.completedFuture(true);
+        }
+        var fresh = new CompletableFuture<Rules>();
+        var rules = hosts.putIfAbsent(url.getHostPort(), fresh);
+        if (rules == null) {
+            rules = fresh;
+            fetch(url, fresh);
+        }
+        var query = url.getQuery();
+        var path = query.isEmpty() ? url.getPath() : url.getPath() + "?" + query;
+        return rules.thenApply(r -> {
+            if (r.isAllowed(path)) {
+                return true;
+            }
+            disallowed.increment();
+            return false;
+        });
+    }
+
+    /**
+     * @return the number of URLs disallowed so far
+     */
+    public long getDisallowed() {
+        return disallowed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hosts, %d URLs disallowed", hosts.size(), getDisallowed());
+    }
+
+    /**
+     * Completes {@code rules} whatever happens, or every URL of the host
+     * would wait on it forever.
+     */
+    private void fetch(SimpleURL url, CompletableFuture<Rules> rules) {
+        var robots = new SimpleURL("http://" + url.getHostPort() + "/robots.txt");
+        var fetching = false;
+        try {
+            fetcher.apply(robots).whenComplete((response, e) -> {
+                var parsed = Rules.ALLOW_ALL;
+                try {
+                    if (e != null) {
+                        Log.warn("couldn't fetch " + robots + ", allowing everything: " + e);
+                        return;
+                    }
+                    var status = response.getHead().getStatusCode();
+                    if (status.isPresent() && status.get() == StatusCode.OK) {
+                        parsed = Rules.parse(response.getBody(), agent);
+                    }
+                } catch (RuntimeException ex) {
+                    Log.warn("couldn't read " + robots + ", allowing everything: " + ex);
+                } finally {
+                    rules.complete(parsed);
+                }
+            });
+            fetching = true;
+        } catch (RuntimeException e) {
+            Log.warn("couldn't fetch " + robots + ", allowing everything: " + e);
+        } finally {
+            if (!fetching) {
+                rules.complete(Rules.ALLOW_ALL);
+            }
+        }
+    }
+
+    /**
+     * The rules of a {@code robots.txt} for one user agent.
+     */
+    static final class Rules {
+
+        static final Rules ALLOW_ALL = new Rules(List.of());
+
+        // Longest first, Allow before Disallow for the same length
+        private final List<Rule> rules;
+
+        private Rules(List<Rule> rules) {
+            this.rules = rules;
+        }
+
+        static Rules parse(String text, String agent) {
+            var mine = new ArrayList<Rule>();
+            var any = new ArrayList<Rule>();
+            var matchedMine = false;
+            var inMine = false;
+            var inAny = false;
+            var inAgents = false; // reading the User-agent lines of a group
+            for (String line : text.split("\r?\n|\r")) {
+                var hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+                var colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                var field = line.substring(0, colon).strip().toLowerCase(Locale.ROOT);
+                var value = line.substring(colon + 1).strip();
+                if (field.equals("user-agent")) {
+                    if (!inAgents) {
+                        inMine = false;
+                        inAny = false;
+                        inAgents = true;
+                    }
+                    var name = value.toLowerCase(Locale.ROOT);
+                    if (name.equals("*")) {
+                        inAny = true;
+                    } else if (!name.isEmpty() && agent.contains(name)) {
+                        inMine = true;
+                        matchedMine = true;
+                    }
+                    continue;
+                }
+                inAgents = false;
+                boolean allow;
+                if (field.equals("allow")) {
+                    allow = true;
+                } else if (field.equals("disallow")) {
+                    allow = false;
+                } else {
+                    continue; // Sitemap, Crawl-delay...
+                }
+                if (value.isEmpty()) {
+                    continue; // "Disallow:" allows everything
+                }
+                var rule = new Rule(value, allow);
+                if (inMine) {
+                    mine.add(rule);
+                }
+                if (inAny) {
+                    any.add(rule);
+                }
+            }
+            var rules = matchedMine ? mine : any;
+            rules.sort((a, b) -> a.pattern.length() != b.pattern.length()
+                                 ? b.pattern.length() - a.pattern.length()
+                                 : Boolean.compare(b.allow, a.allow));
+            return new Rules(List.copyOf(rules));
+        }
+
+        boolean isAllowed(String path) {
+            for (Rule rule : rules) {
+                if (rule.matches(path)) {
+                    return rule.allow;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * An {@code Allow} or {@code Disallow} line.
+     */
+    private static final class Rule {
+
+        final String pattern;
+        final boolean allow;
+        final boolean anchored;
+
+        Rule(String pattern, boolean allow) {
+            this.anchored = pattern.endsWith("$");
+            this.pattern = anchored ? pattern.substring(0, pattern.length() - 1) : pattern;
+            this.allow = allow;
+        }
+
+        /**
+         * Matches the pattern against the start of {@code path} (all of it if
+         * anchored), {@code *} matching any run of chars.
+         */
+        boolean matches(String path) {
+            int p = 0;
+            int s = 0;
+            int star = -1;
+            int mark = 0;
+            while (true) {
+                if (p == pattern.length()) {
+                    if (!anchored || s == path.length()) {
+                        return true;
+                    }
+                } else if (pattern.charAt(p) == '*') {
+                    star = p++;
+                    mark = s;
+                    continue;
+                } else if (s < path.length() && pattern.charAt(p) == path.charAt(s)) {
+                    p++;
+                    s++;
+                    continue;
+                }
+                // Mismatch, let the last star take one more char
+                if (star < 0 || mark >= path.length()) {
+                    return false;
+                }
+                p = star + 1;
+                s = ++mark;
+            }
+        }
+
+    }
+
+}
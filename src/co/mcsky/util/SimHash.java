@@ -0,0 +1,131 @@
+package co.mcsky.util;
+
+/**
+ * A SimHash of the text of a page, computed chunk by chunk while the page is
+ * received. Pages which say mostly the same thing get fingerprints a few bits
+ * apart (see {@link #distance(long, long)}), unlike a hash of the whole page
+ * which a single byte changes completely.
+ *
+ * <p>The text is cut into words (runs of ASCII letters and digits, and of
+ * non-ASCII bytes, case folded), markup between {@code <} and {@code >} being
+ * skipped. Every {@value #SHINGLE} consecutive words make a shingle, and each
+ * bit of the fingerprint is the majority vote of that bit over the hashes of
+ * all the shingles.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public class SimHash {
+
+    /**
+     * The number of words in a shingle.
+     */
+    public static final int SHINGLE = 4;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int[] votes = new int[64];
+    // The hashes of the last words, as a ring
+    private final long[] words = new long[SHINGLE];
+    private long count;
+    private long word = FNV_OFFSET;
+    private boolean inWord;
+    private boolean inTag;
+    private int shingles;
+
+    /**
+     * Pushes the next bytes of the text in.
+     *
+     * @param b   the buffer holding the bytes
+     * @param off where the bytes start in {@code b}
+     * @param len the number of bytes
+     */
+    public void feed(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            var c = b[i] & 0xff;
+            if (inTag) {
+                inTag = c != '>';
+            } else if (c == '<') {
+                endWord();
+                inTag = true;
+            } else if (c >= 'A' && c <= 'Z') {
+                addToWord(c + ('a' - 'A'));
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c >= 0x80) {
+                addToWord(c);
+            } else {
+                endWord();
+            }
+        }
+    }
+
+    /**
+     * @return the fingerprint of the text fed so far, the last word
+     * included
+     */
+    public long value() {
+        endWord();
+        var fingerprint = 0L;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return the number of shingles in the text fed so far, a fingerprint
+     * of none telling nothing about the text
+     */
+    public int getShingles() {
+        endWord();
+        return shingles;
+    }
+
+    /**
+     * @return the number of bits which differ between two fingerprints
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private void addToWord(int c) {
+        word = (word ^ c) * FNV_PRIME;
+        inWord = true;
+    }
+
+    private void endWord() {
+        if (!inWord) {
+            return;
+        }
+        words[(int) (count++ % SHINGLE)] = word;
+        word = FNV_OFFSET;
+        inWord = false;
+        if (count < SHINGLE) {
+            return;
+        }
+        var h = 0L;
+        for (long i = count - SHINGLE; i < count; i++) {
+            h = h * 31 + words[(int) (i % SHINGLE)];
+        }
+        h = mix(h);
+        for (int bit = 0; bit < 64; bit++) {
+            votes[bit] += (int) ((h >>> bit) & 1) * 2 - 1;
+        }
+        shingles++;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so that neighbouring shingles vote on
+     * unrelated bits.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
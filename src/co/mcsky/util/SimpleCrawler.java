@@ -3,36 +3,171 @@ package co.mcsky.util;
 import co.mcsky.struct.SimpleHttpResponse;
 import co.mcsky.struct.SimpleURL;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.time.LocalDateTime;
-import java.util.Scanner;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * A simple http crawler using just low-level sockets.
+ *
+ * <p>By default every request goes over a new connection with {@code
+ * HTTP/1.0}. Once a {@link ConnectionPool} is set, requests are sent with
+ * {@code HTTP/1.1} over persistent connections taken from the pool instead.
+ * Either way, the server may compress the responses with {@code gzip} or
+ * {@code deflate}, see {@link ContentDecoder}.
+ *
+ * <p>With a {@link ValidatorCache}, pages seen by earlier crawls are requested
+ * conditionally and only downloaded again if they have changed. With a {@link
+ * ResponseArchive}, every response is also archived as it was received.
+ * With {@link FetchMetrics}, the time of every phase of a request is
+ * recorded. With a {@link DnsCache}, hosts are looked up once in a while
+ * rather than for every request. With a {@link FetchStrategy}, the URLs
+ * predicted not to be pages are only asked for their head.
  */
 public class SimpleCrawler {
 
-    private static final String CONTENT_TYPE_IMAGE = "Content-Type: image";
     private final RateLimiter throttler;
     private final Set<String> whitelist;
+    private ConnectionPool pool;
+    private ValidatorCache validators;
+    private ResponseArchive archive;
+    private FetchMetrics metrics;
+    private DnsCache dns;
+    private FetchStrategy strategy;
+    private boolean contentFingerprints;
+    private boolean retainBodies = true;
 
     /**
      * Initializes a crawler.
      *
      * @param interval  runs crawling at 1 request per {@code interval} rate
+     *                  for each host
      * @param whitelist what websites should the crawler crawls for
      */
     public SimpleCrawler(long interval, Set<String> whitelist) {
-        this.throttler = new RateLimiter(interval);
+        this(new RateLimiter(interval), whitelist);
+    }
+
+    /**
+     * Initializes a crawler.
+     *
+     * @param throttler the per-host rate limiter of this crawler
+     * @param whitelist what websites should the crawler crawls for
+     */
+    public SimpleCrawler(RateLimiter throttler, Set<String> whitelist) {
+        this.throttler = throttler;
         this.whitelist = whitelist;
     }
 
+    /**
+     * @return the per-host rate limiter of this crawler
+     */
+    public RateLimiter getRateLimiter() {
+        return throttler;
+    }
+
+    /**
+     * Makes this crawler send {@code HTTP/1.1} requests over persistent
+     * connections from the given pool. This must be set before crawling.
+     *
+     * @param pool the pool of persistent connections, or {@code null} to go
+     *             back to one {@code HTTP/1.0} connection per request
+     */
+    public void setConnectionPool(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Makes this crawler send conditional requests for the pages in the given
+     * cache, and keep the cache up to date. This must be set before crawling.
+     *
+     * @param validators the validators of earlier crawls, or {@code null} to
+     *                   always download pages in full
+     */
+    public void setValidatorCache(ValidatorCache validators) {
+        this.validators = validators;
+    }
+
+    /**
+     * Makes this crawler archive the raw bytes of every response it receives.
+     * This must be set before crawling.
+     *
+     * @param archive where the responses go, or {@code null} not to archive
+     *                them
+     */
+    public void setResponseArchive(ResponseArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Makes this crawler record how long each phase of its requests takes.
+     * This must be set before crawling.
+     *
+     * @param metrics where the timings go, or {@code null} not to time
+     *                anything
+     */
+    public void setFetchMetrics(FetchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Makes this crawler look hosts up through the given cache. This must be
+     * set before crawling. The {@link ConnectionPool}, if any, has a cache of
+     * its own.
+     *
+     * @param dns the cache of host lookups, or {@code null} to look the host
+     *            up for every request
+     */
+    public void setDnsCache(DnsCache dns) {
+        this.dns = dns;
+    }
+
+    /**
+     * Makes this crawler ask for the head alone of the URLs the given strategy
+     * predicts not to be pages, and cut off the bodies it does not want. This
+     * must be set before crawling.
+     *
+     * @param strategy what to download of a resource, or {@code null} to
+     *                 download everything but the body of images
+     */
+    public void setFetchStrategy(FetchStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Makes this crawler work out the {@link SimHash} of every text body as
+     * it arrives, see {@link SimpleHttpResponse#getContentFingerprint()}. This
+     * must be set before crawling.
+     *
+     * @param contentFingerprints whether to fingerprint the bodies
+     */
+    public void setContentFingerprints(boolean contentFingerprints) {
+        this.contentFingerprints = contentFingerprints;
+    }
+
+    /**
+     * Makes this crawler keep the body of every response, see {@link
+     * SimpleHttpResponse#getBody()}, which is the default. Without it, the
+     * links and the {@link SimHash} are worked out of the body as it arrives
+     * and the body itself is dropped chunk by chunk, which is all a crawl
+     * needs unless something reads the pages. This must be set before
+     * crawling.
+     *
+     * @param retainBodies whether to keep the bodies
+     */
+    public void setRetainBodies(boolean retainBodies) {
+        this.retainBodies = retainBodies;
+    }
+
     /**
      * Sends a http GET request to given URL.
      *
@@ -41,60 +176,356 @@ public class SimpleCrawler {
      * @return a {@link SimpleHttpResponse} object obtained from the {@code URL}
      */
     public SimpleHttpResponse request(SimpleURL url) {
+        return request(url, null);
+    }
+
+    /**
+     * Sends a http GET request to given URL, leaving the {@link
+     * ValidatorCache} out of it: the request is not conditional and the
+     * response is not remembered, and its body is always kept. This is for
+     * the files the crawler reads itself, like {@code robots.txt}.
+     *
+     * @param url standard URL
+     *
+     * @return a {@link SimpleHttpResponse} object obtained from the {@code URL}
+     */
+    public SimpleHttpResponse requestUnconditionally(SimpleURL url) {
+        return fetch(url, null, false, true);
+    }
+
+    /**
+     * Sends a http GET request to given URL, handing over the links of the
+     * page while it is still being downloaded.
+     *
+     * @param url    standard URL
+     * @param onLink receives every link of the page (as written in the page)
+     *               as soon as it has arrived, or {@code null}
+     *
+     * @return a {@link SimpleHttpResponse} object obtained from the {@code URL}
+     */
+    public SimpleHttpResponse request(SimpleURL url, Consumer<String> onLink) {
+        var probe = strategy != null && strategy.shouldProbe(url);
+        var httpResponse = fetch(url, onLink, probe, false);
+        if (probe && strategy.needsGet(httpResponse)) {
+            // Mispredicted, it is a page after all
+            httpResponse = fetch(url, onLink, false, false);
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Sends a http GET (or HEAD) request to given URL. Unless {@code own}, for
+     * a file the crawler reads itself, the request is conditional if the URL
+     * has validators, and the body is kept only if {@link
+     * #setRetainBodies(boolean) asked for}.
+     */
+    private SimpleHttpResponse fetch(SimpleURL url, Consumer<String> onLink, boolean head, boolean own) {
         // Verbose
-        System.out.println("Crawler - Sec: " + LocalDateTime.now().getSecond());
-        System.out.println("Crawler - URL: " + url.toString());
+        Log.event(Log.Level.DEBUG, "request", "url", url, "method", method(head));
+
+        var timing = timing(url);
+        SimpleHttpResponse httpResponse = null;
+        try {
+            var extraHeaders = own ? "" : conditionalHeaders(url);
+            httpResponse = pool != null && whitelist.contains(url.getHostPort())
+                           ? requestPersistent(url, onLink, timing, head, own, extraHeaders)
+                           : requestOnce(url, onLink, timing, head, own, extraHeaders);
+            if (!own) {
+                httpResponse = revalidate(url, httpResponse, head);
+            }
+            if (strategy != null) {
+                strategy.learn(url, httpResponse);
+            }
+        } finally {
+            timing.finish(httpResponse != null && httpResponse.isAlive());
+        }
+
+        logResponse(httpResponse);
+        return httpResponse;
+    }
+
+    /**
+     * Sends http GET requests for several URLs on the same host back to back
+     * over one persistent connection, without waiting for each response before
+     * sending the next request (http pipelining). The responses come back in
+     * the order of the requests.
+     *
+     * <p>If no {@link ConnectionPool} is set, or the host is not in the
+     * whitelist, the URLs are simply requested one after another. URLs
+     * predicted not to be pages are asked for their head alone, and those
+     * mispredicted are requested again once the pipeline is done.
+     *
+     * @param urls standard URLs, all of which must have the same host and port
+     *
+     * @return the responses of the {@code urls}, in the same order
+     */
+    public List<SimpleHttpResponse> request(List<SimpleURL> urls) {
+        var responses = new ArrayList<SimpleHttpResponse>(urls.size());
+        if (urls.isEmpty()) {
+            return responses;
+        }
+        var first = urls.get(0);
+        for (SimpleURL url : urls) {
+            if (!url.getHostPort().equals(first.getHostPort())) {
+                throw new IllegalArgumentException("Cannot pipeline requests to different hosts: " + url);
+            }
+        }
+        if (pool == null || !whitelist.contains(first.getHostPort())) {
+            urls.forEach(url -> responses.add(request(url)));
+            return responses;
+        }
 
+        var probes = new boolean[urls.size()];
+        ConnectionPool.Connection connection = null;
+        var reusable = false;
+        try {
+            connection = pool.acquire(first.getHost(), first.getPort());
+            var out = connection.getOutputStream();
+            for (int i = 0; i < urls.size(); i++) {
+                var url = urls.get(i);
+                probes[i] = strategy != null && strategy.shouldProbe(url);
+                throttler.await(url.getHostPort());
+                out.write(httpRequest11(url, probes[i], conditionalHeaders(url)));
+            }
+            out.flush();
+            for (int i = 0; i < urls.size(); i++) {
+                var url = urls.get(i);
+                Log.event(Log.Level.DEBUG, "request", "url", url, "method", method(probes[i]), "pipelined", true);
+                // Timed from the end of the previous response, that's when the server gets to this one
+                var timing = timing(url);
+                var message = HttpResponseReader.read(connection.getInputStream(), false, newMessage(null, timing, probes[i], false));
+                timing.lap(FetchMetrics.Phase.BODY);
+                archive(url, message);
+                var httpResponse = revalidate(url, message.toResponse(url, charset()), probes[i]);
+                if (strategy != null) {
+                    strategy.learn(url, httpResponse);
+                }
+                timing.lap(FetchMetrics.Phase.PARSE);
+                timing.finish(httpResponse.isAlive());
+                logResponse(httpResponse);
+                responses.add(httpResponse);
+                reusable = message.isKeepAlive();
+                if (!reusable) {
+                    break; // the server won't answer the rest on this connection
+                }
+            }
+        } catch (IOException e) {
+            reusable = false;
+            Log.warn("Pipelining to " + first.getHostPort() + " broke off, requesting the rest one by one");
+        } finally {
+            if (connection != null) {
+                pool.release(connection, reusable);
+            }
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            if (probes[i] && strategy.needsGet(responses.get(i))) {
+                responses.set(i, fetch(urls.get(i), null, false, false));
+            }
+        }
+        for (int i = responses.size(); i < urls.size(); i++) {
+            responses.add(request(urls.get(i)));
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a {@code HTTP/1.0} request over a connection of its own.
+     */
+    private SimpleHttpResponse requestOnce(SimpleURL url, Consumer<String> onLink, FetchMetrics.Timing timing, boolean head,
+                                           boolean own, String extraHeaders) {
         var httpResponse = new SimpleHttpResponse(url, null, false);
-        var httpRequest = String.format("GET %s HTTP/1.0\r\n\r\n", url.getPath());
+        var httpRequest = String.format("%s %s HTTP/1.0\r\n%s%s\r\n", method(head), url.getPath(), ContentDecoder.ACCEPT_ENCODING,
+                                        extraHeaders);
 
         var host = url.getHost();
         var port = url.getPort();
 
-        try (var socket = new Socket(host, port);
-             var out = new PrintWriter(socket.getOutputStream(), true);
-             var in = new Scanner(new BufferedReader(new InputStreamReader(socket.getInputStream())))
-        ) {
+        try (var socket = connect(host, port, timing)) {
             // Check whitelist. If the site is not in whitelist, then don't crawl and skip it
             if (!whitelist.contains(url.getHostPort())) {
-                System.out.println("Crawler - " + url.getHostPort() + " not in whitelist, skipped and returning empty response");
+                Log.info(url.getHostPort() + " not in whitelist, skipped and returning empty response");
                 return new SimpleHttpResponse(url, null, true);
             }
 
-            // Rate limiting
-            throttler.await();
+            // Rate limiting, each host has its own budget
+            throttler.await(url.getHostPort());
+            timing.lap(FetchMetrics.Phase.RATE_LIMIT);
 
             // Send GET request to the http server
-            out.println(httpRequest);
-
-            var sb = new StringBuilder();
-            var line = "";
-            while (in.hasNextLine()) { // Read off response from the server
-                line = in.nextLine();
-                sb.append(line)
-                  .append(System.getProperty("line.separator"));
-                if (line.startsWith(CONTENT_TYPE_IMAGE)) {
-                    in.close(); // Don't download the whole image files as we don't need... just get the headers
-                    System.out.println("Crawler - closed image download stream early for " + url);
-                    break;
-                }
+            var out = socket.getOutputStream();
+            out.write(httpRequest.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            // Read off response from the server, the head is parsed on the fly
+            var message = HttpResponseReader.read(socket.getInputStream(), true, newMessage(onLink, timing, head, own));
+            timing.lap(FetchMetrics.Phase.BODY);
+            archive(url, message);
+            if (message.isAborted()) {
+                // Don't download the whole binary files as we don't need... just get the headers
+                Log.event(Log.Level.DEBUG, "body-aborted", "url", url, "oversized", message.isOversized());
             }
 
             // Store the response message
-            httpResponse = new SimpleHttpResponse(url, sb.toString(), true);
+            httpResponse = message.toResponse(url, charset());
+            timing.lap(FetchMetrics.Phase.PARSE);
+        } catch (EOFException e) {
+            // The server is there but said nothing
+            httpResponse = new SimpleHttpResponse(url, null, true);
         } catch (UnknownHostException e) {
-            System.err.println("Crawler - Unknown host " + host + ", returning empty response");
+            Log.warn("Unknown host " + host + ", returning empty response");
         } catch (IOException e) {
-            System.err.println("Crawler - Couldn't get I/O for the connection to " + host + ":" + port + ", returning empty response");
+            Log.warn("Couldn't get I/O for the connection to " + host + ":" + port + ", returning empty response");
         }
+        return httpResponse;
+    }
 
-        // Verbose
-        httpResponse.getHead().getStatusCode().ifPresent(c -> System.out.println("Crawler - Status code: " + c.toString()));
-        httpResponse.getHead().getContentType().ifPresent(t -> System.out.println("Crawler - Content type: " + t.toString()));
-        httpResponse.getHead().getModifiedTime().ifPresent(t -> System.out.println("Crawler - Modified time: " + t.toString()));
-        httpResponse.getHead().getRedirectTo().ifPresent(l -> System.out.println("Crawler - Location: " + l.toString()));
+    /**
+     * Sends a {@code HTTP/1.1} request over a persistent connection from the
+     * pool. A pooled connection may have been closed by the server while it sat
+     * idle, in which case the request is retried once on a new connection.
+     */
+    private SimpleHttpResponse requestPersistent(SimpleURL url, Consumer<String> onLink, FetchMetrics.Timing timing, boolean head,
+                                                 boolean own, String extraHeaders) {
+        var host = url.getHost();
+        var port = url.getPort();
 
-        return httpResponse;
+        // Rate limiting, each host has its own budget
+        throttler.await(url.getHostPort());
+        timing.lap(FetchMetrics.Phase.RATE_LIMIT);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ConnectionPool.Connection connection;
+            try {
+                connection = pool.acquire(host, port);
+                timing.lap(FetchMetrics.Phase.CONNECT);
+            } catch (UnknownHostException e) {
+                Log.warn("Unknown host " + host + ", returning empty response");
+                break;
+            } catch (IOException e) {
+                Log.warn("Couldn't get I/O for the connection to " + host + ":" + port + ", returning empty response");
+                break;
+            }
+            var reusable = false;
+            try {
+                var out = connection.getOutputStream();
+                out.write(httpRequest11(url, head, extraHeaders));
+                out.flush();
+                var message = HttpResponseReader.read(connection.getInputStream(), true, newMessage(onLink, timing, head, own));
+                timing.lap(FetchMetrics.Phase.BODY);
+                archive(url, message);
+                if (message.isAborted()) {
+                    Log.event(Log.Level.DEBUG, "body-aborted", "url", url, "oversized", message.isOversized());
+                }
+                reusable = message.isKeepAlive();
+                var httpResponse = message.toResponse(url, charset());
+                timing.lap(FetchMetrics.Phase.PARSE);
+                return httpResponse;
+            } catch (EOFException e) {
+                if (!connection.isReused()) {
+                    Log.warn("Connection to " + host + ":" + port + " closed early, returning empty response");
+                    break;
+                }
+                // Stale connection, try again on a fresh one
+            } catch (IOException e) {
+                Log.warn("Couldn't get I/O for the connection to " + host + ":" + port + ", returning empty response");
+                break;
+            } finally {
+                pool.release(connection, reusable);
+            }
+        }
+        return new SimpleHttpResponse(url, null, false);
+    }
+
+    /**
+     * Opens a connection, looking the host up first so that both can be timed.
+     */
+    private Socket connect(String host, int port, FetchMetrics.Timing timing) throws IOException {
+        var address = dns == null ? new InetSocketAddress(host, port) : dns.resolve(host, port);
+        timing.lap(FetchMetrics.Phase.DNS);
+        var socket = new Socket();
+        try {
+            socket.connect(address); // an unresolved address fails with UnknownHostException
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        timing.lap(FetchMetrics.Phase.CONNECT);
+        return socket;
+    }
+
+    private static byte[] httpRequest11(SimpleURL url, boolean head, String extraHeaders) {
+        var hostHeader = url.getPort() == 80 ? url.getHost() : url.getHostPort();
+        return String.format("%s %s HTTP/1.1\r\nHost: %s\r\nConnection: keep-alive\r\n%s%s\r\n",
+                             method(head), url.getPath(), hostHeader, ContentDecoder.ACCEPT_ENCODING, extraHeaders)
+                     .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String method(boolean head) {
+        return head ? "HEAD" : "GET";
+    }
+
+    private String conditionalHeaders(SimpleURL url) {
+        return validators == null ? "" : validators.conditionalHeaders(url);
+    }
+
+    private SimpleHttpResponse revalidate(SimpleURL url, SimpleHttpResponse httpResponse, boolean head) {
+        return validators == null ? httpResponse : validators.revalidate(url, httpResponse, head);
+    }
+
+    private FetchMetrics.Timing timing(SimpleURL url) {
+        return metrics == null ? FetchMetrics.Timing.OFF : metrics.start(url.getHostPort());
+    }
+
+    private HttpResponseReader.Message newMessage(Consumer<String> onLink, FetchMetrics.Timing timing, boolean head, boolean own) {
+        var message = new HttpResponseReader.Message(onLink);
+        message.time(timing);
+        if (head) {
+            message.getParser().expectNoBody();
+        }
+        if (!retainBodies && !own) {
+            message.dropBody();
+        }
+        if (strategy != null) {
+            message.limitBody(strategy.getMaxBodySize());
+        }
+        if (contentFingerprints) {
+            message.fingerprintContent();
+        }
+        if (archive != null) {
+            message.recordRaw();
+        }
+        return message;
+    }
+
+    private void archive(SimpleURL url, HttpResponseReader.Message message) {
+        if (archive == null) {
+            return;
+        }
+        try {
+            archive.append(url, Instant.now(), message.getRaw(), message.isAborted());
+        } catch (IOException e) {
+            Log.warn("couldn't archive the response of " + url + ": " + e.getMessage());
+        }
+    }
+
+    private static Charset charset() {
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * Logs what the head of a response says, if there is a head.
+     */
+    static void logResponse(SimpleHttpResponse httpResponse) {
+        var head = httpResponse.getHead();
+        if (!Log.isEnabled(Log.Level.INFO) || head.getStatusCode().isEmpty()) {
+            return;
+        }
+        Log.event(Log.Level.INFO, "response",
+                  "url", head.getURL(),
+                  "status", head.getStatusCode().get(),
+                  "type", head.getContentType().orElse(null),
+                  "modified", head.getModifiedTime().orElse(null),
+                  "location", head.getRedirectTo().orElse(null));
     }
 
 }
@@ -0,0 +1,339 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+/**
+ * A FIFO {@link Frontier} which holds a bounded number of URLs in memory and
+ * spills the rest to disk, so the heap it takes does not depend on the size of
+ * the crawl.
+ *
+ * <p>URLs are taken from an in-memory head of at most {@code headCapacity}
+ * URLs. Once the head is full, new URLs are encoded into compact records (the
+ * UTF-8 bytes of the URL with a length in front, cut into several pieces if
+ * the URL is very long) and appended to segment files
+ * through a write buffer. When the head runs dry it is refilled by reading the
+ * oldest segment sequentially, and a segment is deleted as soon as it has been
+ * read through. Anything on disk is always older than what is still in the
+ * write buffer, so the order of the URLs is kept.
+ *
+ * <p>The spill directory is only created when the head overflows for the
+ * first time. Instances are not thread-safe.
+ */
+public class SpillingFrontier implements Frontier {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    // The length of a piece of a record, whose high bit tells that more pieces follow
+    private static final int MORE = 0x8000;
+    private static final int MAX_PIECE_SIZE = MORE - 1;
+
+    private final int headCapacity;
+    private final Path dir;
+    private Path spillDir;
+
+    private final Deque<SimpleURL> head = new ArrayDeque<>();
+    // Segments that have been written completely, oldest first
+    private final Deque<Path> sealed = new ArrayDeque<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel writer;
+    private Path writing;
+    private long writingSize;
+    private FileChannel reader;
+    private Path reading;
+    private int segments;
+    // Reads the records back, a record may be split across reads
+    private Decoder decoder = new Decoder();
+    // The number of URLs on disk or in the write buffer
+    private long spilled;
+
+    /**
+     * @param headCapacity the max number of URLs kept in memory
+     * @param dir          where to put the segment files, or {@code null} for
+     *                     a new temporary directory
+     */
+    public SpillingFrontier(int headCapacity, Path dir) {
+        if (headCapacity < 1) {
+            throw new IllegalArgumentException("Head capacity must be positive: " + headCapacity);
+        }
+        this.headCapacity = headCapacity;
+        this.dir = dir;
+    }
+
+    @Override
+    public boolean add(SimpleURL url) {
+        if (spilled == 0 && head.size() < headCapacity) {
+            head.addLast(url);
+            return true;
+        }
+        var record = encode(url);
+        try {
+            var off = 0;
+            do {
+                var piece = Math.min(record.length - off, MAX_PIECE_SIZE);
+                if (writeBuffer.remaining() < piece + 2) {
+                    flush();
+                }
+                var more = off + piece < record.length;
+                writeBuffer.putShort((short) (more ? piece | MORE : piece)).put(record, off, piece);
+                off += piece;
+            } while (off < record.length);
+            spilled++;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot spill the frontier to disk", e);
+        }
+    }
+
+    @Override
+    public SimpleURL poll() {
+        if (head.isEmpty() && spilled > 0) {
+            try {
+                refill();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read the frontier back from disk", e);
+            }
+        }
+        return head.pollFirst();
+    }
+
+    @Override
+    public long size() {
+        return head.size() + spilled;
+    }
+
+    /**
+     * Visits the URLs in order. The spilled ones are read back from the disk
+     * without being taken out.
+     */
+    @Override
+    public void forEach(Consumer<? super SimpleURL> action) {
+        head.forEach(action);
+        // Picks up where reading has got to, in the middle of a record maybe
+        var scanning = new Decoder(decoder);
+        try {
+            if (reader != null) {
+                // The rest of the segment being read, the start of which is in the read buffer
+                var pending = readBuffer.duplicate();
+                pending.flip();
+                scan(scanning, pending, reading, reader.position(), action);
+            }
+            for (Path segment : sealed) {
+                scan(scanning, null, segment, 0, action);
+            }
+            if (writer != null) {
+                scan(scanning, null, writing, 0, action);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the frontier back from disk", e);
+        }
+        var buffered = writeBuffer.duplicate();
+        buffered.flip();
+        scanning.decode(buffered, action);
+    }
+
+    private static void scan(Decoder decoder, ByteBuffer pending, Path segment, long position, Consumer<? super SimpleURL> action)
+            throws IOException {
+        var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        if (pending != null) {
+            buffer.put(pending);
+        }
+        try (var channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            int n;
+            do {
+                n = channel.read(buffer, position);
+                position += Math.max(n, 0);
+                buffer.flip();
+                decoder.decode(buffer, action);
+                buffer.compact();
+            } while (n != -1);
+        }
+    }
+
+    /**
+     * @return the number of URLs currently spilled to disk (or waiting in the
+     * write buffer to be)
+     */
+    public long getSpilled() {
+        return spilled;
+    }
+
+    @Override
+    public void close() {
+        head.clear();
+        spilled = 0;
+        decoder = new Decoder();
+        closeQuietly(writer);
+        closeQuietly(reader);
+        writer = null;
+        reader = null;
+        deleteQuietly(writing);
+        deleteQuietly(reading);
+        sealed.forEach(SpillingFrontier::deleteQuietly);
+        sealed.clear();
+        if (spillDir != null && dir == null) {
+            deleteQuietly(spillDir);
+        }
+    }
+
+    /**
+     * Moves the oldest spilled URLs back into the head.
+     */
+    private void refill() throws IOException {
+        while (head.size() < headCapacity && spilled > 0) {
+            if (reader == null) {
+                if (sealed.isEmpty()) {
+                    if (writer == null && writeBuffer.position() > 0) {
+                        // Everything spilled is still in the write buffer, no need to touch the disk
+                        writeBuffer.flip();
+                        decoder.decode(writeBuffer, this::unspill);
+                        writeBuffer.clear();
+                        continue;
+                    }
+                    seal(); // the segment being written holds the oldest URLs now
+                }
+                reading = sealed.pollFirst();
+                reader = FileChannel.open(reading, StandardOpenOption.READ);
+                readBuffer.clear();
+            }
+            if (reader.read(readBuffer) == -1) {
+                if (readBuffer.position() > 0) {
+                    throw new IOException("Truncated frontier segment " + reading);
+                }
+                reader.close();
+                reader = null;
+                Files.delete(reading);
+                reading = null;
+                continue;
+            }
+            readBuffer.flip();
+            decoder.decode(readBuffer, this::unspill);
+            readBuffer.compact();
+        }
+    }
+
+    private void unspill(SimpleURL url) {
+        head.addLast(url);
+        spilled--;
+    }
+
+    private void flush() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        if (writer == null) {
+            if (spillDir == null) {
+                spillDir = dir != null ? Files.createDirectories(dir) : Files.createTempDirectory("crawler-frontier");
+            }
+            writing = spillDir.resolve(String.format("frontier-%06d.seg", segments++));
+            writer = FileChannel.open(writing, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            writingSize = 0;
+        }
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            writingSize += writer.write(writeBuffer);
+        }
+        writeBuffer.clear();
+        if (writingSize >= SEGMENT_SIZE) {
+            seal();
+        }
+    }
+
+    /**
+     * Finishes the segment being written, so it can be read back.
+     */
+    private void seal() throws IOException {
+        flush();
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            sealed.addLast(writing);
+            writing = null;
+        }
+    }
+
+    /**
+     * A URL as a record, see {@link SimpleURL#toSpec()}.
+     */
+    private static byte[] encode(SimpleURL url) {
+        return url.toSpec().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes records, keeping the pieces of a record which has not been read
+     * through yet.
+     */
+    private static final class Decoder {
+
+        private byte[] pending = new byte[0];
+        private int pendingLength;
+
+        Decoder() {
+        }
+
+        Decoder(Decoder other) {
+            this.pending = Arrays.copyOf(other.pending, other.pendingLength);
+            this.pendingLength = other.pendingLength;
+        }
+
+        /**
+         * Decodes the whole pieces in {@code buffer}, leaving a partial piece
+         * at the end unread.
+         */
+        void decode(ByteBuffer buffer, Consumer<? super SimpleURL> action) {
+            while (buffer.remaining() >= 2) {
+                buffer.mark();
+                var header = buffer.getShort() & 0xFFFF;
+                var length = header & ~MORE;
+                if (buffer.remaining() < length) {
+                    buffer.reset();
+                    break;
+                }
+                if (pendingLength + length > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+                }
+                buffer.get(pending, pendingLength, length);
+                pendingLength += length;
+                if ((header & MORE) == 0) {
+                    action.accept(new SimpleURL(new String(pending, 0, pendingLength, StandardCharsets.UTF_8)));
+                    pendingLength = 0;
+                }
+            }
+        }
+
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing else we can do about it
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // Nothing else we can do about it
+            }
+        }
+    }
+
+}
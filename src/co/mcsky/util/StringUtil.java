@@ -1,6 +1,5 @@
 package co.mcsky.util;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.regex.Pattern;
@@ -21,13 +20,11 @@ public class StringUtil {
      *
      * @return a {@link List} of all the URLs in this html page if there is any,
      * otherwise returns an empty {@link List}
+     *
+     * @see LinkExtractor
      */
     public static List<String> extractUrls(String response) {
-        var pattern = Pattern.compile("<.*?(?:href|src)=\"(.*?)\">?.*?(?:</a>|>)", Pattern.MULTILINE);
-        var matcher = pattern.matcher(response);
-        List<String> urls = new ArrayList<>();
-        matcher.results().forEach(r -> urls.add(r.group(1)));
-        return urls;
+        return LinkExtractor.extract(response);
     }
 
     /**
@@ -0,0 +1,251 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleHttpResponse;
+import co.mcsky.struct.SimpleURL;
+import co.mcsky.struct.StatusCode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The validators ({@code Last-Modified} and {@code ETag}) of the pages seen by
+ * earlier crawls, kept on disk between crawls, so that a re-crawl only
+ * downloads the pages which have changed.
+ *
+ * <p>A crawler asks for the {@link #conditionalHeaders(SimpleURL) conditional
+ * headers} of a URL before sending its request, and hands the response over
+ * to {@link #revalidate(SimpleURL, SimpleHttpResponse, boolean)}. A {@code
+ * 200} to a {@code GET} with validators is remembered, together with its head
+ * and its links. A {@code 304} is a hit: it is replaced by the response which
+ * was remembered, so the report and the links to follow are the same as if
+ * the page had been downloaded again.
+ *
+ * <p>Everything is held in memory while crawling and written back by {@link
+ * #save()}. Instances are thread-safe.
+ */
+public class ValidatorCache {
+
+    private static final int MAGIC = 0x56414c43; // "VALC"
+    private static final int VERSION = 1;
+
+    private final Path path;
+    private final Map<String, Validators> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * Opens a cache, reading what earlier crawls have saved into it.
+     *
+     * @param path the file of the cache, which need not exist yet
+     *
+     * @throws IOException if the file exists but cannot be read
+     */
+    public ValidatorCache(Path path) throws IOException {
+        this.path = path;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a validator cache: " + path);
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                var url = readString(in);
+                var headText = readString(in);
+                var links = new ArrayList<String>();
+                for (int m = in.readInt(); m > 0; m--) {
+                    links.add(readString(in));
+                }
+                entries.put(url, new Validators(headText, links, in.readLong()));
+            }
+        } catch (NoSuchFileException e) {
+            // First crawl, nothing to revalidate
+        } catch (EOFException e) {
+            throw new IOException("Truncated validator cache: " + path, e);
+        }
+    }
+
+    /**
+     * @param url the URL about to be requested
+     *
+     * @return the {@code If-Modified-Since} and {@code If-None-Match} header
+     * lines for {@code url}, each ending with CRLF, or an empty string if it
+     * has not been seen before
+     */
+    public String conditionalHeaders(SimpleURL url) {
+        var cached = entries.get(url.toString());
+        if (cached == null) {
+            return "";
+        }
+        var headers = new StringBuilder();
+        if (cached.lastModified != null) {
+            headers.append("If-Modified-Since: ").append(cached.lastModified).append("\r\n");
+        }
+        if (cached.etag != null) {
+            headers.append("If-None-Match: ").append(cached.etag).append("\r\n");
+        }
+        return headers.toString();
+    }
+
+    /**
+     * Remembers the validators of a response, or turns a {@code 304} into the
+     * response it stands for. The response to a {@code HEAD} request has no
+     * body nor links to remember, so it leaves the cache as it is.
+     *
+     * @param url      the URL which has been requested
+     * @param response the response as received, body included
+     * @param head     whether {@code response} answers a {@code HEAD} request
+     *
+     * @return the remembered response if {@code response} is a {@code 304}
+     * for a page seen before (its body is empty, its head and links are those
+     * of the last download), otherwise {@code response} itself
+     */
+    public SimpleHttpResponse revalidate(SimpleURL url, SimpleHttpResponse response, boolean head) {
+        var key = url.toString();
+        var status = response.getHead().getStatusCode().orElse(null);
+        if (status == StatusCode.NOT_MODIFIED) {
+            var cached = entries.get(key);
+            if (cached == null) {
+                return response; // we did not ask for it, nothing to replace it with
+            }
+            hits.incrementAndGet();
+            savedBytes.addAndGet(Math.max(cached.bodyLength, 0));
+            Log.event(Log.Level.INFO, "not-modified", "url", url);
+            return new SimpleHttpResponse(url, HttpResponseParser.ofHead(cached.headText), "", cached.links, null, cached.bodyLength,
+                                          true);
+        }
+        if (head) {
+            return response;
+        }
+        if (status == StatusCode.OK && response.isBodyRetained()) {
+            var validators = new Validators(response);
+            if (validators.lastModified != null || validators.etag != null) {
+                entries.put(key, validators);
+                return response;
+            }
+        }
+        if (status != null) {
+            // Gone, moved or not cacheable any more. Without a status the server was just unreachable
+            entries.remove(key);
+        }
+        return response;
+    }
+
+    /**
+     * Writes the cache back to its file. The file is replaced as a whole, so
+     * an interrupted save leaves the previous one intact.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save() throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            var snapshot = new ArrayList<>(entries.entrySet());
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Validators> entry : snapshot) {
+                var cached = entry.getValue();
+                writeString(out, entry.getKey());
+                writeString(out, cached.headText);
+                out.writeInt(cached.links.size());
+                for (String link : cached.links) {
+                    writeString(out, link);
+                }
+                out.writeLong(cached.bodyLength);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of URLs with validators
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of {@code 304} responses answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of body bytes the hits did not download
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d URLs with validators, %d not modified, %d KB not downloaded",
+                             size(), getHits(), getSavedBytes() / 1024);
+    }
+
+    // Strings are written as UTF-8 with a 4-byte length, heads and URLs may be longer than writeUTF allows
+    private static void writeString(DataOutput out, String s) throws IOException {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        var length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length in validator cache");
+        }
+        var bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What is remembered of a page: its head as received (which holds the
+     * validators and everything the report needs) and its links.
+     */
+    private static final class Validators {
+
+        final String headText;
+        final List<String> links;
+        final long bodyLength;
+        final String lastModified;
+        final String etag;
+
+        Validators(SimpleHttpResponse response) {
+            this(response.getHeadText(), specs(response), response.getHead().getBodyLength().orElse(-1));
+        }
+
+        Validators(String headText, List<String> links, long bodyLength) {
+            var head = HttpResponseParser.ofHead(headText);
+            this.headText = headText;
+            this.links = links;
+            this.bodyLength = bodyLength;
+            this.lastModified = head.getLastModified();
+            this.etag = head.getETag();
+        }
+
+        private static List<String> specs(SimpleHttpResponse response) {
+            var specs = new ArrayList<String>(response.getInnerUrls().size());
+            response.getInnerUrls().forEach(u -> specs.add(u.toSpec()));
+            return specs;
+        }
+
+    }
+
+}
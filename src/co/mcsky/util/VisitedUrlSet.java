@@ -0,0 +1,400 @@
+package co.mcsky.util;
+
+import co.mcsky.struct.SimpleURL;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A compact set of the URLs which have been seen, keyed on 64-bit
+ * fingerprints of the URLs rather than on {@link SimpleURL} objects.
+ *
+ * <p>There are three modes, trading accuracy for memory:
+ * <ul>
+ *     <li>{@link Mode#EXACT}: fingerprints are kept in an open-addressing
+ *     {@code long[]} table, and the URL itself is kept in a byte arena to
+ *     tell apart two URLs which happen to share a fingerprint. Never wrong.
+ *     </li>
+ *     <li>{@link Mode#FINGERPRINT}: just the table, 8 bytes per slot. Two
+ *     URLs sharing a fingerprint count as one, which for {@code n} URLs
+ *     happens with a probability of about {@code n / 2^64} per lookup.</li>
+ *     <li>{@link Mode#BLOOM}: a Bloom filter sized up front for an expected
+ *     number of URLs and a false-positive rate. Memory is fixed, but a new URL
+ *     is taken for a seen one (and so never crawled) with the configured
+ *     probability, which grows once more URLs than expected are added.</li>
+ * </ul>
+ *
+ * <p>Instances are thread-safe.
+ */
+public class VisitedUrlSet {
+
+    /**
+     * How URLs are remembered.
+     */
+    public enum Mode {
+        EXACT, FINGERPRINT, BLOOM;
+
+        /**
+         * @param name the name of a mode, in any case
+         *
+         * @return the mode
+         *
+         * @throws IllegalArgumentException if there is no such mode
+         */
+        public static Mode of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int ARENA_CHUNK_SIZE = 1 << 20;
+    private static final double MAX_LOAD = 0.6;
+    private static final int INITIAL_URLS = 1 << 12;
+
+    private final Mode mode;
+    private int size;
+
+    // The open-addressing table of EXACT and FINGERPRINT, 0 marks an empty slot
+    private long[] table;
+    // EXACT only: where the URL of each slot starts in the arena
+    private long[] positions;
+    private final List<byte[]> arena = new ArrayList<>();
+    private int arenaUsed = ARENA_CHUNK_SIZE;
+    private long arenaCapacity;
+    private long collisions;
+
+    // BLOOM only
+    private long[] bits;
+    private long bitCount;
+    private int hashes;
+
+    /**
+     * Creates an exact set.
+     */
+    public VisitedUrlSet() {
+        this(Mode.EXACT, 1 << 16, 0);
+    }
+
+    /**
+     * @param mode              how URLs are remembered
+     * @param expectedUrls      the number of URLs expected, which sizes the
+     *                          Bloom filter (the tables of the other modes
+     *                          start small and grow as needed)
+     * @param falsePositiveRate the target false-positive rate of the Bloom
+     *                          filter, ignored by the other modes
+     */
+    public VisitedUrlSet(Mode mode, long expectedUrls, double falsePositiveRate) {
+        if (expectedUrls < 1) {
+            throw new IllegalArgumentException("Expected number of URLs must be positive: " + expectedUrls);
+        }
+        this.mode = mode;
+        if (mode == Mode.BLOOM) {
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new IllegalArgumentException("False-positive rate must be between 0 and 1: " + falsePositiveRate);
+            }
+            // m = -n ln(p) / ln(2)^2, k = m/n ln(2)
+            var m = (long) Math.ceil(-expectedUrls * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (m + 63) >>> 6)];
+            this.bitCount = (long) bits.length << 6;
+            this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedUrls * Math.log(2)));
+        } else {
+            var capacity = Integer.highestOneBit((int) Math.max(16, Math.min(INITIAL_URLS, expectedUrls) / MAX_LOAD) - 1) << 1;
+            this.table = new long[capacity];
+            if (mode == Mode.EXACT) {
+                this.positions = new long[capacity];
+            }
+        }
+    }
+
+    /**
+     * Adds a URL to the set.
+     *
+     * @param url the URL
+     *
+     * @return {@code true} if the URL had not been seen before (which in the
+     * probabilistic modes may be wrongly {@code false})
+     */
+    public boolean add(SimpleURL url) {
+        var spec = url.toString();
+        var fp = fingerprint(spec);
+        synchronized (this) {
+            if (mode == Mode.BLOOM) {
+                return addToBloom(fp);
+            }
+            if (size + 1 > table.length * MAX_LOAD) {
+                grow();
+            }
+            var bytes = mode == Mode.EXACT ? spec.getBytes(StandardCharsets.UTF_8) : null;
+            var mask = table.length - 1;
+            var i = (int) mix(fp) & mask;
+            while (table[i] != 0) {
+                if (table[i] == fp) {
+                    if (bytes == null || arenaEquals(positions[i], bytes)) {
+                        return false;
+                    }
+                    collisions++; // same fingerprint, different URL
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = fp;
+            if (bytes != null) {
+                positions[i] = store(bytes);
+            }
+            size++;
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of URLs added, not counting those taken for seen
+     * ones
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the mode of this set
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return roughly how many bytes of heap this set takes
+     */
+    public synchronized long memoryUsage() {
+        if (mode == Mode.BLOOM) {
+            return 8L * bits.length;
+        }
+        var bytes = 8L * table.length;
+        if (mode == Mode.EXACT) {
+            bytes += 8L * positions.length + arenaCapacity;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the estimated probability that a URL not in the set is taken
+     * for one in it, given the number of URLs added so far
+     */
+    public synchronized double falsePositiveRate() {
+        switch (mode) {
+            case EXACT:
+                return 0;
+            case FINGERPRINT:
+                // A new URL matches one of the n fingerprints by chance
+                return size / Math.pow(2, 64);
+            case BLOOM:
+                return Math.pow(1 - Math.exp(-(double) hashes * size / bitCount), hashes);
+            default:
+                throw new IllegalStateException("Unknown mode: " + mode);
+        }
+    }
+
+    /**
+     * @return the number of distinct URLs found sharing a fingerprint with
+     * another one, only counted in {@link Mode#EXACT}
+     */
+    public synchronized long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Writes this set out, so that {@link #load(DataInput)} can read it back.
+     *
+     * @param out where to write to
+     *
+     * @throws IOException if {@code out} fails
+     */
+    public synchronized void save(DataOutput out) throws IOException {
+        out.writeInt(mode.ordinal());
+        out.writeInt(size);
+        if (mode == Mode.BLOOM) {
+            out.writeInt(hashes);
+            writeLongs(out, bits);
+            return;
+        }
+        out.writeLong(collisions);
+        writeLongs(out, table);
+        if (mode == Mode.EXACT) {
+            writeLongs(out, positions);
+            out.writeInt(arena.size());
+            for (byte[] chunk : arena) {
+                out.writeInt(chunk.length);
+                out.write(chunk);
+            }
+            out.writeInt(arenaUsed);
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #save(DataOutput)}.
+     *
+     * @param in where to read from
+     *
+     * @return the set as it was saved
+     *
+     * @throws IOException if {@code in} fails or does not hold a set
+     */
+    public static VisitedUrlSet load(DataInput in) throws IOException {
+        var modes = Mode.values();
+        var ordinal = in.readInt();
+        if (ordinal < 0 || ordinal >= modes.length) {
+            throw new IOException("Not a saved set of URLs");
+        }
+        var set = new VisitedUrlSet(modes[ordinal], 1, 0.5);
+        set.size = in.readInt();
+        if (set.mode == Mode.BLOOM) {
+            set.hashes = in.readInt();
+            set.bits = readLongs(in);
+            set.bitCount = (long) set.bits.length << 6;
+            return set;
+        }
+        set.collisions = in.readLong();
+        set.table = readLongs(in);
+        if (set.mode == Mode.EXACT) {
+            set.positions = readLongs(in);
+            var chunks = in.readInt();
+            for (int i = 0; i < chunks; i++) {
+                var chunk = new byte[in.readInt()];
+                in.readFully(chunk);
+                set.arena.add(chunk);
+                set.arenaCapacity += chunk.length;
+            }
+            set.arenaUsed = in.readInt();
+        }
+        return set;
+    }
+
+    private static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long v : values) {
+            out.writeLong(v);
+        }
+    }
+
+    private static long[] readLongs(DataInput in) throws IOException {
+        var values = new long[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s mode, %d URLs in %d KB, estimated false-positive rate %.3g",
+                             mode.name().toLowerCase(Locale.ROOT), size, memoryUsage() / 1024, falsePositiveRate());
+    }
+
+    private boolean addToBloom(long fp) {
+        // Kirsch-Mitzenmacher: the k indexes are derived from just two hashes
+        var h1 = fp;
+        var h2 = mix(fp) | 1;
+        var added = false;
+        for (int i = 0; i < hashes; i++) {
+            var bit = Math.floorMod(h1 + i * h2, bitCount);
+            var word = (int) (bit >>> 6);
+            var m = 1L << bit;
+            if ((bits[word] & m) == 0) {
+                bits[word] |= m;
+                added = true;
+            }
+        }
+        if (added) {
+            size++;
+        }
+        return added;
+    }
+
+    private void grow() {
+        var oldTable = table;
+        var oldPositions = positions;
+        table = new long[oldTable.length * 2];
+        positions = oldPositions == null ? null : new long[table.length];
+        var mask = table.length - 1;
+        for (int j = 0; j < oldTable.length; j++) {
+            if (oldTable[j] == 0) {
+                continue;
+            }
+            var i = (int) mix(oldTable[j]) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = oldTable[j];
+            if (positions != null) {
+                positions[i] = oldPositions[j];
+            }
+        }
+    }
+
+    /**
+     * Copies a URL into the arena as a 4-byte length and the bytes, all of
+     * them however long the URL.
+     *
+     * @return the position of the record, the chunk in the high half and the
+     * offset in the low half
+     */
+    private long store(byte[] bytes) {
+        var record = bytes.length + 4;
+        if (arenaUsed + record > ARENA_CHUNK_SIZE) {
+            var chunkSize = Math.max(ARENA_CHUNK_SIZE, record);
+            arena.add(new byte[chunkSize]);
+            arenaCapacity += chunkSize;
+            arenaUsed = 0;
+        }
+        var chunk = arena.get(arena.size() - 1);
+        var at = arenaUsed;
+        chunk[at] = (byte) (bytes.length >>> 24);
+        chunk[at + 1] = (byte) (bytes.length >>> 16);
+        chunk[at + 2] = (byte) (bytes.length >>> 8);
+        chunk[at + 3] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, chunk, at + 4, bytes.length);
+        arenaUsed += record;
+        return (long) (arena.size() - 1) << 32 | at;
+    }
+
+    private boolean arenaEquals(long position, byte[] bytes) {
+        var chunk = arena.get((int) (position >>> 32));
+        var at = (int) position;
+        var length = (chunk[at] & 0xFF) << 24 | (chunk[at + 1] & 0xFF) << 16 | (chunk[at + 2] & 0xFF) << 8 | chunk[at + 3] & 0xFF;
+        return length == bytes.length && Arrays.equals(chunk, at + 4, at + 4 + length, bytes, 0, length);
+    }
+
+    /**
+     * @param spec the standard form of a URL, as given by {@link
+     *             SimpleURL#toString()}
+     *
+     * @return a 64-bit FNV-1a hash of the URL, never {@code 0}
+     */
+    public static long fingerprint(CharSequence spec) {
+        var h = 0xcbf29ce484222325L;
+        for (int i = 0; i < spec.length(); i++) {
+            var c = spec.charAt(i);
+            h = (h ^ (c & 0xFF)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        h = mix(h);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads every bit of {@code h} over the
+     * whole word.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}